@@ -98,6 +98,9 @@ dependencies {
 
     implementation("com.google.guava:guava:28.0-jre")
 
+    // 嵌入式数据库
+    implementation("com.h2database:h2:1.4.200")
+
     // 网络
     implementation("com.squareup.okhttp3:okhttp:4.9.1")
     implementation("com.squareup.okhttp3:logging-interceptor:4.1.0")
@@ -26,6 +26,17 @@ import com.htmake.reader.utils.error
 import com.htmake.reader.utils.success
 import com.htmake.reader.utils.getStorage
 import com.htmake.reader.utils.saveStorage
+import com.htmake.reader.utils.invalidateStorage
+import io.legado.app.help.http.HttpCache
+import io.legado.app.help.http.getHttpStats
+import io.legado.app.help.http.HedgedRequest
+import io.legado.app.help.http.RetryPolicy
+import io.legado.app.model.analyzeRule.ConcurrentRateLimiter
+import io.legado.app.model.analyzeRule.CompiledRule
+import io.legado.app.help.coroutine.SearchConcurrency
+import io.legado.app.help.SourceHealth
+import io.legado.app.help.JsEngine
+import io.legado.app.help.coroutine.JsBridge
 import com.htmake.reader.utils.asJsonArray
 import com.htmake.reader.utils.asJsonObject
 import com.htmake.reader.utils.toDataClass
@@ -49,6 +60,7 @@ import io.vertx.core.json.JsonArray
 import io.vertx.core.http.HttpMethod
 import com.htmake.reader.api.ReturnData
 import io.legado.app.utils.MD5Utils
+import io.legado.app.utils.RegexPool
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.URL;
@@ -155,11 +167,20 @@ class YueduApi : RestVerticle() {
         // 读取远程书源文件
         router.post("/reader3/readRemoteSourceFile").coroutineHandlerWithoutRes { bookSourceController.readRemoteSourceFile(it) }
 
+        // 流式导入上传或远程的书源文件，返回导入进度
+        router.post("/reader3/importBookSourcesSSE").coroutineHandlerWithoutRes { bookSourceController.importBookSourcesSSE(it) }
+        router.get("/reader3/importBookSourcesSSE").coroutineHandlerWithoutRes { bookSourceController.importBookSourcesSSE(it) }
+
         // 设置默认书源
         router.post("/reader3/setAsDefaultBookSources").coroutineHandler { bookSourceController.setAsDefaultBookSources(it) }
         router.post("/reader3/deleteUserBookSource").coroutineHandler { bookSourceController.deleteUserBookSource(it) }
         router.post("/reader3/deleteBookSourcesFile").coroutineHandler { bookSourceController.deleteBookSourcesFile(it) }
 
+        // 书源健康状态
+        router.get("/reader3/getSourceHealth").coroutineHandler { bookSourceController.getSourceHealth(it) }
+        router.post("/reader3/getSourceHealth").coroutineHandler { bookSourceController.getSourceHealth(it) }
+        router.post("/reader3/resetSourceHealth").coroutineHandler { bookSourceController.resetSourceHealth(it) }
+
         /** 书籍模块 */
         // 书架
         router.get("/reader3/getBookshelf").coroutineHandler { bookController.getBookshelf(it) }
@@ -325,6 +346,8 @@ class YueduApi : RestVerticle() {
         router.get("/reader3/getRssSources").coroutineHandler { rssSourceController.getRssSources(it) }
         router.post("/reader3/saveRssSource").coroutineHandler { rssSourceController.saveRssSource(it) }
         router.post("/reader3/saveRssSources").coroutineHandler { rssSourceController.saveRssSources(it) }
+        router.post("/reader3/importRssSourcesSSE").coroutineHandlerWithoutRes { rssSourceController.importRssSourcesSSE(it) }
+        router.get("/reader3/importRssSourcesSSE").coroutineHandlerWithoutRes { rssSourceController.importRssSourcesSSE(it) }
         router.post("/reader3/deleteRssSource").coroutineHandler { rssSourceController.deleteRssSource(it) }
         // rss 列表
         router.get("/reader3/getRssArticles").coroutineHandler { rssSourceController.getRssArticles(it) }
@@ -406,7 +429,18 @@ class YueduApi : RestVerticle() {
             "fonts" to systemFont,
             "freeMemory" to freeMemory,
             "totalMemory" to totalMemory,
-            "maxMemory" to maxMemory
+            "maxMemory" to maxMemory,
+            "httpCache" to HttpCache.getStats(),
+            "http" to getHttpStats(),
+            "concurrentRate" to ConcurrentRateLimiter.getStats(),
+            "search" to SearchConcurrency.getStats(),
+            "sourceHealth" to SourceHealth.getStats(),
+            "hedge" to HedgedRequest.getStats(),
+            "retry" to RetryPolicy.getStats(),
+            "ruleCache" to CompiledRule.getStats(),
+            "regexCache" to RegexPool.getStats(),
+            "jsCache" to JsEngine.getStats(),
+            "jsBridge" to JsBridge.getStats()
         ))
     }
 
@@ -488,6 +522,7 @@ class YueduApi : RestVerticle() {
                                 if (userHome.exists()) {
                                     userHome.deleteRecursively()
                                 }
+                                invalidateStorage(userHome)
                             }
                         }
                     } catch (e: Exception) {
@@ -70,6 +70,8 @@ import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.delay
 import io.legado.app.help.coroutine.Coroutine
+import io.legado.app.help.http.okHttpClient
+import com.htmake.reader.storage.SourceImporter
 
 private val logger = KotlinLogging.logger {}
 
@@ -294,110 +296,74 @@ open class BaseController(override val coroutineContext: CoroutineContext): Coro
         return getFileExtetion(url, defaultExt)
     }
 
-    suspend fun limitConcurrent(concurrentCount: Int, startIndex: Int, endIndex: Int, handler: suspend CoroutineScope.(Int) -> Any) {
-        limitConcurrent(concurrentCount, startIndex, endIndex, handler) {_, _ ->
-            true
-        }
-    }
+    /**
+     * 流式导入上传的源文件或远程源文件，通过 event-stream 返回导入进度
+     */
+    suspend fun importSourcesSSE(context: RoutingContext, handler: (SourceImporter, String, (SourceImporter.Progress) -> Boolean) -> SourceImporter.Progress) {
+        val returnData = ReturnData()
+        val response = context.response().putHeader("Content-Type", "text/event-stream")
+            .putHeader("Cache-Control", "no-cache")
+            .setChunked(true);
 
-    suspend fun limitConcurrent(concurrentCount: Int, startIndex: Int, endIndex: Int, handler: suspend CoroutineScope.(Int) -> Any, needContinue: (ArrayList<Any>, Int) -> Boolean) {
-        var lastIndex = startIndex
-        var loopCount = 0
-        var resultCount = 0
-        var loopStart = System.currentTimeMillis()
-        var costTime = 0L
-        var deferredList = arrayListOf<Deferred<Any>>()
-        while(true) {
-            var croutineCount = deferredList.size;
-            if (croutineCount < concurrentCount) {
-                for(i in lastIndex until endIndex) {
-                    croutineCount += 1;
-                    deferredList.add(async {
-                        handler(i)
-                    })
+        if (!checkAuth(context)) {
+            response.write("event: error\n")
+            response.end("data: " + jsonEncode(returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用"), false) + "\n\n")
+            return
+        }
+        var url = context.queryParam("url").firstOrNull() ?: ""
+        if (url.isEmpty() && context.request().method() == HttpMethod.POST && context.fileUploads().isEmpty()) {
+            // post 请求
+            url = kotlin.runCatching { context.bodyAsJson?.getString("url") }.getOrNull() ?: ""
+        }
+        val files = context.fileUploads().map { File(it.uploadedFileName()) }.filter { it.exists() }
+        if (files.isEmpty() && url.isEmpty()) {
+            response.write("event: error\n")
+            response.end("data: " + jsonEncode(returnData.setErrorMsg("请上传文件或输入远程源链接"), false) + "\n\n")
+            return
+        }
 
-                    lastIndex = i
-                    if (croutineCount >= concurrentCount) {
-                        break;
-                    }
-                }
+        var userNameSpace = getUserNameSpace(context)
+        var isEnd = false
+        context.request().connection().closeHandler{
+            logger.info("客户端已断开链接，停止导入")
+            isEnd = true
+        }
+        val onProgress: (SourceImporter.Progress) -> Boolean = { progress ->
+            if (!isEnd) {
+                response.write("data: " + jsonEncode(progress.toMap(), false) + "\n\n")
             }
-            var resultList = arrayListOf<Any>()
-
-            // 等待任何一个完成
-            while (resultList.size <= 0) {
-                delay(10)
-                var stillDeferredList = arrayListOf<Deferred<Any>>()
-                for (i in 0 until deferredList.size) {
-                    try {
-                        var deferred = deferredList.get(i)
-                        if (deferred.isCompleted) {
-                            resultCount++
-                            resultList.add(deferred.getCompleted())
-                        } else if (!deferred.isCancelled) {
-                            stillDeferredList.add(deferred)
-                        } else {
-                            resultCount++
+            !isEnd
+        }
+        val result = mutableMapOf("total" to 0, "saved" to 0, "skipped" to 0, "failed" to 0)
+        try {
+            if (files.isNotEmpty()) {
+                files.forEach { file ->
+                    if (!isEnd) {
+                        SourceImporter(file.inputStream().buffered()).use {
+                            handler(it, userNameSpace, onProgress).toMap().forEach { (key, value) -> result.put(key, result.getValue(key) + value) }
                         }
-                    } catch(e: Exception) {
-
                     }
+                    file.delete()
                 }
-                deferredList.clear()
-                deferredList.addAll(stillDeferredList)
-            }
-
-            if (resultCount / concurrentCount > loopCount) {
-                loopCount = resultCount / concurrentCount
-                costTime = System.currentTimeMillis() - loopStart
-                logger.info("Loop: {} concurrentCount: {} lastIndex: {} endIndex: {} costTime: {} ms deferredList size: {}", loopCount, croutineCount, lastIndex, endIndex, costTime, deferredList.size)
-            }
-
-            if (lastIndex >= endIndex - 1) {
-                // 搞完了，等待所有结束
-                for (i in 0 until deferredList.size) {
-                    try {
-                        resultList.add(deferredList.get(i).await())
-                    } catch(e: Exception) {
-
+            } else {
+                val request = okhttp3.Request.Builder().url(url).build()
+                okHttpClient.newCall(request).execute().use { res ->
+                    val body = res.body
+                    if (!res.isSuccessful || body == null) {
+                        throw Exception("远程源链接错误")
+                    }
+                    SourceImporter(body.byteStream()).use {
+                        result.putAll(handler(it, userNameSpace, onProgress).toMap())
                     }
                 }
-                deferredList.clear()
-                needContinue(resultList, loopCount)
-                break;
-            }
-            if (resultList.size > 0) {
-                if (!needContinue(resultList, loopCount)) {
-                    break;
-                }
-            }
-            lastIndex = lastIndex + 1
-        }
-
-        // for (i in 0 until concurrentCount) {
-        //     runBlocking(concurrentCount, startIndex + i , endIndex, handler, needContinue)
-        // }
-    }
-
-    suspend fun runBlocking(concurrentCount: Int, startIndex: Int, endIndex: Int, handler: suspend CoroutineScope.(Int) -> Any, needContinue: (ArrayList<Any>, Int) -> Boolean) {
-        var lastIndex = startIndex
-
-        Coroutine.async(this, coroutineContext) {
-            handler(lastIndex)
-        }.timeout(30000L)
-        .onSuccess(Dispatchers.IO) {
-            if (lastIndex < endIndex - concurrentCount && needContinue(arrayListOf(it), 0)) {
-                lastIndex += concurrentCount
-                runBlocking(concurrentCount, lastIndex, endIndex, handler, needContinue)
-            }
-        }
-        .onError(Dispatchers.IO) {
-            if (lastIndex < endIndex - concurrentCount) {
-                lastIndex += concurrentCount
-                runBlocking(concurrentCount, lastIndex, endIndex, handler, needContinue)
-            } else {
-                needContinue(arrayListOf(), 0)
             }
+        } catch (e: Exception) {
+            logger.info("importSourcesSSE error: {}", e.toString())
+            response.write("event: error\n")
+            response.end("data: " + jsonEncode(returnData.setErrorMsg("导入失败: " + (e.message ?: e.toString())), false) + "\n\n")
+            return
         }
+        response.write("event: end\n")
+        response.end("data: " + jsonEncode(result, false) + "\n\n")
     }
-}
\ No newline at end of file
+}
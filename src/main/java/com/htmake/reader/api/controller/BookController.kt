@@ -24,6 +24,13 @@ import com.htmake.reader.utils.error
 import com.htmake.reader.utils.success
 import com.htmake.reader.utils.getStorage
 import com.htmake.reader.utils.saveStorage
+import com.htmake.reader.utils.getStorageFile
+import com.htmake.reader.utils.invalidateStorage
+import com.htmake.reader.storage.BookShelfIndex
+import com.htmake.reader.storage.BookSourceRegistry
+import com.htmake.reader.storage.BookProgressJournal
+import com.htmake.reader.storage.ChapterListFile
+import com.htmake.reader.storage.ChapterContentStore
 import com.htmake.reader.utils.asJsonArray
 import com.htmake.reader.utils.asJsonObject
 import com.htmake.reader.utils.toDataClass
@@ -81,10 +88,15 @@ import kotlinx.coroutines.async
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.coroutineScope
 import me.ag2s.epublib.domain.*
 import me.ag2s.epublib.epub.EpubWriter
 import me.ag2s.epublib.util.ResourceUtil
 // import io.legado.app.help.coroutine.Coroutine
+import io.legado.app.help.coroutine.SearchConcurrency
+import io.legado.app.help.coroutine.FanOut
+import io.legado.app.help.SourceHealth
 
 private val logger = KotlinLogging.logger {}
 
@@ -99,20 +111,11 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         webClient = SpringContextUtils.getBean("webClient", WebClient::class.java)
     }
 
-    private fun getInvalidBookSourceCache(userNameSpace: String): ACache {
-        val cacheDir = File(getWorkDir("storage", "cache", "invalidBookSourceCache", userNameSpace))
-        // 缓存 5M 的失效书源信息
-        var invalidBookSourceCache = ACache.get(cacheDir, 1000 * 1000 * 5L, 1000000)
-        return invalidBookSourceCache
-    }
-
+    /**
+     * 书源是否处于熔断状态，失败记录由 WebBook 写入 SourceHealth，所有用户共享
+     */
     private fun isInvalidBookSource(bookSource: BookSource, userNameSpace: String): Boolean {
-        return getInvalidBookSourceCache(userNameSpace).getAsString(bookSource.bookSourceUrl) != null
-    }
-
-    private fun addInvalidBookSource(sourceUrl: String, invalidInfo: Map<String, Any>, userNameSpace: String) {
-        // 保存600秒时间
-        getInvalidBookSourceCache(userNameSpace).put(sourceUrl, jsonEncode(invalidInfo), 600)
+        return !SourceHealth.allowRequest(bookSource.bookSourceUrl)
     }
 
     suspend fun getInvalidBookSources(context: RoutingContext): ReturnData {
@@ -121,19 +124,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
         }
         var userNameSpace = getUserNameSpace(context)
-        val invalidBookSourceCache = getInvalidBookSourceCache(userNameSpace)
-        val cacheDir = File(getWorkDir("storage", "cache", "invalidBookSourceCache", userNameSpace))
-        val files = cacheDir.listFiles()
-        val invalidBookSourceList = arrayListOf<Map<String, Any>>()
-        if (files != null) {
-            for (f in files) {
-                invalidBookSourceCache.getByHashCode(f.name)?.let { info ->
-                    invalidBookSourceList.add(info.toMap())
-                }
-            }
-        }
-
-        return returnData.setData(invalidBookSourceList)
+        val sourceUrls = BookSourceRegistry.getBookSourceUrlList(userNameSpace)
+        return returnData.setData(SourceHealth.getHealthList(sourceUrls, true))
     }
 
     suspend fun getBookInfo(context: RoutingContext): ReturnData {
@@ -522,12 +514,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             }
             if (chapterInfo == null) {
                 var chapterList = getLocalChapterList(bookInfo, bookSource ?: "", false, userNameSpace)
-                for(i in 0 until chapterList.size) {
-                    if (chapterUrl == chapterList.get(i).url) {
-                        chapterInfo = chapterList.get(i)
-                        break
-                    }
-                }
+                // 按顺序读取整个目录文件，不逐条随机读取
+                chapterInfo = chapterList.firstOrNull { it.url == chapterUrl }
                 if (chapterInfo == null) {
                     return returnData.setErrorMsg("获取章节信息失败")
                 }
@@ -579,39 +567,26 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             content = bookContent
         } else {
             // 查找章节缓存
-            var chapterCacheFile: File? = null
+            var contentStore: ChapterContentStore? = null
             if (refresh <= 0 && appConfig.cacheChapterContent) {
-                val localCacheDir = getChapterCacheDir(bookInfo, userNameSpace)
-                chapterCacheFile = File(localCacheDir.absolutePath + File.separator + chapterIndex + ".txt")
-                if (chapterCacheFile.exists()) {
-                    content = chapterCacheFile.readText()
-                    logger.info("使用缓存的章节内容: {}", chapterCacheFile.toString())
-                    return returnData.setData(content)
-                }
-            }
-            try {
-                content = WebBook(bookSource ?: "", appConfig.debugLog).getBookContent(bookInfo, chapterInfo, nextChapterUrl)
-                if (appConfig.cacheChapterContent && chapterCacheFile != null) {
-                    chapterCacheFile.writeText(content)
-                    // 保存图片
-                    BookHelp.saveImages(
-                        this,
-                        BookSource.fromJson(bookSource ?: "").getOrNull() ?: BookSource(),
-                        bookInfo,
-                        chapterInfo,
-                        content
-                    )
-                }
-            } catch(e: Exception) {
-                if (!bookSource.isNullOrEmpty()) {
-                    var bookSourceObject = asJsonObject(bookSource)?.mapTo(BookSource::class.java)
-                    if (bookSourceObject != null) {
-                        // 标记为失败源
-                        val info = mutableMapOf<String, Any>("sourceUrl" to bookSourceObject.bookSourceUrl, "time" to System.currentTimeMillis(), "error" to e.toString())
-                        addInvalidBookSource(bookSourceObject.bookSourceUrl, info, userNameSpace)
-                    }
-                }
-                throw e
+                contentStore = getChapterContentStore(bookInfo, userNameSpace)
+                val cachedContent = contentStore.read(chapterIndex)
+                if (cachedContent != null) {
+                    logger.info("使用缓存的章节内容: {} {}", contentStore.dir, chapterIndex)
+                    return returnData.setData(cachedContent)
+                }
+            }
+            content = WebBook(bookSource ?: "", appConfig.debugLog).getBookContent(bookInfo, chapterInfo, nextChapterUrl)
+            if (appConfig.cacheChapterContent && contentStore != null) {
+                contentStore.write(chapterIndex, content)
+                // 保存图片
+                BookHelp.saveImages(
+                    this,
+                    BookSource.fromJson(bookSource ?: "").getOrNull() ?: BookSource(),
+                    bookInfo,
+                    chapterInfo,
+                    content
+                )
             }
         }
 
@@ -709,23 +684,22 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         searchSize = if(searchSize > 0) searchSize else 20
         concurrentCount = if(concurrentCount > 0) concurrentCount else 36
         logger.info("searchBookMulti from lastIndex: {} searchSize: {}", lastIndex, searchSize)
-        var isEnd = false
-        context.request().connection().closeHandler{
-            logger.info("客户端已断开链接，停止 searchBookMulti")
-            isEnd = true
-        }
         var resultList = arrayListOf<SearchBook>()
         var resultMap = mutableMapOf<String, Int>()
         val book = Book()
         book.name = key
-        limitConcurrent(concurrentCount, lastIndex + 1, userBookSourceList.size, {it->
-            lastIndex = it
-            var bookSource = userBookSourceList.get(it)
-            searchBookWithSource(bookSource, book, false, userNameSpace = userNameSpace)
-        }) {list, loopCount ->
-            // logger.info("list: {}", list)
-            list.forEach {
-                val bookList = it as? Collection<SearchBook>
+        SearchConcurrency.session(concurrentCount) { currentConcurrentCount ->
+            val fanOut = FanOut(currentConcurrentCount)
+            context.request().connection().closeHandler{
+                logger.info("客户端已断开链接，停止 searchBookMulti")
+                fanOut.stop()
+            }
+            var searchedCount = 0
+            fanOut.run(lastIndex + 1, userBookSourceList.size, {
+                searchBookWithSource(userBookSourceList.get(it), book, false, userNameSpace = userNameSpace)
+            }) { index, bookList ->
+                searchedCount++
+                lastIndex = Math.max(lastIndex, index)
                 bookList?.forEach { book ->
                     // 按照 书名 + 作者名 过滤
                     val bookKey = book.name + '_' + book.author
@@ -734,13 +708,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
                         resultMap.put(bookKey, 1)
                     }
                 }
-            }
-            logger.info("Loog: {} resultList.size: {}", loopCount, resultList.size)
-            if (isEnd || loopCount >= concurrentLoopCount) {
-                // 超过最大轮次，终止执行
-                false
-            } else {
-                resultList.size < searchSize
+                // 超过最大搜索数量，终止执行
+                searchedCount < concurrentCount * concurrentLoopCount && resultList.size < searchSize
             }
         }
         return returnData.setData(mapOf("lastIndex" to lastIndex, "list" to resultList))
@@ -800,43 +769,38 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         concurrentCount = if(concurrentCount > 0) concurrentCount else 24
         logger.info("searchBookMulti from lastIndex: {} concurrentCount: {} searchSize: {}", lastIndex, concurrentCount, searchSize)
 
-        var isEnd = false
-        context.request().connection().closeHandler{
-            logger.info("客户端已断开链接，停止 searchBookMultiSSE")
-            isEnd = true
-        }
         var resultList = arrayListOf<SearchBook>()
         var resultMap = mutableMapOf<String, Int>()
         val book = Book()
         book.name = key
-        limitConcurrent(concurrentCount, lastIndex + 1, userBookSourceList.size, {it->
-            lastIndex = it
-            var bookSource = userBookSourceList.get(it)
-            searchBookWithSource(bookSource, book, false, userNameSpace = userNameSpace)
-        }) {list, loopCount ->
-            // logger.info("list: {}", list)
-            val loopResult = arrayListOf<SearchBook>()
-            list.forEach {
-                val bookList = it as? Collection<SearchBook>
+        SearchConcurrency.session(concurrentCount) { currentConcurrentCount ->
+            val fanOut = FanOut(currentConcurrentCount)
+            context.request().connection().closeHandler{
+                logger.info("客户端已断开链接，停止 searchBookMultiSSE")
+                fanOut.stop()
+            }
+            var searchedCount = 0
+            fanOut.run(lastIndex + 1, userBookSourceList.size, {
+                searchBookWithSource(userBookSourceList.get(it), book, false, userNameSpace = userNameSpace)
+            }) { index, bookList ->
+                searchedCount++
+                lastIndex = Math.max(lastIndex, index)
+                val sourceResult = arrayListOf<SearchBook>()
                 bookList?.forEach { book ->
                     // 按照 书名 + 作者名 过滤
                     val bookKey = book.name + '_' + book.author
                     if (!resultMap.containsKey(bookKey)) {
                         resultList.add(book)
-                        loopResult.add(book)
+                        sourceResult.add(book)
                         resultMap.put(bookKey, 1)
                     }
                 }
-            }
-            // 返回本轮数据
-            response.write("data: " + jsonEncode(mapOf("lastIndex" to lastIndex, "data" to loopResult), false) + "\n\n")
-            logger.info("Loog: {} resultList.size: {}", loopCount, resultList.size)
-
-            if (isEnd || loopCount >= concurrentLoopCount) {
-                // 超过最大轮次，终止执行
-                false
-            } else {
-                resultList.size < searchSize
+                if (sourceResult.size > 0) {
+                    // 返回该书源的数据
+                    response.write("data: " + jsonEncode(mapOf("lastIndex" to lastIndex, "data" to sourceResult), false) + "\n\n")
+                }
+                // 超过最大搜索数量，终止执行
+                searchedCount < concurrentCount * concurrentLoopCount && resultList.size < searchSize
             }
         }
         response.write("event: end\n")
@@ -888,38 +852,33 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         if (bookSourceList != null && bookSourceList.size() > 0) {
             try {
                 val lastBookSourceUrl = bookSourceList.getJsonObject(bookSourceList.size() - 1).getString("origin")
-                lastIndex = Math.max(lastIndex, getBookSourceBySourceURL(lastBookSourceUrl, userNameSpace, userBookSourceList).second)
+                lastIndex = Math.max(lastIndex, getBookSourceBySourceURL(lastBookSourceUrl, userNameSpace, bookSourceGroup).second)
             } catch(e: Exception) {
                 e.printStackTrace()
             }
         }
 
         logger.info("searchBookSource from lastIndex: {}", lastIndex)
-        var isEnd = false
-        context.request().connection().closeHandler{
-            logger.info("客户端已断开链接，停止 searchBookSource")
-            isEnd = true
-        }
         searchSize = if(searchSize > 0) searchSize else 5
         var resultList = arrayListOf<SearchBook>()
         var concurrentCount = Math.max(searchSize * 2, 24)
-        limitConcurrent(concurrentCount, lastIndex + 1, userBookSourceList.size, {it->
-            lastIndex = it
-            var bookSource = userBookSourceList.get(it)
-            searchBookWithSource(bookSource, book, userNameSpace = userNameSpace)
-        }) {list, loopCount ->
-            // logger.info("list: {}", list)
-            list.forEach {
-                val bookList = it as? Collection<SearchBook>
-                bookList?.let {
-                    resultList.addAll(it)
-                }
+        SearchConcurrency.session(concurrentCount) { currentConcurrentCount ->
+            val fanOut = FanOut(currentConcurrentCount)
+            context.request().connection().closeHandler{
+                logger.info("客户端已断开链接，停止 searchBookSource")
+                fanOut.stop()
             }
-            if (isEnd || loopCount >= concurrentLoopCount) {
-                // 超过最大轮次，终止执行
-                false
-            } else {
-                resultList.size < searchSize
+            var searchedCount = 0
+            fanOut.run(lastIndex + 1, userBookSourceList.size, {
+                searchBookWithSource(userBookSourceList.get(it), book, userNameSpace = userNameSpace)
+            }) { index, bookList ->
+                searchedCount++
+                lastIndex = Math.max(lastIndex, index)
+                if (bookList != null && bookList.size > 0) {
+                    resultList.addAll(bookList)
+                }
+                // 超过最大搜索数量，终止执行
+                searchedCount < concurrentCount * concurrentLoopCount && resultList.size < searchSize
             }
         }
         saveBookSources(book, resultList, userNameSpace)
@@ -987,7 +946,7 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         if (refresh <= 0 && bookSourceList != null && bookSourceList.size() > 0) {
             try {
                 val lastBookSourceUrl = bookSourceList.getJsonObject(bookSourceList.size() - 1).getString("origin")
-                lastIndex = Math.max(lastIndex, getBookSourceBySourceURL(lastBookSourceUrl, userNameSpace, userBookSourceList).second)
+                lastIndex = Math.max(lastIndex, getBookSourceBySourceURL(lastBookSourceUrl, userNameSpace, bookSourceGroup).second)
             } catch(e: Exception) {
                 e.printStackTrace()
             }
@@ -1003,35 +962,25 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         var resultList = arrayListOf<SearchBook>()
         var concurrentCount = Math.max(searchSize * 2, 24)
         logger.info("searchBookMulti from lastIndex: {} concurrentCount: {} searchSize: {}", lastIndex, concurrentCount, searchSize)
-        var isEnd = false
-        context.request().connection().closeHandler{
-            logger.info("客户端已断开链接，停止 searchBookSourceSSE")
-            isEnd = true
-        }
-
-        limitConcurrent(concurrentCount, lastIndex + 1, userBookSourceList.size, {it->
-            lastIndex = it
-            var bookSource = userBookSourceList.get(it)
-            searchBookWithSource(bookSource, book, userNameSpace = userNameSpace)
-        }) {list, loopCount ->
-            // logger.info("list: {}", list)
-            val loopResult = arrayListOf<SearchBook>()
-            list.forEach {
-                val bookList = it as? Collection<SearchBook>
-                bookList?.let {
-                    resultList.addAll(it)
-                    loopResult.addAll(it)
-                }
-            }
-            // 返回本轮数据
-            response.write("data: " + jsonEncode(mapOf("lastIndex" to lastIndex, "data" to loopResult), false) + "\n\n")
-            logger.info("Loog: {} resultList.size: {}", loopCount, resultList.size)
-
-            if (isEnd || loopCount >= concurrentLoopCount) {
-                // 超过最大轮次，终止执行
-                false
-            } else {
-                resultList.size < searchSize
+        SearchConcurrency.session(concurrentCount) { currentConcurrentCount ->
+            val fanOut = FanOut(currentConcurrentCount)
+            context.request().connection().closeHandler{
+                logger.info("客户端已断开链接，停止 searchBookSourceSSE")
+                fanOut.stop()
+            }
+            var searchedCount = 0
+            fanOut.run(lastIndex + 1, userBookSourceList.size, {
+                searchBookWithSource(userBookSourceList.get(it), book, userNameSpace = userNameSpace)
+            }) { index, bookList ->
+                searchedCount++
+                lastIndex = Math.max(lastIndex, index)
+                if (bookList != null && bookList.size > 0) {
+                    resultList.addAll(bookList)
+                    // 返回该书源的数据
+                    response.write("data: " + jsonEncode(mapOf("lastIndex" to lastIndex, "data" to bookList), false) + "\n\n")
+                }
+                // 超过最大搜索数量，终止执行
+                searchedCount < concurrentCount * concurrentLoopCount && resultList.size < searchSize
             }
         }
         saveBookSources(book, resultList, userNameSpace)
@@ -1052,7 +1001,10 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             // val costTime = measureTimeMillis {
             try {
                 val start = System.currentTimeMillis()
-                var result = WebBook(bookSourceString, false).searchBook(book.name, 1)
+                // 书源并发已满且等待超时，跳过该书源
+                var result = SearchConcurrency.withSource(bookSource.bookSourceUrl) {
+                    WebBook(bookSourceString, false).searchBook(book.name, 1)
+                } ?: return@withContext
                 val end = System.currentTimeMillis()
                 if (result.size > 0) {
                     for (j in 0 until result.size) {
@@ -1066,11 +1018,10 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
                         }
                     }
                 }
+            } catch(e: CancellationException) {
+                // 搜索被停止
+                throw e
             } catch(e: Exception) {
-                // 标记为失败源
-                val info = mutableMapOf<String, Any>("sourceUrl" to bookSource.bookSourceUrl, "time" to System.currentTimeMillis(), "error" to e.toString())
-                addInvalidBookSource(bookSource.bookSourceUrl, info, userNameSpace)
-
                 e.printStackTrace()
             }
             // }
@@ -1115,26 +1066,22 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             // 刷新源
             var resultList = arrayListOf<SearchBook>()
             val concurrentCount = 16
-            val userBookSourceStringList = loadBookSourceStringList(userNameSpace)
-            limitConcurrent(concurrentCount, 0, bookSourceList.size(), {it ->
+            // 按原来的顺序返回
+            FanOut(concurrentCount, true).run(0, bookSourceList.size(), {
                 var searchBook = bookSourceList.getJsonObject(it).mapTo(SearchBook::class.java)
                 if (searchBook.origin.equals("loc_book")) {
                     arrayListOf(searchBook)
                 } else {
-                    var bookSource = getBookSourceStringBySourceURL(searchBook.origin, userNameSpace, userBookSourceStringList)
+                    var bookSource = getBookSourceStringBySourceURL(searchBook.origin, userNameSpace)
                     if (bookSource != null) {
                         searchBookWithSource(bookSource, book, userNameSpace = userNameSpace)
                     } else {
                         arrayListOf<SearchBook>()
                     }
                 }
-            }) {list, _->
-                // logger.info("list: {}", list)
-                list.forEach {
-                    val bookList = it as? Collection<SearchBook>
-                    bookList?.let {
-                        resultList.addAll(it)
-                    }
+            }) { _, bookList ->
+                bookList?.let {
+                    resultList.addAll(it)
                 }
                 true
             }
@@ -1199,6 +1146,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             return returnData.setErrorMsg("书籍链接不能为空")
         }
         var userNameSpace = getUserNameSpace(context)
+        // 先把阅读进度合并到书架
+        BookProgressJournal.compact(userNameSpace)
         var bookshelf: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookshelf"))
         if (bookshelf == null) {
             bookshelf = JsonArray()
@@ -1506,6 +1455,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         }
         var book = context.bodyAsJson.mapTo(Book::class.java)
         var userNameSpace = getUserNameSpace(context)
+        // 先把阅读进度合并到书架
+        BookProgressJournal.compact(userNameSpace)
         var bookshelf: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookshelf"))
         if (bookshelf == null) {
             bookshelf = JsonArray()
@@ -1535,6 +1486,7 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         // 删除书籍目录
         val localBookPath = File(getWorkDir("storage", "data", userNameSpace, book.name + "_" + book.author))
         localBookPath.deleteRecursively()
+        invalidateStorage(localBookPath)
 
         return returnData.setData("删除书籍成功")
     }
@@ -1547,6 +1499,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         val bookJsonArray = context.bodyAsJsonArray
 
         var userNameSpace = getUserNameSpace(context)
+        // 先把阅读进度合并到书架
+        BookProgressJournal.compact(userNameSpace)
         var bookshelf: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookshelf"))
         if (bookshelf == null) {
             bookshelf = JsonArray()
@@ -1574,6 +1528,7 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             // 删除书籍目录
             val localBookPath = File(getWorkDir("storage", "data", userNameSpace, book.name + "_" + book.author))
             localBookPath.deleteRecursively()
+            invalidateStorage(localBookPath)
         }
 
         saveUserStorage(userNameSpace, "bookshelf", bookshelf)
@@ -1746,13 +1701,16 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         }
         var bookList = arrayListOf<Book>()
         val concurrentCount = 16
-        val userBookSourceStringList = loadBookSourceStringList(userNameSpace)
         val mutex = Mutex()
-        limitConcurrent(concurrentCount, 0, bookshelf.size()) {
+        val progressMap = BookProgressJournal.getAllProgress(userNameSpace)
+        // 按书架顺序返回
+        FanOut(concurrentCount, true).run(0, bookshelf.size(), {
             var book = bookshelf.getJsonObject(it).mapTo(Book::class.java)
-            if (!book.isLocalBook() && book.canUpdate && refresh) {
+            BookProgressJournal.find(progressMap, book.bookUrl, book.name, book.author)?.applyTo(book)
+            // 熔断中的书源不刷新，保留已有的目录
+            if (!book.isLocalBook() && book.canUpdate && refresh && !SourceHealth.isOpen(book.origin)) {
                 try {
-                    var bookSource = getBookSourceStringBySourceURL(book.origin, userNameSpace, userBookSourceStringList)
+                    var bookSource = getBookSourceStringBySourceURL(book.origin, userNameSpace)
                     if (bookSource != null) {
                         withContext(Dispatchers.IO) {
                             var bookChapterList = getLocalChapterList(book, bookSource, refresh, userNameSpace, false, mutex)
@@ -1771,7 +1729,12 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
                     e.printStackTrace()
                 }
             }
-            bookList.add(book)
+            book
+        }) { _, book ->
+            book?.let {
+                bookList.add(it)
+            }
+            true
         }
         return bookList
     }
@@ -1779,9 +1742,25 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
 
     suspend fun getLocalChapterList(book: Book, bookSource: String, refresh: Boolean = false, userNameSpace: String, debugLog: Boolean = true, mutex: Mutex? = null): List<BookChapter> {
         val md5Encode = MD5Utils.md5Encode(book.bookUrl).toString()
-        var chapterList: JsonArray? = asJsonArray(getUserStorage(userNameSpace, book.name + "_" + book.author, md5Encode))
+        val chapterListFile = getChapterListFile(book, userNameSpace)
+        if (!refresh && !chapterListFile.exists()) {
+            // 把旧的 json 章节列表转换为二进制章节列表
+            var chapterList: JsonArray? = asJsonArray(getUserStorage(userNameSpace, book.name + "_" + book.author, md5Encode))
+            if (chapterList != null) {
+                var localChapterList = arrayListOf<BookChapter>()
+                for (i in 0 until chapterList.size()) {
+                    var _chapter = chapterList.getJsonObject(i).mapTo(BookChapter::class.java)
+                    localChapterList.add(_chapter)
+                }
+                chapterListFile.write(localChapterList)
+                val jsonFile = getStorageFile("data", userNameSpace, book.name + "_" + book.author, md5Encode)
+                jsonFile.delete()
+                invalidateStorage(jsonFile)
+                return localChapterList
+            }
+        }
 
-        if (chapterList == null || refresh) {
+        if (!chapterListFile.exists() || refresh) {
             var newChapterList: List<BookChapter>
             book.setRootDir(getWorkDir())
             book.setUserNameSpace(userNameSpace)
@@ -1796,30 +1775,21 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
                 }
                 newChapterList = LocalBook.getChapterList(book)
             } else {
-                try {
-                    newChapterList = WebBook(bookSource, debugLog).getChapterList(book)
-                } catch(e: Exception) {
-                    if (!bookSource.isNullOrEmpty()) {
-                        var bookSourceObject = asJsonObject(bookSource)?.mapTo(BookSource::class.java)
-                        if (bookSourceObject != null) {
-                            // 标记为失败源
-                            val info = mutableMapOf<String, Any>("sourceUrl" to bookSourceObject.bookSourceUrl, "time" to System.currentTimeMillis(), "error" to e.toString())
-                            addInvalidBookSource(bookSourceObject.bookSourceUrl, info, userNameSpace)
-                        }
-                    }
-                    throw e
-                }
+                newChapterList = WebBook(bookSource, debugLog).getChapterList(book)
             }
-            saveUserStorage(userNameSpace, getRelativePath(book.name + "_" + book.author, md5Encode), newChapterList)
+            // 已有章节没有变化时只追加新章节
+            chapterListFile.update(newChapterList)
             saveShelfBookLatestChapter(book, newChapterList, userNameSpace, mutex)
             return newChapterList
         }
-        var localChapterList = arrayListOf<BookChapter>()
-        for (i in 0 until chapterList.size()) {
-            var _chapter = chapterList.getJsonObject(i).mapTo(BookChapter::class.java)
-            localChapterList.add(_chapter)
-        }
-        return localChapterList
+        // 按需读取章节，不解析整个章节列表
+        return chapterListFile.asList()
+    }
+
+    fun getChapterListFile(book: Book, userNameSpace: String): ChapterListFile {
+        val md5Encode = MD5Utils.md5Encode(book.bookUrl).toString()
+        val jsonFile = getStorageFile("data", userNameSpace, book.name + "_" + book.author, md5Encode)
+        return ChapterListFile(File(jsonFile.parentFile, md5Encode + ".chapters"))
     }
 
     suspend fun getBookSourceString(context: RoutingContext, sourceUrl: String = ""): String? {
@@ -1847,78 +1817,40 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
     }
 
     fun loadBookSourceStringList(userNameSpace: String, bookSourceGroup: String = ""): List<String> {
-        var bookSourceList: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookSource"))
-        var userBookSourceList = arrayListOf<String>()
-        if (bookSourceList != null) {
-            for (i in 0 until bookSourceList.size()) {
-                var isAdd = true
-                if (!bookSourceGroup.isEmpty()) {
-                    val bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-                    if (!bookSource.bookSourceGroup.equals(bookSourceGroup)) {
-                        isAdd = false
-                    }
-                }
-                if (isAdd) {
-                    userBookSourceList.add(bookSourceList.getJsonObject(i).toString())
-                }
-            }
-        }
-        return userBookSourceList
+        return BookSourceRegistry.getBookSourceStringList(userNameSpace, bookSourceGroup)
     }
 
-    fun getBookSourceStringBySourceURL(sourceUrl: String, userNameSpace: String, bookSourceList: List<String>? = null): String? {
-        var bookSourcePair = getBookSourceBySourceURL(sourceUrl, userNameSpace, bookSourceList)
+    fun getBookSourceStringBySourceURL(sourceUrl: String, userNameSpace: String): String? {
+        var bookSourcePair = getBookSourceBySourceURL(sourceUrl, userNameSpace)
         return bookSourcePair.first
     }
 
-    fun getBookSourceBySourceURL(sourceUrl: String, userNameSpace: String, bookSourceList: List<String>? = null): Pair<String?, Int> {
-        var bookSourceString: String? = null
-        var index: Int = -1
+    /**
+     * 查找用户书源，返回书源和书源在(分组)列表中的位置
+     */
+    fun getBookSourceBySourceURL(sourceUrl: String, userNameSpace: String, bookSourceGroup: String = ""): Pair<String?, Int> {
         if (sourceUrl.isNullOrEmpty()) {
-            return Pair(bookSourceString, index)
-        }
-        // 优先查找用户的书源
-        var userBookSourceList = bookSourceList ?: loadBookSourceStringList(userNameSpace)
-        for (i in 0 until userBookSourceList.size) {
-            val sourceMap = userBookSourceList.get(i).toMap()
-            if (sourceUrl.equals(sourceMap.get("bookSourceUrl") as String)) {
-                bookSourceString = userBookSourceList.get(i)
-                index = i
-                break;
-            }
+            return Pair(null, -1)
         }
-        return Pair(bookSourceString, index)
+        return BookSourceRegistry.getBookSourceString(userNameSpace, sourceUrl, bookSourceGroup)
     }
 
     fun getShelfBookByURL(url: String, userNameSpace: String): Book? {
         if (url.isEmpty()) {
             return null
         }
-        var bookshelf: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookshelf"))
-        if (bookshelf == null) {
+        var _book = BookShelfIndex.getBookByUrl(userNameSpace, url)
+        if (_book == null) {
             return null
         }
-        for (i in 0 until bookshelf.size()) {
-            var _book = bookshelf.getJsonObject(i).mapTo(Book::class.java)
-            if (_book.bookUrl.equals(url)) {
-                _book.setRootDir(getWorkDir())
-                _book.setUserNameSpace(userNameSpace)
-                return _book
-            }
-        }
-        return null
+        _book.setRootDir(getWorkDir())
+        _book.setUserNameSpace(userNameSpace)
+        return _book
     }
 
     fun saveShelfBookProgress(book: Book, bookChapter: BookChapter, userNameSpace: String) {
-        editShelfBook(book, userNameSpace) { existBook ->
-            existBook.durChapterIndex = bookChapter.index
-            existBook.durChapterTitle = bookChapter.title
-            existBook.durChapterTime = System.currentTimeMillis()
-
-            // logger.info("saveShelfBookProgress: {}", existBook)
-
-            existBook
-        }
+        // 只追加进度日志，由后台合并到书架
+        BookProgressJournal.append(userNameSpace, book.bookUrl, bookChapter.index, bookChapter.title, book.name, book.author)
     }
 
     suspend fun saveShelfBookLatestChapter(book: Book, bookChapterList: List<BookChapter>, userNameSpace: String, mutex: Mutex? = null) {
@@ -1945,36 +1877,8 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
     }
 
     fun editShelfBook(book: Book, userNameSpace: String, handler: (Book)->Book) {
-        var bookshelf: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookshelf"))
-        if (bookshelf == null) {
-            bookshelf = JsonArray()
-        }
-        // 遍历判断书本是否存在
-        var existIndex: Int = -1
-        for (i in 0 until bookshelf.size()) {
-            var _book = bookshelf.getJsonObject(i).mapTo(Book::class.java)
-            // 根据书籍链接查找
-            if (book.bookUrl.isNotEmpty() && _book.bookUrl.equals(book.bookUrl)) {
-                existIndex = i
-                break;
-            }
-            // 根据作者和书名查找
-            if (book.name.isNotEmpty() && _book.name.equals(book.name) && book.author.isNotEmpty() && _book.author.equals(book.author)) {
-                existIndex = i
-                break;
-            }
-        }
-        if (existIndex >= 0) {
-            var bookList = bookshelf.getList()
-            var existBook = bookshelf.getJsonObject(existIndex).mapTo(Book::class.java)
-            existBook = handler(existBook)
-
-            // logger.info("editShelfBook: {}", existBook)
-
-            bookList.set(existIndex, JsonObject.mapFrom(existBook))
-            bookshelf = JsonArray(bookList)
-            saveUserStorage(userNameSpace, "bookshelf", bookshelf)
-        }
+        // 根据书籍链接或作者和书名查找，只修改对应的书籍
+        BookShelfIndex.editBook(userNameSpace, book, handler)
     }
 
     fun saveBookSources(book: Book, sourceList: List<SearchBook>, userNameSpace: String, replace: Boolean = false) {
@@ -2108,47 +2012,17 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             descDirFile.deleteRecursively()
             if (zipFile.unzip(descDir)) {
                 // 同步 书源
-                val bookSourceFile = File(descDir + File.separator + "bookSource.json")
-                if (bookSourceFile.exists()) {
-                    val userBookSourceFile = File(getWorkDir("storage", "data", userNameSpace, "bookSource.json"))
-                    userBookSourceFile.deleteRecursively()
-                    bookSourceFile.renameTo(userBookSourceFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "bookSource")
                 // 同步 书架
-                val bookshelfFile = File(descDir + File.separator + "bookshelf.json")
-                if (bookshelfFile.exists()) {
-                    val userBookSourceFile = File(getWorkDir("storage", "data", userNameSpace, "bookshelf.json"))
-                    userBookSourceFile.deleteRecursively()
-                    bookshelfFile.renameTo(userBookSourceFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "bookshelf")
                 // 同步 书籍分组
-                val bookGroupFile = File(descDir + File.separator + "bookGroup.json")
-                if (bookGroupFile.exists()) {
-                    val userBookGroupFile = File(getWorkDir("storage", "data", userNameSpace, "bookGroup.json"))
-                    userBookGroupFile.deleteRecursively()
-                    bookGroupFile.renameTo(userBookGroupFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "bookGroup")
                 // 同步 RSS订阅
-                val rssSourcesFile = File(descDir + File.separator + "rssSources.json")
-                if (rssSourcesFile.exists()) {
-                    val userRssSourcesFile = File(getWorkDir("storage", "data", userNameSpace, "rssSources.json"))
-                    userRssSourcesFile.deleteRecursively()
-                    rssSourcesFile.renameTo(userRssSourcesFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "rssSources")
                 // 同步 替换规则
-                val replaceRuleFile = File(descDir + File.separator + "replaceRule.json")
-                if (replaceRuleFile.exists()) {
-                    val userReplaceRuleFile = File(getWorkDir("storage", "data", userNameSpace, "replaceRule.json"))
-                    userReplaceRuleFile.deleteRecursively()
-                    replaceRuleFile.renameTo(userReplaceRuleFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "replaceRule")
                 // 同步 书签
-                val bookmarkFile = File(descDir + File.separator + "bookmark.json")
-                if (bookmarkFile.exists()) {
-                    val userBookmarkFile = File(getWorkDir("storage", "data", userNameSpace, "bookmark.json"))
-                    userBookmarkFile.deleteRecursively()
-                    bookmarkFile.renameTo(userBookmarkFile)
-                }
+                restoreUserStorageFromFile(userNameSpace, descDir, "bookmark")
                 // 同步阅读进度
                 var bookProgressDir = File(userHome + File.separator + "bookProgress")
                 if (!bookProgressDir.exists()) {
@@ -2181,48 +2055,21 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
             }
             var zipFile = File(latestZipFilePath)
             if (zipFile.unzip(descDir)) {
-                // 同步 书源
-                val userBookSourceFile = File(getWorkDir("storage", "data", userNameSpace, "bookSource.json"))
-                if (userBookSourceFile.exists()) {
-                    val bookSourceFile = File(descDir + File.separator + "bookSource.json")
-                    bookSourceFile.deleteRecursively()
-                    userBookSourceFile.copyRecursively(bookSourceFile)
-                }
+                // 同步 书源，备份合并默认书源后的完整书源列表
+                val bookSourceFile = File(descDir + File.separator + "bookSource.json")
+                bookSourceFile.deleteRecursively()
+                bookSourceFile.writeText(BookSourceRegistry.getBookSourceList(userNameSpace).encode())
                 // 同步 书架
-                val userBookshelfFile = File(getWorkDir("storage", "data", userNameSpace, "bookshelf.json"))
-                if (userBookshelfFile.exists()) {
-                    val bookshelfFile = File(descDir + File.separator + "bookshelf.json")
-                    bookshelfFile.deleteRecursively()
-                    userBookshelfFile.copyRecursively(bookshelfFile)
-                }
+                BookProgressJournal.compact(userNameSpace)
+                backupUserStorageToFile(userNameSpace, descDir, "bookshelf")
                 // 同步 书籍分组
-                val userBookGroupFile = File(getWorkDir("storage", "data", userNameSpace, "bookGroup.json"))
-                if (userBookGroupFile.exists()) {
-                    val bookGroupFile = File(descDir + File.separator + "bookGroup.json")
-                    bookGroupFile.deleteRecursively()
-                    userBookGroupFile.renameTo(bookGroupFile)
-                }
+                backupUserStorageToFile(userNameSpace, descDir, "bookGroup")
                 // 同步 RSS订阅
-                val userRssSourcesFile = File(getWorkDir("storage", "data", userNameSpace, "rssSources.json"))
-                if (userRssSourcesFile.exists()) {
-                    val rssSourcesFile = File(descDir + File.separator + "rssSources.json")
-                    rssSourcesFile.deleteRecursively()
-                    userRssSourcesFile.renameTo(rssSourcesFile)
-                }
+                backupUserStorageToFile(userNameSpace, descDir, "rssSources")
                 // 同步 替换规则
-                val userReplaceRuleFile = File(getWorkDir("storage", "data", userNameSpace, "replaceRule.json"))
-                if (userReplaceRuleFile.exists()) {
-                    val replaceRuleFile = File(descDir + File.separator + "replaceRule.json")
-                    replaceRuleFile.deleteRecursively()
-                    userReplaceRuleFile.renameTo(replaceRuleFile)
-                }
+                backupUserStorageToFile(userNameSpace, descDir, "replaceRule")
                 // 同步 书签
-                val userBookmarkFile = File(getWorkDir("storage", "data", userNameSpace, "bookmark.json"))
-                if (userBookmarkFile.exists()) {
-                    val bookmarkFile = File(descDir + File.separator + "bookmark.json")
-                    bookmarkFile.deleteRecursively()
-                    userBookmarkFile.renameTo(bookmarkFile)
-                }
+                backupUserStorageToFile(userNameSpace, descDir, "bookmark")
                 // 压缩
                 val today = SimpleDateFormat("yyyy-MM-dd").format(System.currentTimeMillis())
                 return descDirFile.zip(legadoHome + File.separator + "backup" + today + ".zip")
@@ -2235,6 +2082,31 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         return false;
     }
 
+    /**
+     * 用备份文件覆盖用户数据，通过存储层写入，兼容不同的存储引擎
+     */
+    fun restoreUserStorageFromFile(userNameSpace: String, backupDir: String, name: String) {
+        val backupFile = File(backupDir + File.separator + name + ".json")
+        if (backupFile.exists()) {
+            val list = asJsonArray(backupFile.readText())
+            if (list != null) {
+                saveUserStorage(userNameSpace, name, list)
+            }
+        }
+    }
+
+    /**
+     * 把用户数据写入备份目录
+     */
+    fun backupUserStorageToFile(userNameSpace: String, backupDir: String, name: String) {
+        val content = getUserStorage(userNameSpace, name)
+        if (content != null) {
+            val backupFile = File(backupDir + File.separator + name + ".json")
+            backupFile.deleteRecursively()
+            backupFile.writeText(content)
+        }
+    }
+
     suspend fun getLastBackFileFromWebdav(userNameSpace: String): String? {
         val userHome = getUserWebdavHome(userNameSpace)
         var legadoHome = File(userHome + File.separator + "legado")
@@ -2634,32 +2506,33 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         if (refresh <= 0) {
             cachedChapterContentSet = getCachedChapterContentSet(bookInfo, userNameSpace)
         }
-        val localCacheDir = getChapterCacheDir(bookInfo, userNameSpace)
-        var isEnd = false
+        val contentStore = getChapterContentStore(bookInfo, userNameSpace)
         var successCount = 0;
         var failedCount = 0;
 
+        concurrentCount = if(concurrentCount > 0) concurrentCount else 24
+        logger.info("cacheBookSSE concurrentCount: {} refresh: {}", concurrentCount, refresh)
+        val fanOut = FanOut(concurrentCount)
         context.request().connection().closeHandler{
             logger.info("客户端已断开链接，停止 cacheBookSSE")
-            isEnd = true
+            fanOut.stop()
         }
-
-        concurrentCount = if(concurrentCount > 0) concurrentCount else 24
-        logger.info("cacheBookSSE concurrentCount: {} refresh: {}", concurrentCount, refresh)
-        limitConcurrent(concurrentCount, 0, chapterList.size, {it->
-            if (!cachedChapterContentSet.contains(it)) {
+        fanOut.run(0, chapterList.size, {
+            if (cachedChapterContentSet.contains(it)) {
+                // 已缓存
+                false
+            } else {
                 val chapterIndex = it
                 var chapterInfo = chapterList.get(it)
-                try {
-                    var nextChapterUrl: String? = null
-                    if (chapterIndex + 1 < chapterList.size) {
-                        var nextChapterInfo = chapterList.get(chapterIndex + 1)
-                        nextChapterUrl = nextChapterInfo.url
-                    }
-                    var content = WebBook(bookSource, appConfig.debugLog).getBookContent(bookInfo, chapterInfo, nextChapterUrl)
-                    var chapterCacheFile = File(localCacheDir.absolutePath + File.separator + chapterIndex + ".txt")
-                    chapterCacheFile.writeText(content)
-                    // 保存图片
+                var nextChapterUrl: String? = null
+                if (chapterIndex + 1 < chapterList.size) {
+                    var nextChapterInfo = chapterList.get(chapterIndex + 1)
+                    nextChapterUrl = nextChapterInfo.url
+                }
+                var content = WebBook(bookSource, appConfig.debugLog).getBookContent(bookInfo, chapterInfo, nextChapterUrl)
+                contentStore.write(chapterIndex, content)
+                // 保存图片，在任务的子协程中下载，停止缓存时一起取消
+                coroutineScope {
                     BookHelp.saveImages(
                         this,
                         BookSource.fromJson(bookSource).getOrNull() ?: BookSource(),
@@ -2667,26 +2540,26 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
                         chapterInfo,
                         content
                     )
-                    successCount++;
-                    cachedChapterContentSet.add(chapterIndex)
-                } catch(e: Exception) {
-                    isEnd = true
-                    failedCount++
                 }
+                true
             }
-            it
-        }) {list, loopCount ->
-            if (isEnd) {
+        }) { chapterIndex, cached ->
+            if (cached == null) {
+                // 缓存失败，终止执行
+                failedCount++
                 false
             } else {
-                // 返回本轮数据
-                val result = mapOf(
-                    "cachedCount" to cachedChapterContentSet.size,
-                    "successCount" to successCount,
-                    "failedCount" to failedCount
-                )
-                response.write("data: " + jsonEncode(result, false) + "\n\n")
-                logger.info("Loog: {} list.size: {} result: {}", loopCount, list.size, result)
+                if (cached) {
+                    successCount++
+                    cachedChapterContentSet.add(chapterIndex)
+                    // 返回缓存进度
+                    val result = mapOf(
+                        "cachedCount" to cachedChapterContentSet.size,
+                        "successCount" to successCount,
+                        "failedCount" to failedCount
+                    )
+                    response.write("data: " + jsonEncode(result, false) + "\n\n")
+                }
                 true
             }
         }
@@ -2739,15 +2612,12 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
         return localCacheDir
     }
 
+    fun getChapterContentStore(bookInfo: Book, userNameSpace: String): ChapterContentStore {
+        return ChapterContentStore.get(getChapterCacheDir(bookInfo, userNameSpace))
+    }
+
     fun getCachedChapterContentSet(bookInfo: Book, userNameSpace: String): MutableSet<Int> {
-        val localCacheDir = getChapterCacheDir(bookInfo, userNameSpace)
-        val cachedChapterContentSet = mutableSetOf<Int>()
-        localCacheDir.listFiles().forEach{
-            if (!it.name.startsWith(".") && it.name.endsWith(".txt")) {
-                cachedChapterContentSet.add(it.name.replace(".txt", "").toInt())
-            }
-        }
-        return cachedChapterContentSet
+        return getChapterContentStore(bookInfo, userNameSpace).getCachedIndexSet()
     }
 
     suspend fun getShelfBookWithCacheInfo(context: RoutingContext): ReturnData {
@@ -2866,16 +2736,16 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
 
         append(qy, null)
         var chapterList = getLocalChapterList(book, bookSourceString, false, userNameSpace)
-        val localCacheDir = getChapterCacheDir(book, userNameSpace)
+        val contentStore = getChapterContentStore(book, userNameSpace)
 
         chapterList.forEachIndexed { index, chapter ->
-            var chapterCacheFile = File(localCacheDir.absolutePath + File.separator + index + ".txt")
+            var cachedContent = contentStore.read(index)
             var content = ""
             if (!appConfig.exportNoChapterName) {
                 content += chapter.title + "\n"
             }
-            if (chapterCacheFile.exists()) {
-                content += chapterCacheFile.readText() + "\n"
+            if (cachedContent != null) {
+                content += cachedContent + "\n"
             } else {
                 content += "暂无缓存内容。\n"
             }
@@ -3030,16 +2900,16 @@ class BookController(coroutineContext: CoroutineContext): BaseController(corouti
     ) {
         //正文
         var chapterList = getLocalChapterList(book, bookSourceString, false, userNameSpace)
-        val localCacheDir = getChapterCacheDir(book, userNameSpace)
+        val contentStore = getChapterContentStore(book, userNameSpace)
 
         chapterList.forEachIndexed { index, chapter ->
-            var chapterCacheFile = File(localCacheDir.absolutePath + File.separator + index + ".txt")
+            var cachedContent = contentStore.read(index)
             var content = ""
             if (!appConfig.exportNoChapterName) {
                 content += chapter.title + "\n"
             }
-            if (chapterCacheFile.exists()) {
-                content += chapterCacheFile.readText() + "\n"
+            if (cachedContent != null) {
+                content += cachedContent + "\n"
             } else {
                 content += "暂无缓存内容。\n"
             }
@@ -20,6 +20,9 @@ import com.htmake.reader.utils.error
 import com.htmake.reader.utils.success
 import com.htmake.reader.utils.getStorage
 import com.htmake.reader.utils.saveStorage
+import com.htmake.reader.storage.BookSourceRegistry
+import com.htmake.reader.storage.SourceImporter
+import io.legado.app.help.SourceHealth
 import com.htmake.reader.utils.asJsonArray
 import com.htmake.reader.utils.asJsonObject
 import com.htmake.reader.utils.toDataClass
@@ -46,6 +49,7 @@ import io.legado.app.utils.MD5Utils
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.URL;
+import java.io.ByteArrayInputStream
 import java.util.UUID;
 import io.vertx.ext.web.client.WebClient
 import org.springframework.beans.factory.annotation.Autowired
@@ -77,17 +81,11 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         webClient = SpringContextUtils.getBean("webClient", WebClient::class.java)
     }
 
+    /**
+     * 用户书源，合并了默认书源和用户对书源的修改
+     */
     suspend fun getUserBookSourceJson(userNameSpace: String): JsonArray? {
-        var bookSourceList: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "bookSource"))
-        if (bookSourceList == null && !userNameSpace.equals("default")) {
-            // 用户书源文件不存在，拷贝系统书源
-            var systemBookSourceList: JsonArray? = asJsonArray(getUserStorage("default", "bookSource"))
-            if (systemBookSourceList != null) {
-                saveUserStorage(userNameSpace, "bookSource", systemBookSourceList.getList())
-                bookSourceList = systemBookSourceList
-            }
-        }
-        return bookSourceList
+        return BookSourceRegistry.getBookSourceList(userNameSpace)
     }
 
     suspend fun saveBookSource(context: RoutingContext): ReturnData {
@@ -102,29 +100,8 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         // val bookSource = context.bodyAsJson.mapTo(BookSource::class.java)
 
         var userNameSpace = getUserNameSpace(context)
-        var bookSourceList = getUserBookSourceJson(userNameSpace)
-        if (bookSourceList == null) {
-            bookSourceList = JsonArray()
-        }
-        // 遍历判断书本是否存在
-        var existIndex: Int = -1
-        for (i in 0 until bookSourceList.size()) {
-            var _bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-            if (_bookSource.bookSourceUrl.equals(bookSource.bookSourceUrl)) {
-                existIndex = i
-                break;
-            }
-        }
-        if (existIndex >= 0) {
-            var sourceList = bookSourceList.getList()
-            sourceList.set(existIndex, JsonObject.mapFrom(bookSource))
-            bookSourceList = JsonArray(sourceList)
-        } else {
-            bookSourceList.add(JsonObject.mapFrom(bookSource))
-        }
-
-        // logger.info("bookSourceList: {}", bookSourceList)
-        saveUserStorage(userNameSpace, "bookSource", bookSourceList)
+        // 根据书源链接替换或新增
+        BookSourceRegistry.saveBookSources(userNameSpace, listOf(bookSource))
         return returnData.setData("")
     }
 
@@ -133,44 +110,28 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         if (!checkAuth(context)) {
             return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
         }
-        val bookSourceJsonArray = context.bodyAsJsonArray
-        if (bookSourceJsonArray == null) {
+        val body = context.body
+        if (body == null || body.length() == 0) {
             return returnData.setErrorMsg("参数错误")
         }
         var userNameSpace = getUserNameSpace(context)
-        var bookSourceList = getUserBookSourceJson(userNameSpace)
-        if (bookSourceList == null) {
-            bookSourceList = JsonArray()
-        }
-        for (k in 0 until bookSourceJsonArray.size()) {
-            val bookSource = BookSource.fromJson(bookSourceJsonArray.getJsonObject(k).toString()).getOrNull()
-            if (bookSource == null) {
-                continue
-            }
-            // var bookSource = bookSourceJsonArray.getJsonObject(k).mapTo(BookSource::class.java)
-            // 遍历判断书本是否存在
-            var existIndex: Int = -1
-            for (i in 0 until bookSourceList!!.size()) {
-                var _bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-                if (_bookSource.bookSourceUrl.equals(bookSource.bookSourceUrl)) {
-                    existIndex = i
-                    break;
-                }
-            }
-            if (existIndex >= 0) {
-                var sourceList = bookSourceList.getList()
-                sourceList.set(existIndex, JsonObject.mapFrom(bookSource))
-                bookSourceList = JsonArray(sourceList)
-            } else {
-                bookSourceList.add(JsonObject.mapFrom(bookSource))
+        // 逐个解析书源，分批根据书源链接替换或新增
+        try {
+            SourceImporter(ByteArrayInputStream(body.bytes)).use {
+                it.importBookSources(userNameSpace)
             }
+        } catch (e: Exception) {
+            return returnData.setErrorMsg("参数错误")
         }
-
-        // logger.info("bookSourceList: {}", bookSourceList)
-        saveUserStorage(userNameSpace, "bookSource", bookSourceList!!)
         return returnData.setData("")
     }
 
+    suspend fun importBookSourcesSSE(context: RoutingContext) {
+        importSourcesSSE(context) { importer, userNameSpace, onProgress ->
+            importer.importBookSources(userNameSpace, onProgress)
+        }
+    }
+
     suspend fun getBookSource(context: RoutingContext): ReturnData {
         val returnData = ReturnData()
         checkAuth(context)
@@ -187,24 +148,12 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         }
 
         var userNameSpace = getUserNameSpace(context)
-        var bookSourceList = getUserBookSourceJson(userNameSpace)
-        if (bookSourceList == null) {
-            bookSourceList = JsonArray()
-        }
-        // 遍历判断书本是否存在
-        var existIndex: Int = -1
-        for (i in 0 until bookSourceList.size()) {
-            var _bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-            if (_bookSource.bookSourceUrl.equals(bookSourceUrl)) {
-                existIndex = i
-                break;
-            }
-        }
-        if (existIndex < 0) {
+        var bookSourceString = BookSourceRegistry.getBookSourceString(userNameSpace, bookSourceUrl).first
+        if (bookSourceString == null) {
             return returnData.setErrorMsg("书源信息不存在")
         }
 
-        return returnData.setData(bookSourceList.getJsonObject(existIndex).map)
+        return returnData.setData(JsonObject(bookSourceString).map)
     }
 
     suspend fun getBookSources(context: RoutingContext): ReturnData {
@@ -247,25 +196,7 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         val bookSource = context.bodyAsJson.mapTo(BookSource::class.java)
 
         var userNameSpace = getUserNameSpace(context)
-        var bookSourceList = getUserBookSourceJson(userNameSpace)
-        if (bookSourceList == null) {
-            bookSourceList = JsonArray()
-        }
-        // 遍历判断书本是否存在
-        var existIndex: Int = -1
-        for (i in 0 until bookSourceList.size()) {
-            var _bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-            if (_bookSource.bookSourceUrl.equals(bookSource.bookSourceUrl)) {
-                existIndex = i
-                break;
-            }
-        }
-        if (existIndex >= 0) {
-            bookSourceList.remove(existIndex)
-        }
-
-        // logger.info("bookSourceList: {}", bookSourceList)
-        saveUserStorage(userNameSpace, "bookSource", bookSourceList)
+        BookSourceRegistry.deleteBookSources(userNameSpace, listOf(bookSource.bookSourceUrl))
         return returnData.setData("")
     }
 
@@ -277,28 +208,12 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         val bookSourceJsonArray = context.bodyAsJsonArray
 
         var userNameSpace = getUserNameSpace(context)
-        var bookSourceList = getUserBookSourceJson(userNameSpace)
-        if (bookSourceList == null) {
-            bookSourceList = JsonArray()
-        }
+        var bookSourceUrlList = arrayListOf<String>()
         for (k in 0 until bookSourceJsonArray.size()) {
             var bookSource = bookSourceJsonArray.getJsonObject(k).mapTo(BookSource::class.java)
-            // 遍历判断书本是否存在
-            var existIndex: Int = -1
-            for (i in 0 until bookSourceList.size()) {
-                var _bookSource = bookSourceList.getJsonObject(i).mapTo(BookSource::class.java)
-                if (_bookSource.bookSourceUrl.equals(bookSource.bookSourceUrl)) {
-                    existIndex = i
-                    break;
-                }
-            }
-            if (existIndex >= 0) {
-                bookSourceList.remove(existIndex)
-            }
+            bookSourceUrlList.add(bookSource.bookSourceUrl)
         }
-
-        // logger.info("bookSourceList: {}", bookSourceList)
-        saveUserStorage(userNameSpace, "bookSource", bookSourceList)
+        BookSourceRegistry.deleteBookSources(userNameSpace, bookSourceUrlList)
         return returnData.setData("")
     }
 
@@ -308,7 +223,8 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
             return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
         }
         var userNameSpace = getUserNameSpace(context)
-        saveUserStorage(userNameSpace, "bookSource", JsonArray())
+        val bookSourceUrlList = BookSourceRegistry.getBookSourceUrlList(userNameSpace)
+        BookSourceRegistry.deleteBookSources(userNameSpace, bookSourceUrlList)
         return returnData.setData("")
     }
 
@@ -321,8 +237,8 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
             return returnData.setData("NEED_SECURE_KEY").setErrorMsg("请输入管理密码")
         }
         var username = context.bodyAsJson.getString("username")
-        var bookSourceList: JsonArray? = asJsonArray(getUserStorage(username, "bookSource"))
-        if (bookSourceList == null) {
+        var bookSourceList = BookSourceRegistry.getBookSourceList(username)
+        if (bookSourceList.isEmpty) {
             return returnData.setErrorMsg("用户书源不存在")
         }
 
@@ -386,11 +302,8 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
         val userJsonArray = context.bodyAsJsonArray
         for (i in 0 until userJsonArray.size()) {
             var username = userJsonArray.getString(i)
-            var userBookSourceFile = File(getWorkDir("storage", "data", username, "bookSource.json"))
-            // 删除用户书源文件，恢复默认书源
-            if (userBookSourceFile.exists()) {
-                userBookSourceFile.deleteRecursively()
-            }
+            // 删除用户对书源的修改，恢复默认书源
+            BookSourceRegistry.resetBookSources(username)
         }
         return returnData.setData("删除书源成功")
     }
@@ -401,11 +314,42 @@ class BookSourceController(coroutineContext: CoroutineContext): BaseController(c
             return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
         }
         var userNameSpace = getUserNameSpace(context)
-        var userBookSourceFile = File(getWorkDir("storage", "data", userNameSpace, "bookSource.json"))
-        // 删除用户书源文件，恢复默认书源
-        if (userBookSourceFile.exists()) {
-            userBookSourceFile.deleteRecursively()
+        // 删除用户对书源的修改，恢复默认书源
+        BookSourceRegistry.resetBookSources(userNameSpace)
+        return returnData.setData("")
+    }
+
+    suspend fun getSourceHealth(context: RoutingContext): ReturnData {
+        val returnData = ReturnData()
+        if (!checkAuth(context)) {
+            return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
+        }
+        var sourceUrl: String
+        if (context.request().method() == HttpMethod.POST) {
+            // post 请求
+            sourceUrl = context.bodyAsJson.getString("url", "")
+        } else {
+            // get 请求
+            sourceUrl = context.queryParam("url").firstOrNull() ?: ""
+        }
+        if (!sourceUrl.isNullOrEmpty()) {
+            return returnData.setData(SourceHealth.getHealthInfo(sourceUrl) ?: mapOf("sourceUrl" to sourceUrl, "state" to SourceHealth.State.CLOSED.name))
+        }
+        var userNameSpace = getUserNameSpace(context)
+        val sourceUrls = BookSourceRegistry.getBookSourceUrlList(userNameSpace)
+        return returnData.setData(SourceHealth.getHealthList(sourceUrls))
+    }
+
+    suspend fun resetSourceHealth(context: RoutingContext): ReturnData {
+        val returnData = ReturnData()
+        if (!checkAuth(context)) {
+            return returnData.setData("NEED_LOGIN").setErrorMsg("请登录后使用")
+        }
+        val sourceUrl = context.bodyAsJson.getString("url", "")
+        if (sourceUrl.isNullOrEmpty()) {
+            return returnData.setErrorMsg("请输入书源链接")
         }
+        SourceHealth.reset(sourceUrl)
         return returnData.setData("")
     }
-}
\ No newline at end of file
+}
@@ -35,6 +35,7 @@ import com.htmake.reader.utils.unzip
 import com.htmake.reader.utils.zip
 import com.htmake.reader.utils.jsonEncode
 import com.htmake.reader.utils.getRelativePath
+import com.htmake.reader.storage.SourceImporter
 import com.htmake.reader.verticle.RestVerticle
 import com.htmake.reader.SpringEvent
 import org.springframework.stereotype.Component
@@ -136,10 +137,7 @@ class RssSourceController(coroutineContext: CoroutineContext): BaseController(co
             return returnData.setErrorMsg("参数错误")
         }
         var userNameSpace = getUserNameSpace(context)
-        var rssSourceList: JsonArray? = asJsonArray(getUserStorage(userNameSpace, "rssSources"))
-        if (rssSourceList == null) {
-            rssSourceList = JsonArray()
-        }
+        var rssSourceList = arrayListOf<RssSource>()
         for (k in 0 until rssSourceJsonArray.size()) {
             var rssSource = rssSourceJsonArray.getJsonObject(k).mapTo(RssSource::class.java)
             if (rssSource.sourceUrl.isEmpty()) {
@@ -148,30 +146,19 @@ class RssSourceController(coroutineContext: CoroutineContext): BaseController(co
             if (rssSource.sourceName.isEmpty()) {
                 continue
             }
-            // 遍历判断是否存在
-            var existIndex: Int = -1
-            for (i in 0 until rssSourceList!!.size()) {
-                var _rssSource = rssSourceList.getJsonObject(i).mapTo(RssSource::class.java)
-                if (_rssSource.sourceUrl.equals(rssSource.sourceUrl)) {
-                    existIndex = i
-                    break;
-                }
-            }
-            if (existIndex >= 0) {
-                var list = rssSourceList.getList()
-                list.set(existIndex, JsonObject.mapFrom(rssSource))
-                rssSourceList = JsonArray(list)
-            } else {
-                // 新增rss源
-                rssSourceList.add(JsonObject.mapFrom(rssSource))
-            }
+            rssSourceList.add(rssSource)
         }
-
-        // logger.info("rssSourceList: {}", rssSourceList)
-        saveUserStorage(userNameSpace, "rssSources", rssSourceList!!)
+        // 根据链接替换或新增
+        SourceImporter.saveRssSources(userNameSpace, rssSourceList)
         return returnData.setData("")
     }
 
+    suspend fun importRssSourcesSSE(context: RoutingContext) {
+        importSourcesSSE(context) { importer, userNameSpace, onProgress ->
+            importer.importRssSources(userNameSpace, onProgress)
+        }
+    }
+
 
     suspend fun deleteRssSource(context: RoutingContext): ReturnData {
         val returnData = ReturnData()
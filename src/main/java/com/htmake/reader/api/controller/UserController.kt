@@ -20,6 +20,7 @@ import com.htmake.reader.utils.error
 import com.htmake.reader.utils.success
 import com.htmake.reader.utils.getStorage
 import com.htmake.reader.utils.saveStorage
+import com.htmake.reader.utils.invalidateStorage
 import com.htmake.reader.utils.asJsonArray
 import com.htmake.reader.utils.asJsonObject
 import com.htmake.reader.utils.toDataClass
@@ -359,6 +360,7 @@ class UserController(coroutineContext: CoroutineContext): BaseController(corouti
                     if (userHome.exists()) {
                         userHome.deleteRecursively()
                     }
+                    invalidateStorage(userHome)
                 }
             }
             userMap = userMapJson.map as MutableMap<String, MutableMap<String, Any>>
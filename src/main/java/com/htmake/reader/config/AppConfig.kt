@@ -18,6 +18,40 @@ class AppConfig {
     var userBookLimit = 200    // 用户书籍上限
     var debugLog = false  // 调试日志
     var autoClearInactiveUser = 0  // 自动清理不活跃用户
+    var storageCache = true  // 存储文件缓存在内存中并延迟写入
+    var storageFlushDelay = 1000L  // 延迟写入时间(ms)
+    var storageCacheSize = 200  // 存储缓存上限(MB)
+    var storageEngine = "file"  // 用户数据存储引擎 file/h2
+    var httpCache = false  // 是否缓存书源网络请求
+    var httpCacheSize = 100  // 网络请求缓存上限(MB)
+    var httpCacheSearchTtl = 300L  // 搜索页缓存时间(s)
+    var httpCacheExploreTtl = 1800L  // 发现页缓存时间(s)
+    var httpCacheTocTtl = 600L  // 详情页和目录页缓存时间(s)
+    var httpCacheContentTtl = 86400L  // 正文页缓存时间(s)
+    var httpCacheStaleTtl = 3600L  // 过期后仍可返回旧内容并后台更新的时间(s)
+    var httpMaxRequests = 128  // 同时进行的网络请求上限
+    var httpMaxRequestsPerHost = 32  // 同一域名同时进行的网络请求上限
+    var httpMaxIdleConnections = 32  // 连接池保留的空闲连接数
+    var httpKeepAliveDuration = 300L  // 空闲连接保留时间(s)
+    var concurrentRateMaxWait = 60000L  // 书源并发率限制的最长等待时间(ms)
+    var searchMaxConcurrent = 64  // 所有搜索的并发上限，实际并发根据延迟和失败率自动调整
+    var searchSourceMaxConcurrent = 4  // 同一书源的搜索并发上限
+    var sourceHealthFailureThreshold = 5  // 书源连续失败多少次后熔断
+    var sourceHealthOpenTime = 600L  // 书源熔断时间(s)，再次失败时加倍
+    var searchTimeout = 10000L  // 搜索和发现请求截止时间(ms)，0 表示不限制
+    var bookInfoTimeout = 15000L  // 书籍详情请求截止时间(ms)
+    var tocTimeout = 30000L  // 目录请求截止时间(ms)，包括目录翻页
+    var contentTimeout = 15000L  // 正文请求截止时间(ms)，包括正文翻页
+    var httpHedgeContent = false  // 正文请求超过书源 p95 延迟时再发一个相同请求
+    var httpMaxBodySize = 10L  // 响应内容大小上限(MB)，0 为不限制
+    var httpMaxTocBodySize = 30L  // 目录页响应内容大小上限(MB)，0 为不限制
+    var httpSaveCookie = true  // 自动保存响应中的 cookie，同一书源的登录状态由所有用户共用
+    var jsOptimizationLevel = -1  // 书源 js 优化级别，-1 为解释执行，0-9 编译为字节码
+    var jsTimeout = 10000L  // 单次 js 执行时间上限(ms)，0 为不限制
+    var jsMaxInstructions = 100000000L  // 单次 js 执行指令数上限，0 为不限制
+    var jsMaxMemory = 256L  // 单次 js 执行分配内存上限(MB)，0 为不限制
+    var jsThreads = 32  // 执行书源请求和 js 的线程数
+    var jsNetworkThreads = 16  // js 中网络请求使用的线程数
 
     var exportUseReplace = false // 导出不使用净化
     var exportCharset = "UTF-8" // 导出字符集
@@ -0,0 +1,239 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.getStorageFile
+import com.htmake.reader.utils.writeTextAtomic
+import io.legado.app.data.entities.Book
+import io.vertx.core.json.JsonObject
+import mu.KotlinLogging
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 阅读进度日志
+ *
+ * 翻页时只向 bookProgress.log 追加一行进度记录，不再重写整个书架，
+ * 读取书架时把日志中较新的进度合并到书籍上，
+ * 日志记录数超过 compactThreshold 后由后台线程合并到书架并清空日志。
+ * 记录中同时保存书名和作者，换源后书籍链接变化时按书名和作者合并。
+ * 每条记录写入后立即 flush，进程崩溃最多丢失正在写入的那一条。
+ */
+object BookProgressJournal {
+
+    class Progress(
+        val bookUrl: String,
+        val durChapterIndex: Int,
+        val durChapterTitle: String?,
+        val durChapterTime: Long,
+        val name: String = "",
+        val author: String = ""
+    ) {
+        fun toJson(): JsonObject {
+            return JsonObject()
+                .put("bookUrl", bookUrl)
+                .put("durChapterIndex", durChapterIndex)
+                .put("durChapterTitle", durChapterTitle)
+                .put("durChapterTime", durChapterTime)
+                .put("name", name)
+                .put("author", author)
+        }
+
+        /**
+         * 进度比书籍中保存的新，才需要合并
+         */
+        fun isNewerThan(book: Book): Boolean {
+            return durChapterTime > book.durChapterTime
+        }
+
+        fun applyTo(book: Book): Book {
+            if (isNewerThan(book)) {
+                book.durChapterIndex = durChapterIndex
+                book.durChapterTitle = durChapterTitle
+                book.durChapterTime = durChapterTime
+            }
+            return book
+        }
+    }
+
+    private class Journal(val file: File) {
+        // bookUrl -> 最新进度
+        val records = hashMapOf<String, Progress>()
+        var lineCount = 0
+    }
+
+    private const val compactThreshold = 100
+
+    private val journals = ConcurrentHashMap<String, Journal>()
+    private val compacting = ConcurrentHashMap.newKeySet<String>()
+
+    private val executor = Executors.newSingleThreadExecutor { runnable ->
+        val thread = Thread(runnable, "progress-compact")
+        thread.isDaemon = true
+        thread
+    }
+
+    private fun journalFile(userNameSpace: String): File {
+        if (userNameSpace.isEmpty()) {
+            return getStorageFile("data", "bookProgress").resolveSibling("bookProgress.log")
+        }
+        return getStorageFile("data", userNameSpace, "bookProgress").resolveSibling("bookProgress.log")
+    }
+
+    private fun parseLine(line: String): Progress? {
+        if (line.isBlank()) {
+            return null
+        }
+        return try {
+            val json = JsonObject(line)
+            Progress(
+                json.getString("bookUrl", ""),
+                json.getInteger("durChapterIndex", 0),
+                json.getString("durChapterTitle"),
+                json.getLong("durChapterTime", 0L),
+                json.getString("name", ""),
+                json.getString("author", "")
+            )
+        } catch (e: Exception) {
+            // 崩溃时写了一半的记录
+            logger.warn("Invalid progress record: {}", line)
+            null
+        }
+    }
+
+    /**
+     * 获取用户进度日志，需在 synchronized(journal) 中使用返回值
+     */
+    private fun loadJournal(userNameSpace: String): Journal {
+        val journal = journals.getOrPut(userNameSpace) {
+            val newJournal = Journal(journalFile(userNameSpace))
+            if (newJournal.file.exists()) {
+                newJournal.file.forEachLine { line ->
+                    val progress = parseLine(line)
+                    if (progress != null && progress.bookUrl.isNotEmpty()) {
+                        newJournal.records.put(progress.bookUrl, progress)
+                    }
+                    newJournal.lineCount++
+                }
+            }
+            newJournal
+        }
+        synchronized(journal) {
+            if (journal.records.isNotEmpty() && !journal.file.exists()) {
+                // 用户目录被删除
+                journal.records.clear()
+                journal.lineCount = 0
+            }
+        }
+        return journal
+    }
+
+    /**
+     * 追加一条阅读进度
+     */
+    fun append(userNameSpace: String, bookUrl: String, durChapterIndex: Int, durChapterTitle: String?, name: String = "", author: String = "") {
+        if (bookUrl.isEmpty()) {
+            return
+        }
+        val progress = Progress(bookUrl, durChapterIndex, durChapterTitle, System.currentTimeMillis(), name, author)
+        val journal = loadJournal(userNameSpace)
+        var needCompact = false
+        synchronized(journal) {
+            if (!journal.file.parentFile.exists()) {
+                journal.file.parentFile.mkdirs()
+            }
+            FileOutputStream(journal.file, true).use {
+                it.write((progress.toJson().encode() + "\n").toByteArray())
+                it.flush()
+            }
+            journal.records.put(bookUrl, progress)
+            journal.lineCount++
+            needCompact = journal.lineCount >= compactThreshold
+        }
+        if (needCompact && compacting.add(userNameSpace)) {
+            executor.execute {
+                try {
+                    compact(userNameSpace)
+                } catch (e: Exception) {
+                    logger.error("Compact book progress error", e)
+                } finally {
+                    compacting.remove(userNameSpace)
+                }
+            }
+        }
+    }
+
+    /**
+     * 在进度记录中查找书籍的进度，按链接找不到时按书名和作者查找最新的一条
+     */
+    fun find(records: Map<String, Progress>, bookUrl: String, name: String = "", author: String = ""): Progress? {
+        records.get(bookUrl)?.let {
+            return it
+        }
+        if (name.isEmpty() || author.isEmpty()) {
+            return null
+        }
+        return records.values.filter { it.name == name && it.author == author }.maxByOrNull { it.durChapterTime }
+    }
+
+    /**
+     * 获取书籍在日志中的最新进度
+     */
+    fun getProgress(userNameSpace: String, bookUrl: String, name: String = "", author: String = ""): Progress? {
+        val journal = loadJournal(userNameSpace)
+        synchronized(journal) {
+            return find(journal.records, bookUrl, name, author)
+        }
+    }
+
+    /**
+     * 把日志中较新的进度合并到书籍上
+     */
+    fun apply(userNameSpace: String, book: Book): Book {
+        return getProgress(userNameSpace, book.bookUrl, book.name, book.author)?.applyTo(book) ?: book
+    }
+
+    /**
+     * 获取用户所有未合并的进度，用于批量合并
+     */
+    fun getAllProgress(userNameSpace: String): Map<String, Progress> {
+        val journal = loadJournal(userNameSpace)
+        synchronized(journal) {
+            return HashMap(journal.records)
+        }
+    }
+
+    /**
+     * 把日志合并到书架并清空已合并的记录
+     *
+     * 直接读写书架文档(备份、整体修改书架)之前需要先调用
+     */
+    fun compact(userNameSpace: String) {
+        val journal = loadJournal(userNameSpace)
+        val snapshot = synchronized(journal) {
+            if (journal.lineCount == 0) {
+                return
+            }
+            HashMap(journal.records)
+        }
+        if (snapshot.isNotEmpty()) {
+            // 书架写入磁盘失败时抛出异常，日志保持不变
+            BookShelfIndex.applyProgress(userNameSpace, snapshot.values)
+        }
+        synchronized(journal) {
+            // 合并期间追加的记录保留在日志中
+            snapshot.forEach { (bookUrl, progress) ->
+                journal.records.remove(bookUrl, progress)
+            }
+            if (journal.records.isEmpty()) {
+                journal.file.delete()
+            } else {
+                journal.file.writeTextAtomic(journal.records.values.joinToString("") { it.toJson().encode() + "\n" })
+            }
+            journal.lineCount = journal.records.size
+        }
+        logger.debug("Compact book progress of {}, records: {}", userNameSpace, snapshot.size)
+    }
+}
@@ -0,0 +1,188 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.asJsonArray
+import com.htmake.reader.utils.getStorage
+import com.htmake.reader.utils.getStorageVersion
+import com.htmake.reader.utils.flushStorage
+import com.htmake.reader.utils.saveStorage
+import io.legado.app.data.entities.Book
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 书架索引
+ *
+ * 按用户缓存解析后的书架，并建立 bookUrl 和 书名+作者 两个索引，
+ * 查找和修改单本书籍时不需要遍历反序列化整个书架。
+ * 书架文档版本号变化(其它接口保存了书架或文件被外部修改)后自动重建索引。
+ * 返回的书籍会合并阅读进度日志中较新的进度。
+ */
+object BookShelfIndex {
+
+    private class ShelfIndex(val bookshelf: JsonArray, var version: Long) {
+        val urlIndex = hashMapOf<String, Int>()
+        val nameAuthorIndex = hashMapOf<String, Int>()
+
+        init {
+            rebuild()
+        }
+
+        fun rebuild() {
+            urlIndex.clear()
+            nameAuthorIndex.clear()
+            for (i in 0 until bookshelf.size()) {
+                val book = bookshelf.getJsonObject(i) ?: continue
+                // 与遍历查找一致，重复时以靠前的书籍为准
+                urlIndex.putIfAbsent(book.getString("bookUrl", ""), i)
+                nameAuthorIndex.putIfAbsent(nameAuthorKey(book.getString("name", ""), book.getString("author", "")), i)
+            }
+        }
+
+        /**
+         * 先按书籍链接查找，再按书名和作者查找，返回靠前的那一本
+         */
+        fun indexOf(bookUrl: String, name: String, author: String): Int {
+            var index = -1
+            if (bookUrl.isNotEmpty()) {
+                index = urlIndex.get(bookUrl) ?: -1
+            }
+            if (name.isNotEmpty() && author.isNotEmpty()) {
+                val nameAuthorIndex = nameAuthorIndex.get(nameAuthorKey(name, author)) ?: -1
+                if (nameAuthorIndex >= 0 && (index < 0 || nameAuthorIndex < index)) {
+                    index = nameAuthorIndex
+                }
+            }
+            return index
+        }
+    }
+
+    private val indexes = ConcurrentHashMap<String, ShelfIndex>()
+    private val locks = ConcurrentHashMap<String, Any>()
+
+    private fun nameAuthorKey(name: String, author: String): String {
+        return name + "\n" + author
+    }
+
+    private fun storagePath(userNameSpace: String): Array<String> {
+        if (userNameSpace.isEmpty()) {
+            return arrayOf("data", "bookshelf")
+        }
+        return arrayOf("data", userNameSpace, "bookshelf")
+    }
+
+    private fun lockOf(userNameSpace: String): Any {
+        return locks.getOrPut(userNameSpace) { Any() }
+    }
+
+    /**
+     * 获取用户书架索引，需在 synchronized(lockOf(userNameSpace)) 中调用
+     */
+    private fun loadIndex(userNameSpace: String): ShelfIndex {
+        val path = storagePath(userNameSpace)
+        val version = getStorageVersion(*path)
+        val index = indexes.get(userNameSpace)
+        if (index != null && index.version == version) {
+            return index
+        }
+        val bookshelf = asJsonArray(getStorage(*path)) ?: JsonArray()
+        val newIndex = ShelfIndex(bookshelf, version)
+        indexes.put(userNameSpace, newIndex)
+        return newIndex
+    }
+
+    /**
+     * 根据书籍链接获取书架书籍
+     */
+    fun getBookByUrl(userNameSpace: String, bookUrl: String): Book? {
+        if (bookUrl.isEmpty()) {
+            return null
+        }
+        val book = synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val i = index.urlIndex.get(bookUrl) ?: return null
+            index.bookshelf.getJsonObject(i).mapTo(Book::class.java)
+        }
+        return BookProgressJournal.apply(userNameSpace, book)
+    }
+
+    /**
+     * 根据书籍链接或书名+作者获取书架书籍
+     */
+    fun getBook(userNameSpace: String, book: Book): Book? {
+        val shelfBook = synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val i = index.indexOf(book.bookUrl, book.name, book.author)
+            if (i < 0) {
+                return null
+            }
+            index.bookshelf.getJsonObject(i).mapTo(Book::class.java)
+        }
+        return BookProgressJournal.apply(userNameSpace, shelfBook)
+    }
+
+    /**
+     * 修改书架中的书籍，只反序列化和替换被修改的那一本
+     *
+     * @return 书籍不在书架中时返回 false
+     */
+    fun editBook(userNameSpace: String, book: Book, handler: (Book) -> Book): Boolean {
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val i = index.indexOf(book.bookUrl, book.name, book.author)
+            if (i < 0) {
+                return false
+            }
+            var existBook = index.bookshelf.getJsonObject(i).mapTo(Book::class.java)
+            existBook = BookProgressJournal.apply(userNameSpace, existBook)
+            val bookUrl = existBook.bookUrl
+            val nameAuthor = nameAuthorKey(existBook.name, existBook.author)
+            existBook = handler(existBook)
+
+            index.bookshelf.getList().set(i, JsonObject.mapFrom(existBook))
+            if (bookUrl != existBook.bookUrl || nameAuthor != nameAuthorKey(existBook.name, existBook.author)) {
+                index.rebuild()
+            }
+            val path = storagePath(userNameSpace)
+            saveStorage(*path, value = index.bookshelf)
+            // 书架由本索引写入，直接更新版本号，避免下次查找时重建
+            index.version = getStorageVersion(*path)
+            return true
+        }
+    }
+
+    /**
+     * 把阅读进度合并到书架，只修改进度较新的书籍，不在书架中的进度直接丢弃
+     *
+     * 返回前书架已同步写入磁盘，调用方可以放心清空进度日志
+     */
+    fun applyProgress(userNameSpace: String, progressList: Collection<BookProgressJournal.Progress>) {
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val bookList = index.bookshelf.getList()
+            var changed = false
+            for (progress in progressList) {
+                // 换源后链接变化，按书名和作者查找
+                val i = index.urlIndex.get(progress.bookUrl)
+                    ?: (if (progress.name.isNotEmpty() && progress.author.isNotEmpty()) index.nameAuthorIndex.get(nameAuthorKey(progress.name, progress.author)) else null)
+                    ?: continue
+                val book = index.bookshelf.getJsonObject(i)
+                if (progress.durChapterTime <= book.getLong("durChapterTime", 0L)) {
+                    continue
+                }
+                bookList.set(i, book.copy()
+                    .put("durChapterIndex", progress.durChapterIndex)
+                    .put("durChapterTitle", progress.durChapterTitle)
+                    .put("durChapterTime", progress.durChapterTime))
+                changed = true
+            }
+            val path = storagePath(userNameSpace)
+            if (changed) {
+                saveStorage(*path, value = index.bookshelf)
+                index.version = getStorageVersion(*path)
+            }
+            // 没有修改时书架中较新的进度也可能还在写缓存中
+            flushStorage(*path)
+        }
+    }
+}
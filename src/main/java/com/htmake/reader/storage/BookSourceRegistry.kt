@@ -0,0 +1,395 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.asJsonArray
+import com.htmake.reader.utils.asJsonObject
+import com.htmake.reader.utils.deleteStorage
+import com.htmake.reader.utils.getStorage
+import com.htmake.reader.utils.getStorageVersion
+import com.htmake.reader.utils.saveStorage
+import io.legado.app.data.entities.BookSource
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import mu.KotlinLogging
+import java.util.concurrent.ConcurrentHashMap
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 用户书源注册表
+ *
+ * default 用户的书源作为所有用户共享的基础书源，
+ * 其它用户只保存对基础书源的修改(bookSourceOverlay: 新增/修改的书源和删除的书源链接)，
+ * 读取时合并为一个带索引的书源列表，基础书源部分与 default 用户共用同一份数据，
+ * 管理员修改基础书源后所有用户同时生效。
+ * 用户目录下存在完整的 bookSource 文档(旧版本拷贝的书源、webdav 恢复的书源)时，
+ * 会转换为相对基础书源的修改。
+ *
+ * 按用户缓存合并后的书源，建立 bookSourceUrl 和 分组 索引，
+ * 并缓存每个书源序列化后的字符串(WebBook 使用字符串构造书源)。
+ * 保存和删除书源时增量更新，书源文档被其它方式修改后根据版本号自动重建。
+ */
+object BookSourceRegistry {
+
+    private const val BASE_USER = "default"
+
+    private class Overlay(
+        val sources: LinkedHashMap<String, JsonObject> = linkedMapOf(),
+        val deleted: LinkedHashSet<String> = linkedSetOf()
+    ) {
+        fun toJson(): JsonObject {
+            return JsonObject()
+                .put("sources", JsonArray(sources.values.toList()))
+                .put("deleted", JsonArray(deleted.toList()))
+        }
+    }
+
+    private class SourceIndex(val bookSourceList: JsonArray, val sourceStrings: ArrayList<String>, var version: String, val overlay: Overlay?) {
+        val urlIndex = hashMapOf<String, Int>()
+        var groupIndex: HashMap<String, List<String>>? = null
+        // 有还没有保存的修改
+        var dirty = false
+
+        init {
+            rebuildUrlIndex()
+        }
+
+        fun rebuildUrlIndex() {
+            urlIndex.clear()
+            for (i in 0 until bookSourceList.size()) {
+                // 与遍历查找一致，重复时以靠前的书源为准
+                urlIndex.putIfAbsent(bookSourceList.getJsonObject(i).getString("bookSourceUrl", ""), i)
+            }
+        }
+
+        /**
+         * 分组索引在第一次按分组查询时建立
+         */
+        fun getGroupList(bookSourceGroup: String): List<String> {
+            var index = groupIndex
+            if (index == null) {
+                index = hashMapOf()
+                val groupLists = hashMapOf<String, ArrayList<String>>()
+                for (i in 0 until bookSourceList.size()) {
+                    val group = bookSourceList.getJsonObject(i).getString("bookSourceGroup") ?: continue
+                    groupLists.getOrPut(group) { arrayListOf() }.add(sourceStrings.get(i))
+                }
+                index.putAll(groupLists)
+                groupIndex = index
+            }
+            return index.get(bookSourceGroup) ?: listOf()
+        }
+    }
+
+    private val indexes = ConcurrentHashMap<String, SourceIndex>()
+    private val locks = ConcurrentHashMap<String, Any>()
+
+    private fun storagePath(userNameSpace: String, name: String = "bookSource"): Array<String> {
+        if (userNameSpace.isEmpty()) {
+            return arrayOf("data", name)
+        }
+        return arrayOf("data", userNameSpace, name)
+    }
+
+    private fun isBaseUser(userNameSpace: String): Boolean {
+        return userNameSpace.isEmpty() || userNameSpace == BASE_USER
+    }
+
+    private fun lockOf(userNameSpace: String): Any {
+        return locks.getOrPut(userNameSpace) { Any() }
+    }
+
+    /**
+     * 当前书源版本，基础书源或用户修改变化后随之改变
+     */
+    private fun currentVersion(userNameSpace: String): String {
+        if (isBaseUser(userNameSpace)) {
+            return getStorageVersion(*storagePath(userNameSpace)).toString()
+        }
+        return getStorageVersion(*storagePath(BASE_USER)).toString() + ":" +
+            getStorageVersion(*storagePath(userNameSpace)).toString() + ":" +
+            getStorageVersion(*storagePath(userNameSpace, "bookSourceOverlay")).toString()
+    }
+
+    /**
+     * 获取用户书源索引，需在 synchronized(lockOf(userNameSpace)) 中调用
+     */
+    private fun loadIndex(userNameSpace: String): SourceIndex {
+        val version = currentVersion(userNameSpace)
+        val index = indexes.get(userNameSpace)
+        if (index != null && index.version == version) {
+            return index
+        }
+        val newIndex = if (isBaseUser(userNameSpace)) loadBaseIndex(userNameSpace, version) else loadOverlayIndex(userNameSpace)
+        indexes.put(userNameSpace, newIndex)
+        return newIndex
+    }
+
+    private fun loadBaseIndex(userNameSpace: String, version: String): SourceIndex {
+        val bookSourceList = asJsonArray(getStorage(*storagePath(userNameSpace))) ?: JsonArray()
+        val sourceStrings = ArrayList<String>(bookSourceList.size())
+        for (i in 0 until bookSourceList.size()) {
+            sourceStrings.add(bookSourceList.getJsonObject(i).toString())
+        }
+        return SourceIndex(bookSourceList, sourceStrings, version, null)
+    }
+
+    private fun loadBaseIndex(): SourceIndex {
+        synchronized(lockOf(BASE_USER)) {
+            return loadIndex(BASE_USER)
+        }
+    }
+
+    private fun loadOverlay(userNameSpace: String): Overlay {
+        val overlay = Overlay()
+        val overlayJson = asJsonObject(getStorage(*storagePath(userNameSpace, "bookSourceOverlay"))) ?: return overlay
+        val sources = overlayJson.getJsonArray("sources") ?: JsonArray()
+        for (i in 0 until sources.size()) {
+            val source = sources.getJsonObject(i)
+            overlay.sources.put(source.getString("bookSourceUrl", ""), source)
+        }
+        val deleted = overlayJson.getJsonArray("deleted") ?: JsonArray()
+        for (i in 0 until deleted.size()) {
+            overlay.deleted.add(deleted.getString(i))
+        }
+        return overlay
+    }
+
+    /**
+     * 按 BookSource 重新序列化，忽略字段顺序、空字段等与内容无关的差异
+     */
+    private fun normalize(source: JsonObject): String {
+        return BookSource.fromJson(source.toString()).getOrNull()?.let { JsonObject.mapFrom(it).toString() } ?: source.toString()
+    }
+
+    /**
+     * 用户保存了完整的书源列表，转换为相对基础书源的修改
+     * 恢复的书源与基础书源只有序列化上的差异时不算修改，否则基础书源更新后不会对该用户生效
+     */
+    private fun convertToOverlay(userNameSpace: String, bookSourceList: JsonArray, base: SourceIndex): Overlay {
+        val overlay = Overlay()
+        val urls = hashSetOf<String>()
+        for (i in 0 until bookSourceList.size()) {
+            val source = bookSourceList.getJsonObject(i)
+            val url = source.getString("bookSourceUrl", "")
+            if (!urls.add(url)) {
+                continue
+            }
+            val baseIndex = base.urlIndex.get(url)
+            if (baseIndex != null && base.sourceStrings.get(baseIndex) == source.toString()) {
+                continue
+            }
+            if (baseIndex == null || normalize(base.bookSourceList.getJsonObject(baseIndex)) != normalize(source)) {
+                overlay.sources.put(url, source)
+            }
+        }
+        base.urlIndex.keys.forEach {
+            if (!urls.contains(it)) {
+                overlay.deleted.add(it)
+            }
+        }
+        saveStorage(*storagePath(userNameSpace, "bookSourceOverlay"), value = overlay.toJson())
+        deleteStorage(*storagePath(userNameSpace))
+        logger.info("Convert bookSource of {} to overlay, changed: {} deleted: {}", userNameSpace, overlay.sources.size, overlay.deleted.size)
+        return overlay
+    }
+
+    private fun loadOverlayIndex(userNameSpace: String): SourceIndex {
+        val base = loadBaseIndex()
+        val bookSourceList = asJsonArray(getStorage(*storagePath(userNameSpace)))
+        val overlay = if (bookSourceList != null) convertToOverlay(userNameSpace, bookSourceList, base) else loadOverlay(userNameSpace)
+
+        val sourceList = arrayListOf<Any?>()
+        val sourceStrings = arrayListOf<String>()
+        val baseList = base.bookSourceList.getList()
+        for (i in 0 until baseList.size) {
+            val url = base.bookSourceList.getJsonObject(i).getString("bookSourceUrl", "")
+            if (overlay.deleted.contains(url)) {
+                continue
+            }
+            val source = overlay.sources.get(url)
+            if (source != null) {
+                sourceList.add(source)
+                sourceStrings.add(source.toString())
+            } else {
+                // 与基础书源共用同一份数据
+                sourceList.add(baseList.get(i))
+                sourceStrings.add(base.sourceStrings.get(i))
+            }
+        }
+        overlay.sources.forEach { (url, source) ->
+            if (!base.urlIndex.containsKey(url)) {
+                sourceList.add(source)
+                sourceStrings.add(source.toString())
+            }
+        }
+        return SourceIndex(JsonArray(sourceList), sourceStrings, currentVersion(userNameSpace), overlay)
+    }
+
+    private fun save(userNameSpace: String, index: SourceIndex) {
+        val overlay = index.overlay
+        if (overlay != null) {
+            saveStorage(*storagePath(userNameSpace, "bookSourceOverlay"), value = overlay.toJson())
+        } else {
+            saveStorage(*storagePath(userNameSpace), value = index.bookSourceList)
+        }
+        // 书源由注册表写入，直接更新版本号，避免下次查询时重建
+        index.version = currentVersion(userNameSpace)
+        index.dirty = false
+    }
+
+    /**
+     * 获取用户书源列表(副本)
+     * 书源对象与基础书源和缓存共用，返回深拷贝，调用方修改不影响其它用户
+     */
+    fun getBookSourceList(userNameSpace: String): JsonArray {
+        synchronized(lockOf(userNameSpace)) {
+            return loadIndex(userNameSpace).bookSourceList.copy()
+        }
+    }
+
+    /**
+     * 获取用户书源链接列表
+     */
+    fun getBookSourceUrlList(userNameSpace: String): List<String> {
+        synchronized(lockOf(userNameSpace)) {
+            val bookSourceList = loadIndex(userNameSpace).bookSourceList
+            return (0 until bookSourceList.size()).map { bookSourceList.getJsonObject(it).getString("bookSourceUrl", "") }
+        }
+    }
+
+    /**
+     * 获取用户书源字符串列表，bookSourceGroup 不为空时只返回该分组的书源
+     */
+    fun getBookSourceStringList(userNameSpace: String, bookSourceGroup: String = ""): List<String> {
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            if (bookSourceGroup.isEmpty()) {
+                return ArrayList(index.sourceStrings)
+            }
+            return index.getGroupList(bookSourceGroup)
+        }
+    }
+
+    /**
+     * 根据书源链接查找书源字符串，同时返回书源在(分组)列表中的位置
+     */
+    fun getBookSourceString(userNameSpace: String, bookSourceUrl: String, bookSourceGroup: String = ""): Pair<String?, Int> {
+        if (bookSourceUrl.isEmpty()) {
+            return Pair(null, -1)
+        }
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val i = index.urlIndex.get(bookSourceUrl) ?: return Pair(null, -1)
+            val bookSourceString = index.sourceStrings.get(i)
+            if (bookSourceGroup.isEmpty()) {
+                return Pair(bookSourceString, i)
+            }
+            val groupIndex = index.getGroupList(bookSourceGroup).indexOf(bookSourceString)
+            if (groupIndex < 0) {
+                return Pair(null, -1)
+            }
+            return Pair(bookSourceString, groupIndex)
+        }
+    }
+
+    /**
+     * 新增或替换书源，与已有书源完全相同的书源会被跳过
+     *
+     * @param persist 为 false 时只修改内存中的索引，分批导入时最后调用 flush 保存一次
+     * @return 实际新增或修改的书源数量
+     */
+    fun saveBookSources(userNameSpace: String, bookSources: List<BookSource>, persist: Boolean = true): Int {
+        if (bookSources.isEmpty()) {
+            return 0
+        }
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val sourceList = index.bookSourceList.getList()
+            var changedCount = 0
+            for (bookSource in bookSources) {
+                val sourceJson = JsonObject.mapFrom(bookSource)
+                val sourceString = sourceJson.toString()
+                val existIndex = index.urlIndex.get(bookSource.bookSourceUrl)
+                if (existIndex != null && index.sourceStrings.get(existIndex) == sourceString) {
+                    continue
+                }
+                changedCount++
+                index.overlay?.let {
+                    it.sources.put(bookSource.bookSourceUrl, sourceJson)
+                    it.deleted.remove(bookSource.bookSourceUrl)
+                }
+                if (existIndex != null) {
+                    sourceList.set(existIndex, sourceJson)
+                    index.sourceStrings.set(existIndex, sourceString)
+                } else {
+                    index.urlIndex.put(bookSource.bookSourceUrl, sourceList.size)
+                    sourceList.add(sourceJson)
+                    index.sourceStrings.add(sourceString)
+                }
+            }
+            if (changedCount > 0) {
+                index.groupIndex = null
+                index.dirty = true
+            }
+            if (persist && index.dirty) {
+                save(userNameSpace, index)
+            }
+            return changedCount
+        }
+    }
+
+    /**
+     * 保存 saveBookSources(persist = false) 修改的书源
+     */
+    fun flush(userNameSpace: String) {
+        synchronized(lockOf(userNameSpace)) {
+            val index = indexes.get(userNameSpace) ?: return
+            if (index.dirty) {
+                save(userNameSpace, index)
+            }
+        }
+    }
+
+    /**
+     * 删除书源
+     */
+    fun deleteBookSources(userNameSpace: String, bookSourceUrls: List<String>) {
+        synchronized(lockOf(userNameSpace)) {
+            val index = loadIndex(userNameSpace)
+            val removeIndexes = bookSourceUrls.mapNotNull { index.urlIndex.get(it) }.toSortedSet()
+            if (removeIndexes.isEmpty()) {
+                return
+            }
+            index.overlay?.let { overlay ->
+                val base = loadBaseIndex()
+                bookSourceUrls.forEach {
+                    overlay.sources.remove(it)
+                    if (base.urlIndex.containsKey(it)) {
+                        overlay.deleted.add(it)
+                    }
+                }
+            }
+            val sourceList = index.bookSourceList.getList()
+            for (i in removeIndexes.reversed()) {
+                sourceList.removeAt(i)
+                index.sourceStrings.removeAt(i)
+            }
+            index.rebuildUrlIndex()
+            index.groupIndex = null
+            save(userNameSpace, index)
+        }
+    }
+
+    /**
+     * 删除用户对书源的所有修改，恢复为基础书源
+     */
+    fun resetBookSources(userNameSpace: String) {
+        synchronized(lockOf(userNameSpace)) {
+            deleteStorage(*storagePath(userNameSpace))
+            if (!isBaseUser(userNameSpace)) {
+                deleteStorage(*storagePath(userNameSpace, "bookSourceOverlay"))
+            }
+            indexes.remove(userNameSpace)
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.writeTextAtomic
+import mu.KotlinLogging
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 带内存缓存的写回存储后端
+ *
+ * 读取：文档缓存在内存中，只有文件被外部修改(修改时间或大小变化)时才重新读取
+ * 写入：只更新内存并标记为脏文档，延迟 flushDelay 毫秒后由后台线程统一写入磁盘，
+ *      期间对同一文档的多次写入只会落盘一次，写入时使用临时文件+重命名保证原子性
+ */
+class CachedFileStorage(
+    private val flushDelay: Long = 1000L,
+    private val maxCacheSize: Long = 200L * 1024 * 1024
+) : StorageBackend {
+
+    private class Document(val file: File) {
+        var content: String? = null
+        var version = 0L
+        var dirty = false
+        var loaded = false
+        var lastModified = 0L
+        var length = 0L
+        @Volatile
+        var lastAccess = 0L
+
+        fun size(): Long {
+            return (content?.length ?: 0).toLong()
+        }
+    }
+
+    private val documents = ConcurrentHashMap<String, Document>()
+    private val dirtyKeys = ConcurrentHashMap.newKeySet<String>()
+    private val versionCounter = AtomicLong(0)
+    private val cacheSize = AtomicLong(0)
+    private val flushScheduled = AtomicBoolean(false)
+    private val flushLock = Any()
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "storage-flush")
+        thread.isDaemon = true
+        thread
+    }
+
+    init {
+        // 退出前把脏文档写入磁盘
+        Runtime.getRuntime().addShutdownHook(Thread {
+            flush()
+        })
+    }
+
+    private fun getDocument(file: File): Document {
+        val key = file.absolutePath
+        return documents.getOrPut(key) { Document(file.absoluteFile) }
+    }
+
+    /**
+     * 确保文档已加载且与磁盘一致，需在 synchronized(doc) 中调用
+     */
+    private fun ensureLoaded(doc: Document) {
+        doc.lastAccess = System.currentTimeMillis()
+        if (doc.dirty) {
+            return
+        }
+        val lastModified = doc.file.lastModified()
+        val length = doc.file.length()
+        if (doc.loaded && doc.lastModified == lastModified && doc.length == length) {
+            return
+        }
+        logger.debug("Load file from storage path: {}", doc.file)
+        val oldSize = doc.size()
+        doc.content = if (doc.file.exists()) doc.file.readText() else null
+        doc.lastModified = lastModified
+        doc.length = length
+        doc.loaded = true
+        doc.version = versionCounter.incrementAndGet()
+        cacheSize.addAndGet(doc.size() - oldSize)
+    }
+
+    override fun read(file: File): String? {
+        val doc = getDocument(file)
+        val content = synchronized(doc) {
+            ensureLoaded(doc)
+            doc.content
+        }
+        trimCache()
+        return content
+    }
+
+    override fun write(file: File, content: String) {
+        val key = file.absolutePath
+        var written = false
+        while (!written) {
+            val doc = getDocument(file)
+            synchronized(doc) {
+                // 文档可能刚被淘汰出缓存，此时需要重新获取
+                if (documents.get(key) === doc) {
+                    val oldSize = doc.size()
+                    doc.content = content
+                    doc.loaded = true
+                    doc.dirty = true
+                    doc.version = versionCounter.incrementAndGet()
+                    doc.lastAccess = System.currentTimeMillis()
+                    cacheSize.addAndGet(doc.size() - oldSize)
+                    written = true
+                }
+            }
+        }
+        dirtyKeys.add(key)
+        scheduleFlush()
+    }
+
+    override fun version(file: File): Long {
+        val doc = getDocument(file)
+        return synchronized(doc) {
+            ensureLoaded(doc)
+            doc.version
+        }
+    }
+
+    override fun invalidate(file: File) {
+        val key = file.absolutePath
+        dirtyKeys.remove(key)
+        documents.get(key)?.let { doc ->
+            synchronized(doc) {
+                if (documents.remove(key, doc)) {
+                    cacheSize.addAndGet(-doc.size())
+                }
+            }
+        }
+    }
+
+    override fun invalidateDir(dir: File) {
+        val prefix = dir.absolutePath + File.separator
+        documents.keys.filter { it.startsWith(prefix) }.forEach {
+            invalidate(File(it))
+        }
+    }
+
+    private fun scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.schedule({
+                flushScheduled.set(false)
+                try {
+                    flush()
+                } catch (e: Exception) {
+                    logger.error("Flush storage error", e)
+                }
+            }, flushDelay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    override fun flush() {
+        synchronized(flushLock) {
+            val keys = dirtyKeys.toList()
+            for (key in keys) {
+                dirtyKeys.remove(key)
+                try {
+                    writeDocument(key)
+                } catch (e: Exception) {
+                    logger.error("Save file to storage error: {}", key, e)
+                    // 写入失败，稍后重试
+                    dirtyKeys.add(key)
+                    scheduleFlush()
+                }
+            }
+        }
+        trimCache()
+    }
+
+    override fun flush(file: File) {
+        val key = file.absolutePath
+        synchronized(flushLock) {
+            if (!dirtyKeys.remove(key)) {
+                return
+            }
+            try {
+                writeDocument(key)
+            } catch (e: Exception) {
+                dirtyKeys.add(key)
+                scheduleFlush()
+                throw e
+            }
+        }
+    }
+
+    /**
+     * 把脏文档写入磁盘，需要持有 flushLock
+     */
+    private fun writeDocument(key: String) {
+        val doc = documents.get(key) ?: return
+        var content: String? = null
+        var version = 0L
+        synchronized(doc) {
+            if (doc.dirty) {
+                content = doc.content
+                version = doc.version
+            }
+        }
+        val text = content ?: return
+        logger.debug("Save file to storage path: {}", doc.file)
+        doc.file.writeTextAtomic(text)
+        synchronized(doc) {
+            // 写入期间没有新的修改，才能标记为干净文档
+            if (doc.version == version) {
+                doc.dirty = false
+                doc.lastModified = doc.file.lastModified()
+                doc.length = doc.file.length()
+            }
+        }
+    }
+
+    /**
+     * 缓存超出上限时，按最近访问时间淘汰干净文档
+     */
+    private fun trimCache() {
+        if (cacheSize.get() <= maxCacheSize) {
+            return
+        }
+        val candidates = documents.entries.sortedBy { it.value.lastAccess }
+        for (entry in candidates) {
+            if (cacheSize.get() <= maxCacheSize * 3 / 4) {
+                break
+            }
+            val doc = entry.value
+            synchronized(doc) {
+                if (!doc.dirty && documents.remove(entry.key, doc)) {
+                    cacheSize.addAndGet(-doc.size())
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.htmake.reader.storage
+
+import com.google.common.cache.CacheBuilder
+import com.htmake.reader.utils.writeBytesAtomic
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import mu.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 章节内容存储
+ *
+ * 一本书的章节内容压缩(Deflate)后追加写入 content-<n>.pack 数据文件，
+ * content.idx 中按顺序追加定长索引记录 chapterIndex(int) packId(int) offset(long) length(int) rawLength(int)，
+ * 同一章节以最后一条记录为准，length 为 -1 表示已删除。
+ * 被覆盖的数据超过一半时在后台合并数据文件，复制数据时不阻塞读写。
+ * 打开时会把旧的 <index>.txt 章节缓存导入数据文件。
+ */
+class ChapterContentStore private constructor(val dir: File) {
+
+    companion object {
+        private const val INDEX_FILE = "content.idx"
+        private const val RECORD_SIZE = 24
+        private const val MAX_PACK_SIZE = 64L * 1024 * 1024
+        private const val MIN_COMPACT_SIZE = 1L * 1024 * 1024
+        private const val LOCK_STRIPES = 64
+
+        // 缓存淘汰后同一目录可能同时存在两个实例，按目录分段加锁
+        private val locks = Array(LOCK_STRIPES) { Any() }
+        private val stores = CacheBuilder.newBuilder().maximumSize(100).build<String, ChapterContentStore>()
+
+        /**
+         * 获取章节缓存目录对应的内容存储
+         */
+        fun get(dir: File): ChapterContentStore {
+            return stores.get(dir.absolutePath) { ChapterContentStore(dir.absoluteFile) }
+        }
+    }
+
+    private class Entry(val packId: Int, val offset: Long, val length: Int, val rawLength: Int)
+
+    private val lock: Any = locks[(dir.absolutePath.hashCode() and Int.MAX_VALUE) % LOCK_STRIPES]
+    private val entries = hashMapOf<Int, Entry>()
+    private val compacting = AtomicBoolean(false)
+    // 已加载的索引文件长度和修改时间，与磁盘上不一致时(被其它实例修改或被删除)重新加载
+    private var loadedIndexLength = -1L
+    private var loadedIndexModified = -1L
+    private var currentPackId = 0
+    private var liveBytes = 0L
+    private var totalBytes = 0L
+
+    private val indexFile: File
+        get() = File(dir, INDEX_FILE)
+
+    private fun packFile(packId: Int): File {
+        return File(dir, "content-" + packId + ".pack")
+    }
+
+    /**
+     * 需在 synchronized(lock) 中调用
+     */
+    private fun ensureLoaded() {
+        var indexLength = if (indexFile.exists()) indexFile.length() else 0L
+        if (indexLength == loadedIndexLength && indexFile.lastModified() == loadedIndexModified) {
+            return
+        }
+        if (indexLength % RECORD_SIZE != 0L) {
+            // 崩溃时写了一半的记录，截断后才能继续追加
+            indexLength -= indexLength % RECORD_SIZE
+            RandomAccessFile(indexFile, "rw").use { it.setLength(indexLength) }
+        }
+        entries.clear()
+        currentPackId = 0
+        if (indexLength > 0) {
+            val recordCount = (indexLength / RECORD_SIZE).toInt()
+            DataInputStream(indexFile.inputStream().buffered()).use { input ->
+                for (i in 0 until recordCount) {
+                    val chapterIndex = input.readInt()
+                    val packId = input.readInt()
+                    val offset = input.readLong()
+                    val length = input.readInt()
+                    val rawLength = input.readInt()
+                    if (length < 0) {
+                        entries.remove(chapterIndex)
+                    } else {
+                        entries.put(chapterIndex, Entry(packId, offset, length, rawLength))
+                    }
+                    currentPackId = Math.max(currentPackId, packId)
+                }
+            }
+        }
+        liveBytes = entries.values.fold(0L) { sum, entry -> sum + entry.length }
+        totalBytes = 0L
+        dir.listFiles()?.forEach {
+            if (it.name.startsWith("content-") && it.name.endsWith(".pack")) {
+                totalBytes += it.length()
+            }
+        }
+        loadedIndexLength = indexLength
+        loadedIndexModified = indexFile.lastModified()
+        migrateTextFiles()
+    }
+
+    /**
+     * 导入旧的 <index>.txt 章节缓存
+     */
+    private fun migrateTextFiles() {
+        val textFiles = dir.listFiles { file ->
+            !file.name.startsWith(".") && file.name.endsWith(".txt") && file.name.removeSuffix(".txt").toIntOrNull() != null
+        } ?: return
+        if (textFiles.isEmpty()) {
+            return
+        }
+        textFiles.sortBy { it.name.removeSuffix(".txt").toInt() }
+        for (textFile in textFiles) {
+            writeContent(textFile.name.removeSuffix(".txt").toInt(), textFile.readText())
+            textFile.delete()
+        }
+        logger.info("Migrate {} chapter files to content store: {}", textFiles.size, dir)
+    }
+
+    private fun appendIndexRecord(chapterIndex: Int, packId: Int, offset: Long, length: Int, rawLength: Int) {
+        val byteStream = ByteArrayOutputStream(RECORD_SIZE)
+        DataOutputStream(byteStream).use { output ->
+            output.writeInt(chapterIndex)
+            output.writeInt(packId)
+            output.writeLong(offset)
+            output.writeInt(length)
+            output.writeInt(rawLength)
+        }
+        FileOutputStream(indexFile, true).use {
+            it.write(byteStream.toByteArray())
+        }
+        loadedIndexLength = indexFile.length()
+        loadedIndexModified = indexFile.lastModified()
+    }
+
+    private fun compress(bytes: ByteArray): ByteArray {
+        val deflater = Deflater(Deflater.BEST_SPEED)
+        try {
+            deflater.setInput(bytes)
+            deflater.finish()
+            val output = ByteArrayOutputStream(Math.max(64, bytes.size / 2))
+            val buffer = ByteArray(8192)
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer))
+            }
+            return output.toByteArray()
+        } finally {
+            deflater.end()
+        }
+    }
+
+    private fun decompress(bytes: ByteArray, rawLength: Int): ByteArray {
+        val inflater = Inflater()
+        try {
+            inflater.setInput(bytes)
+            val result = ByteArray(rawLength)
+            var length = 0
+            while (length < rawLength && !inflater.finished()) {
+                val count = inflater.inflate(result, length, rawLength - length)
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw IllegalStateException("章节内容数据损坏")
+                }
+                length += count
+            }
+            return result
+        } finally {
+            inflater.end()
+        }
+    }
+
+    /**
+     * 写入章节内容，需在 synchronized(lock) 中调用
+     */
+    private fun writeContent(chapterIndex: Int, content: String) {
+        val rawBytes = content.toByteArray()
+        val bytes = compress(rawBytes)
+        if (!dir.exists()) {
+            dir.mkdirs()
+        }
+        var packFile = packFile(currentPackId)
+        if (packFile.length() + bytes.size > MAX_PACK_SIZE && packFile.length() > 0) {
+            currentPackId++
+            packFile = packFile(currentPackId)
+        }
+        var offset = 0L
+        RandomAccessFile(packFile, "rw").use { raf ->
+            offset = raf.length()
+            raf.seek(offset)
+            raf.write(bytes)
+        }
+        // 先写数据再写索引，中途失败不会产生指向无效数据的索引
+        appendIndexRecord(chapterIndex, currentPackId, offset, bytes.size, rawBytes.size)
+        entries.remove(chapterIndex)?.let {
+            liveBytes -= it.length
+        }
+        entries.put(chapterIndex, Entry(currentPackId, offset, bytes.size, rawBytes.size))
+        liveBytes += bytes.size
+        totalBytes += bytes.size
+    }
+
+    fun read(chapterIndex: Int): String? {
+        synchronized(lock) {
+            ensureLoaded()
+            val entry = entries.get(chapterIndex) ?: return null
+            val bytes = ByteArray(entry.length)
+            RandomAccessFile(packFile(entry.packId), "r").use { raf ->
+                raf.seek(entry.offset)
+                raf.readFully(bytes)
+            }
+            return String(decompress(bytes, entry.rawLength))
+        }
+    }
+
+    fun write(chapterIndex: Int, content: String) {
+        synchronized(lock) {
+            ensureLoaded()
+            writeContent(chapterIndex, content)
+            if (needCompact() && compacting.compareAndSet(false, true)) {
+                GlobalScope.launch(Dispatchers.IO) {
+                    try {
+                        compact()
+                    } catch (e: Exception) {
+                        logger.warn("Compact content store error: {} {}", dir, e.toString())
+                    } finally {
+                        compacting.set(false)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun needCompact(): Boolean {
+        return totalBytes > MIN_COMPACT_SIZE && liveBytes * 2 < totalBytes
+    }
+
+    fun delete(chapterIndex: Int) {
+        synchronized(lock) {
+            ensureLoaded()
+            val entry = entries.remove(chapterIndex) ?: return
+            liveBytes -= entry.length
+            appendIndexRecord(chapterIndex, entry.packId, 0, -1, 0)
+        }
+    }
+
+    fun contains(chapterIndex: Int): Boolean {
+        synchronized(lock) {
+            ensureLoaded()
+            return entries.containsKey(chapterIndex)
+        }
+    }
+
+    /**
+     * 已缓存的章节序号
+     */
+    fun getCachedIndexSet(): MutableSet<Int> {
+        synchronized(lock) {
+            ensureLoaded()
+            return entries.keys.toMutableSet()
+        }
+    }
+
+    /**
+     * 删除所有章节内容
+     */
+    fun clear() {
+        synchronized(lock) {
+            dir.listFiles()?.forEach {
+                if (it.name == INDEX_FILE || (it.name.startsWith("content-") && it.name.endsWith(".pack"))) {
+                    it.delete()
+                }
+            }
+            entries.clear()
+            loadedIndexLength = -1L
+            loadedIndexModified = -1L
+        }
+    }
+
+    private fun packIdOf(file: File): Int? {
+        return file.name.removePrefix("content-").removeSuffix(".pack").toIntOrNull()
+    }
+
+    /**
+     * 把有效数据写入新的数据文件，重写索引并删除不再引用的数据文件
+     *
+     * 数据文件只追加，已有记录不会改变，复制数据时不持有锁。
+     * 复制期间写入或删除的章节以当前记录为准，期间索引被重新加载时放弃本次合并。
+     */
+    private fun compact() {
+        val snapshot = synchronized(lock) {
+            ensureLoaded()
+            if (!needCompact()) {
+                return
+            }
+            HashMap(entries)
+        }
+        val tempFiles = arrayListOf<File>()
+        try {
+            // 复制后的记录，packId 为 tempFiles 中的序号
+            val copied = hashMapOf<Int, Entry>()
+            var output: FileOutputStream? = null
+            var offset = 0L
+            try {
+                for (chapterIndex in snapshot.keys.sorted()) {
+                    val entry = snapshot.getValue(chapterIndex)
+                    val bytes = ByteArray(entry.length)
+                    RandomAccessFile(packFile(entry.packId), "r").use { raf ->
+                        raf.seek(entry.offset)
+                        raf.readFully(bytes)
+                    }
+                    if (output == null || (offset > 0 && offset + bytes.size > MAX_PACK_SIZE)) {
+                        output?.close()
+                        tempFiles.add(File.createTempFile("compact-", ".tmp", dir))
+                        output = FileOutputStream(tempFiles.last())
+                        offset = 0L
+                    }
+                    output.write(bytes)
+                    copied.put(chapterIndex, Entry(tempFiles.size - 1, offset, entry.length, entry.rawLength))
+                    offset += bytes.size
+                }
+            } finally {
+                output?.close()
+            }
+            synchronized(lock) {
+                ensureLoaded()
+                val packFiles = dir.listFiles { file ->
+                    file.name.startsWith("content-") && file.name.endsWith(".pack")
+                } ?: return
+                // 新数据文件编号大于所有已存在的数据文件，包括崩溃时遗留的
+                var firstPackId = currentPackId
+                packFiles.forEach {
+                    firstPackId = Math.max(firstPackId, packIdOf(it) ?: 0)
+                }
+                firstPackId++
+                val newEntries = hashMapOf<Int, Entry>()
+                var copiedCount = 0
+                for ((chapterIndex, entry) in entries) {
+                    val copiedEntry = copied.get(chapterIndex)
+                    if (copiedEntry != null && snapshot.get(chapterIndex) === entry) {
+                        newEntries.put(chapterIndex, Entry(firstPackId + copiedEntry.packId, copiedEntry.offset, copiedEntry.length, copiedEntry.rawLength))
+                        copiedCount++
+                    } else {
+                        newEntries.put(chapterIndex, entry)
+                    }
+                }
+                if (copiedCount == 0) {
+                    return
+                }
+                tempFiles.forEachIndexed { i, file ->
+                    if (!file.renameTo(packFile(firstPackId + i))) {
+                        throw IllegalStateException("重命名数据文件失败: " + file)
+                    }
+                }
+
+                val byteStream = ByteArrayOutputStream(newEntries.size * RECORD_SIZE)
+                DataOutputStream(byteStream).use { indexOutput ->
+                    for ((chapterIndex, entry) in newEntries) {
+                        indexOutput.writeInt(chapterIndex)
+                        indexOutput.writeInt(entry.packId)
+                        indexOutput.writeLong(entry.offset)
+                        indexOutput.writeInt(entry.length)
+                        indexOutput.writeInt(entry.rawLength)
+                    }
+                }
+                // 新索引替换完成后旧数据文件才不再被引用
+                File(dir, INDEX_FILE).writeBytesAtomic(byteStream.toByteArray())
+                currentPackId = Math.max(currentPackId, firstPackId + tempFiles.size - 1)
+                val usedPackIds = newEntries.values.mapTo(hashSetOf()) { it.packId }
+                packFiles.forEach {
+                    val packId = packIdOf(it)
+                    if (packId != null && packId != currentPackId && !usedPackIds.contains(packId)) {
+                        it.delete()
+                    }
+                }
+
+                entries.clear()
+                entries.putAll(newEntries)
+                liveBytes = newEntries.values.fold(0L) { sum, entry -> sum + entry.length }
+                totalBytes = 0L
+                dir.listFiles()?.forEach {
+                    if (it.name.startsWith("content-") && it.name.endsWith(".pack")) {
+                        totalBytes += it.length()
+                    }
+                }
+                loadedIndexLength = indexFile.length()
+                loadedIndexModified = indexFile.lastModified()
+                logger.info("Compact content store: {} chapters: {}", dir, newEntries.size)
+            }
+        } finally {
+            // 重命名成功的临时文件已不存在
+            tempFiles.forEach { it.delete() }
+        }
+    }
+}
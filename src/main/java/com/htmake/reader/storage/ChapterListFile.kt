@@ -0,0 +1,254 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.gson
+import com.htmake.reader.utils.writeBytesAtomic
+import io.legado.app.data.entities.BookChapter
+import io.vertx.core.json.JsonObject
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 二进制章节列表文件
+ *
+ * 文件结构：
+ *   文件头   magic(int) count(int) capacity(int)
+ *   偏移表   capacity 个定长条目 offset(long) length(int)
+ *   数据区   每个章节序列化后的 json(UTF-8)
+ *
+ * 按序号读取章节时只读取偏移表中的一个条目和对应的数据，不需要解析整个章节列表。
+ * 偏移表预留了空间，刷新目录时如果已有章节逐条比较都没有变化，新增章节直接追加到文件末尾，
+ * 预留空间不足或已有章节发生变化时才重写整个文件。
+ */
+class ChapterListFile(val file: File) {
+
+    companion object {
+        private const val MAGIC = 0x52434C31
+        private const val HEADER_SIZE = 12L
+        private const val ENTRY_SIZE = 12L
+        private const val MIN_CAPACITY = 256
+
+        private val locks = ConcurrentHashMap<String, Any>()
+    }
+
+    private class Header(val count: Int, val capacity: Int)
+
+    private val lock: Any
+        get() = locks.getOrPut(file.absolutePath) { Any() }
+
+    fun exists(): Boolean {
+        return file.exists()
+    }
+
+    private fun encode(chapter: BookChapter): ByteArray {
+        return gson.toJson(chapter).toByteArray()
+    }
+
+    private fun decode(bytes: ByteArray): BookChapter {
+        return JsonObject(String(bytes)).mapTo(BookChapter::class.java)
+    }
+
+    private fun readHeader(raf: RandomAccessFile): Header? {
+        if (raf.length() < HEADER_SIZE) {
+            return null
+        }
+        raf.seek(0)
+        if (raf.readInt() != MAGIC) {
+            return null
+        }
+        return Header(raf.readInt(), raf.readInt())
+    }
+
+    private fun readBytes(raf: RandomAccessFile, index: Int): ByteArray {
+        raf.seek(HEADER_SIZE + index * ENTRY_SIZE)
+        val offset = raf.readLong()
+        val length = raf.readInt()
+        val bytes = ByteArray(length)
+        raf.seek(offset)
+        raf.readFully(bytes)
+        return bytes
+    }
+
+    /**
+     * 章节数，文件不存在或格式错误时返回 0
+     */
+    fun size(): Int {
+        if (!file.exists()) {
+            return 0
+        }
+        RandomAccessFile(file, "r").use { raf ->
+            return readHeader(raf)?.count ?: 0
+        }
+    }
+
+    /**
+     * 按序号读取单个章节
+     */
+    fun get(index: Int): BookChapter? {
+        if (index < 0 || !file.exists()) {
+            return null
+        }
+        RandomAccessFile(file, "r").use { raf ->
+            val header = readHeader(raf) ?: return null
+            if (index >= header.count) {
+                return null
+            }
+            return decode(readBytes(raf, index))
+        }
+    }
+
+    /**
+     * 读取全部章节
+     */
+    fun readAll(): List<BookChapter> {
+        if (!file.exists()) {
+            return arrayListOf()
+        }
+        RandomAccessFile(file, "r").use { raf ->
+            val header = readHeader(raf) ?: return arrayListOf()
+            val table = ByteArray((header.count * ENTRY_SIZE).toInt())
+            raf.seek(HEADER_SIZE)
+            raf.readFully(table)
+            val tableBuffer = ByteBuffer.wrap(table)
+            val chapterList = ArrayList<BookChapter>(header.count)
+            for (i in 0 until header.count) {
+                val offset = tableBuffer.getLong()
+                val bytes = ByteArray(tableBuffer.getInt())
+                raf.seek(offset)
+                raf.readFully(bytes)
+                chapterList.add(decode(bytes))
+            }
+            return chapterList
+        }
+    }
+
+    /**
+     * 按需读取章节的列表视图，遍历时一次性读取
+     */
+    fun asList(): List<BookChapter> {
+        return ChapterListView(this, size())
+    }
+
+    /**
+     * 重写整个文件
+     */
+    fun write(chapterList: List<BookChapter>) {
+        synchronized(lock) {
+            writeFile(chapterList)
+        }
+    }
+
+    /**
+     * 用新的章节列表更新文件，已有章节没有变化时只追加新增的章节
+     */
+    fun update(chapterList: List<BookChapter>) {
+        synchronized(lock) {
+            if (!tryAppend(chapterList)) {
+                writeFile(chapterList)
+            }
+        }
+    }
+
+    private fun writeFile(chapterList: List<BookChapter>) {
+        val capacity = Math.max(MIN_CAPACITY, chapterList.size * 2)
+        val records = chapterList.map { encode(it) }
+        val byteStream = ByteArrayOutputStream()
+        val output = DataOutputStream(byteStream)
+        output.writeInt(MAGIC)
+        output.writeInt(chapterList.size)
+        output.writeInt(capacity)
+        var offset = HEADER_SIZE + capacity * ENTRY_SIZE
+        for (record in records) {
+            output.writeLong(offset)
+            output.writeInt(record.size)
+            offset += record.size
+        }
+        // 预留的偏移表空间
+        output.write(ByteArray(((capacity - chapterList.size) * ENTRY_SIZE).toInt()))
+        for (record in records) {
+            output.write(record)
+        }
+        output.flush()
+        file.writeBytesAtomic(byteStream.toByteArray())
+    }
+
+    private fun tryAppend(chapterList: List<BookChapter>): Boolean {
+        if (!file.exists()) {
+            return false
+        }
+        RandomAccessFile(file, "rw").use { raf ->
+            val header = readHeader(raf) ?: return false
+            val count = header.count
+            if (count == 0 || chapterList.size < count || chapterList.size > header.capacity) {
+                return false
+            }
+            val heapEnd = readUnchangedEnd(raf, count, chapterList) ?: return false
+            if (chapterList.size == count) {
+                return true
+            }
+            var offset = heapEnd
+            val appendCount = chapterList.size - count
+            val table = ByteBuffer.allocate((appendCount * ENTRY_SIZE).toInt())
+            val byteStream = ByteArrayOutputStream()
+            for (i in count until chapterList.size) {
+                val record = encode(chapterList[i])
+                byteStream.write(record)
+                table.putLong(offset)
+                table.putInt(record.size)
+                offset += record.size
+            }
+            raf.seek(heapEnd)
+            raf.write(byteStream.toByteArray())
+            raf.seek(HEADER_SIZE + count * ENTRY_SIZE)
+            raf.write(table.array())
+            // 最后再更新章节数，中途失败不影响已有章节
+            raf.seek(4)
+            raf.writeInt(chapterList.size)
+            return true
+        }
+    }
+
+    /**
+     * 逐条比较已有章节，全部没有变化时返回数据区的结束位置，否则返回 null
+     * 已有章节的数据是连续写入的，一次顺序读取整个数据区
+     */
+    private fun readUnchangedEnd(raf: RandomAccessFile, count: Int, chapterList: List<BookChapter>): Long? {
+        val table = ByteArray((count * ENTRY_SIZE).toInt())
+        raf.seek(HEADER_SIZE)
+        raf.readFully(table)
+        val tableBuffer = ByteBuffer.wrap(table)
+        val heapStart = tableBuffer.getLong(0)
+        val heapEnd = tableBuffer.getLong(((count - 1) * ENTRY_SIZE).toInt()) +
+            tableBuffer.getInt(((count - 1) * ENTRY_SIZE + 8).toInt())
+        val heap = ByteArray((heapEnd - heapStart).toInt())
+        raf.seek(heapStart)
+        raf.readFully(heap)
+        for (i in 0 until count) {
+            val position = (tableBuffer.getLong() - heapStart).toInt()
+            val length = tableBuffer.getInt()
+            val record = encode(chapterList[i])
+            if (record.size != length) {
+                return null
+            }
+            for (j in 0 until length) {
+                if (heap[position + j] != record[j]) {
+                    return null
+                }
+            }
+        }
+        return heapEnd
+    }
+
+    private class ChapterListView(private val listFile: ChapterListFile, override val size: Int) : AbstractList<BookChapter>() {
+        override fun get(index: Int): BookChapter {
+            return listFile.get(index) ?: throw IndexOutOfBoundsException("Index: " + index + ", Size: " + size)
+        }
+
+        override fun iterator(): Iterator<BookChapter> {
+            return listFile.readAll().iterator()
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.htmake.reader.storage
+
+import cn.hutool.crypto.digest.DigestUtil
+import com.google.common.cache.CacheBuilder
+import io.vertx.core.json.Json
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import mu.KotlinLogging
+import java.io.File
+import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.PreparedStatement
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 基于嵌入式数据库(H2)的存储后端
+ *
+ * 用户的 bookshelf/bookSource/bookGroup/replaceRule/bookmark/rssSources 按条目存储在数据库中，
+ * 书架以 bookUrl、书源以 bookSourceUrl 区分条目，主键为其 sha256(key_hash)，完整链接保存在单独的列中，
+ * 保存时只写入有变化的条目，只有位置变化的条目只更新排序。
+ * 其它文档(章节列表、用户信息等)交给 fallback 存储。
+ *
+ * 首次启动时会把已有的 json 文件导入数据库，并重命名为 xxx.json.migrated
+ */
+class DatabaseStorage(
+    private val dbPath: String,
+    private val dataDir: File,
+    private val fallback: StorageBackend
+) : StorageBackend {
+
+    companion object {
+        private const val CACHE_MAX_CHARS = 32L * 1024 * 1024
+    }
+
+    private class Table(
+        val name: String,
+        val keyColumn: String,
+        val keyField: String?,
+        val indexColumns: Map<String, String> = mapOf(),
+        val hasCollectionColumn: Boolean = false
+    )
+
+    private val bookshelfTable = Table("bookshelf", "book_url", "bookUrl", mapOf("name" to "name", "author" to "author"))
+    private val bookSourceTable = Table("book_source", "book_source_url", "bookSourceUrl", mapOf("book_source_group" to "bookSourceGroup"))
+
+    private val collections = mapOf(
+        "bookshelf" to bookshelfTable,
+        "bookSource" to bookSourceTable,
+        "rssSources" to Table("user_item", "item_key", "sourceUrl", hasCollectionColumn = true),
+        "bookGroup" to Table("user_item", "item_key", "groupId", hasCollectionColumn = true),
+        "replaceRule" to Table("user_item", "item_key", "id", hasCollectionColumn = true),
+        "bookmark" to Table("user_item", "item_key", "time", hasCollectionColumn = true)
+    )
+
+    private val lock = Any()
+    // 文档内容缓存，按字符数限制总大小
+    private val cache = CacheBuilder.newBuilder()
+        .maximumWeight(CACHE_MAX_CHARS)
+        .weigher<String, String> { _, value -> value.length }
+        .build<String, String>()
+    private val versions = ConcurrentHashMap<String, Long>()
+    private val versionCounter = AtomicLong(0)
+
+    private val connection: Connection by lazy {
+        Class.forName("org.h2.Driver")
+        val conn = DriverManager.getConnection("jdbc:h2:file:" + dbPath)
+        createTables(conn)
+        conn
+    }
+
+    init {
+        migrateAll()
+    }
+
+    private fun createTables(conn: Connection) {
+        conn.createStatement().use { stmt ->
+            stmt.execute("CREATE TABLE IF NOT EXISTS user_collection (user_ns VARCHAR(255) NOT NULL, name VARCHAR(64) NOT NULL, updated_at BIGINT, PRIMARY KEY (user_ns, name))")
+            stmt.execute("CREATE TABLE IF NOT EXISTS bookshelf (user_ns VARCHAR(255) NOT NULL, key_hash VARCHAR(64) NOT NULL, book_url VARCHAR NOT NULL, name VARCHAR(1024), author VARCHAR(1024), sort_order INT, data_digest VARCHAR(64), data CLOB, PRIMARY KEY (user_ns, key_hash))")
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_bookshelf_name_author ON bookshelf (user_ns, name, author)")
+            stmt.execute("CREATE TABLE IF NOT EXISTS book_source (user_ns VARCHAR(255) NOT NULL, key_hash VARCHAR(64) NOT NULL, book_source_url VARCHAR NOT NULL, book_source_group VARCHAR(1024), sort_order INT, data_digest VARCHAR(64), data CLOB, PRIMARY KEY (user_ns, key_hash))")
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_book_source_group ON book_source (user_ns, book_source_group)")
+            stmt.execute("CREATE TABLE IF NOT EXISTS user_item (user_ns VARCHAR(255) NOT NULL, collection VARCHAR(64) NOT NULL, key_hash VARCHAR(64) NOT NULL, item_key VARCHAR NOT NULL, sort_order INT, data_digest VARCHAR(64), data CLOB, PRIMARY KEY (user_ns, collection, key_hash))")
+            // 旧版本使用 32 位的 data_hash 判断条目是否变化，可能冲突，改为 sha256，旧条目下次保存时重新写入
+            for (table in listOf("bookshelf", "book_source", "user_item")) {
+                stmt.execute("ALTER TABLE ${table} ADD COLUMN IF NOT EXISTS data_digest VARCHAR(64)")
+                stmt.execute("ALTER TABLE ${table} DROP COLUMN IF EXISTS data_hash")
+            }
+        }
+        migrateKeyHash(conn, bookshelfTable)
+        migrateKeyHash(conn, bookSourceTable)
+        migrateKeyHash(conn, collections.getValue("bookmark"))
+    }
+
+    /**
+     * 旧版本直接以 VARCHAR(2048) 的链接为主键，过长的链接无法保存，改为以 key_hash 为主键
+     * DDL 会自动提交，每一步都可以重复执行，中途失败下次启动时继续
+     */
+    private fun migrateKeyHash(conn: Connection, table: Table) {
+        conn.prepareStatement("SELECT 1 FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_NAME = ? AND PRIMARY_KEY = TRUE AND COLUMN_NAME = 'KEY_HASH'").use { stmt ->
+            stmt.setString(1, table.name.toUpperCase())
+            stmt.executeQuery().use { rs ->
+                if (rs.next()) {
+                    return
+                }
+            }
+        }
+        val scopeColumns = if (table.hasCollectionColumn) "user_ns, collection" else "user_ns"
+        conn.createStatement().use { stmt ->
+            stmt.execute("ALTER TABLE ${table.name} ADD COLUMN IF NOT EXISTS key_hash VARCHAR(64)")
+        }
+        conn.prepareStatement("UPDATE ${table.name} SET key_hash = ? WHERE ${table.keyColumn} = ?").use { update ->
+            conn.createStatement().use { stmt ->
+                stmt.executeQuery("SELECT DISTINCT ${table.keyColumn} FROM ${table.name}").use { rs ->
+                    while (rs.next()) {
+                        val key = rs.getString(1)
+                        update.setString(1, DigestUtil.sha256Hex(key))
+                        update.setString(2, key)
+                        update.addBatch()
+                    }
+                }
+            }
+            update.executeBatch()
+        }
+        conn.createStatement().use { stmt ->
+            stmt.execute("ALTER TABLE ${table.name} ALTER COLUMN key_hash SET NOT NULL")
+            stmt.execute("ALTER TABLE ${table.name} DROP PRIMARY KEY")
+            stmt.execute("ALTER TABLE ${table.name} ADD PRIMARY KEY (${scopeColumns}, key_hash)")
+            stmt.execute("ALTER TABLE ${table.name} ALTER COLUMN ${table.keyColumn} SET DATA TYPE VARCHAR")
+        }
+        logger.info("Migrate {} primary key to key_hash", table.name)
+    }
+
+    /**
+     * 解析出文档对应的用户和集合名，不由数据库管理的文档返回 null
+     */
+    private fun resolve(file: File): Pair<String, String>? {
+        val parent = file.absoluteFile.parentFile ?: return null
+        if (parent.parentFile?.absolutePath != dataDir.absolutePath) {
+            return null
+        }
+        if (!file.name.endsWith(".json")) {
+            return null
+        }
+        val name = file.name.substring(0, file.name.length - 5)
+        if (!collections.containsKey(name)) {
+            return null
+        }
+        return Pair(parent.name, name)
+    }
+
+    private fun cacheKey(userNameSpace: String, name: String): String {
+        return userNameSpace + "/" + name
+    }
+
+    private fun bumpVersion(key: String) {
+        versions.put(key, versionCounter.incrementAndGet())
+    }
+
+    override fun read(file: File): String? {
+        val (userNameSpace, name) = resolve(file) ?: return fallback.read(file)
+        val key = cacheKey(userNameSpace, name)
+        cache.getIfPresent(key)?.let {
+            return it
+        }
+        synchronized(lock) {
+            if (!collectionExists(userNameSpace, name)) {
+                // 数据库中没有，尝试从 json 文件导入
+                if (!migrateFile(file, userNameSpace, name)) {
+                    return null
+                }
+            }
+            val content = loadCollection(userNameSpace, name)
+            cache.put(key, content)
+            return content
+        }
+    }
+
+    override fun write(file: File, content: String) {
+        val (userNameSpace, name) = resolve(file) ?: return fallback.write(file, content)
+        val items = try {
+            JsonArray(content)
+        } catch (e: Exception) {
+            logger.warn("Storage document is not a json array, save to file: {}", file)
+            fallback.write(file, content)
+            return
+        }
+        val key = cacheKey(userNameSpace, name)
+        synchronized(lock) {
+            saveCollection(userNameSpace, name, items)
+            cache.put(key, content)
+            bumpVersion(key)
+        }
+    }
+
+    override fun version(file: File): Long {
+        val (userNameSpace, name) = resolve(file) ?: return fallback.version(file)
+        val key = cacheKey(userNameSpace, name)
+        return versions.getOrPut(key) { versionCounter.incrementAndGet() }
+    }
+
+    /**
+     * 文件被外部修改：文件存在则重新导入，文件已删除则删除对应数据
+     */
+    override fun invalidate(file: File) {
+        val (userNameSpace, name) = resolve(file) ?: return fallback.invalidate(file)
+        val key = cacheKey(userNameSpace, name)
+        synchronized(lock) {
+            if (!migrateFile(file, userNameSpace, name)) {
+                deleteCollection(userNameSpace, name)
+            }
+            cache.invalidate(key)
+            bumpVersion(key)
+        }
+    }
+
+    override fun invalidateDir(dir: File) {
+        fallback.invalidateDir(dir)
+        if (dir.absoluteFile.parentFile?.absolutePath == dataDir.absolutePath) {
+            // 用户目录
+            collections.keys.forEach {
+                invalidate(File(dir, it + ".json"))
+            }
+        }
+    }
+
+    override fun flush() {
+        fallback.flush()
+    }
+
+    override fun flush(file: File) {
+        // 数据库中的文档写入时已经提交
+        if (resolve(file) == null) {
+            fallback.flush(file)
+        }
+    }
+
+    private fun collectionExists(userNameSpace: String, name: String): Boolean {
+        connection.prepareStatement("SELECT 1 FROM user_collection WHERE user_ns = ? AND name = ?").use { stmt ->
+            stmt.setString(1, userNameSpace)
+            stmt.setString(2, name)
+            stmt.executeQuery().use { rs ->
+                return rs.next()
+            }
+        }
+    }
+
+    private fun scopeCondition(table: Table): String {
+        return if (table.hasCollectionColumn) "user_ns = ? AND collection = ?" else "user_ns = ?"
+    }
+
+    /**
+     * 绑定用户和集合参数，返回下一个参数的位置
+     */
+    private fun bindScope(stmt: PreparedStatement, table: Table, userNameSpace: String, name: String, start: Int = 1): Int {
+        stmt.setString(start, userNameSpace)
+        if (table.hasCollectionColumn) {
+            stmt.setString(start + 1, name)
+            return start + 2
+        }
+        return start + 1
+    }
+
+    private fun loadCollection(userNameSpace: String, name: String): String {
+        val table = collections.getValue(name)
+        val builder = StringBuilder("[")
+        connection.prepareStatement("SELECT data FROM ${table.name} WHERE ${scopeCondition(table)} ORDER BY sort_order").use { stmt ->
+            bindScope(stmt, table, userNameSpace, name)
+            stmt.executeQuery().use { rs ->
+                var first = true
+                while (rs.next()) {
+                    if (!first) {
+                        builder.append(",")
+                    }
+                    builder.append(rs.getString(1))
+                    first = false
+                }
+            }
+        }
+        return builder.append("]").toString()
+    }
+
+    /**
+     * 条目的 key，没有唯一字段的条目按内容区分，不使用位置，插入条目时其它条目的 key 不变
+     */
+    private fun itemKey(table: Table, item: Any?, digest: String): String {
+        if (table.keyField != null && item is JsonObject) {
+            val value = item.getValue(table.keyField)
+            if (value != null && value.toString().isNotEmpty()) {
+                return value.toString()
+            }
+        }
+        return "#" + digest
+    }
+
+    /**
+     * 对比数据库中已有的条目，只写入有变化的条目，只有位置变化的条目只更新排序
+     */
+    private fun saveCollection(userNameSpace: String, name: String, items: JsonArray) {
+        val table = collections.getValue(name)
+        val conn = connection
+        conn.autoCommit = false
+        try {
+            // 已有条目的 key -> (排序, sha256)
+            val existed = mutableMapOf<String, Pair<Int, String?>>()
+            conn.prepareStatement("SELECT ${table.keyColumn}, sort_order, data_digest FROM ${table.name} WHERE ${scopeCondition(table)}").use { stmt ->
+                bindScope(stmt, table, userNameSpace, name)
+                stmt.executeQuery().use { rs ->
+                    while (rs.next()) {
+                        existed.put(rs.getString(1), Pair(rs.getInt(2), rs.getString(3)))
+                    }
+                }
+            }
+
+            val indexColumns = table.indexColumns.keys.toList()
+            val columns = arrayListOf("user_ns")
+            if (table.hasCollectionColumn) {
+                columns.add("collection")
+            }
+            columns.add("key_hash")
+            columns.add(table.keyColumn)
+            columns.addAll(indexColumns)
+            columns.addAll(listOf("sort_order", "data_digest", "data"))
+            val keyColumns = if (table.hasCollectionColumn) "user_ns, collection, key_hash" else "user_ns, key_hash"
+            val mergeSql = "MERGE INTO ${table.name} (${columns.joinToString(", ")}) KEY (${keyColumns}) VALUES (${columns.joinToString(", ") { "?" }})"
+            val sortSql = "UPDATE ${table.name} SET sort_order = ? WHERE ${scopeCondition(table)} AND key_hash = ?"
+
+            val seenKeys = mutableSetOf<String>()
+            var changedCount = 0
+            var movedCount = 0
+            conn.prepareStatement(mergeSql).use { stmt ->
+                conn.prepareStatement(sortSql).use { sortStmt ->
+                    for (i in 0 until items.size()) {
+                        val item = items.getValue(i)
+                        val data = if (item is JsonObject) item.encode() else Json.encode(item)
+                        val digest = DigestUtil.sha256Hex(data)
+                        val baseKey = itemKey(table, item, digest)
+                        var key = baseKey
+                        var occurrence = 1
+                        while (seenKeys.contains(key)) {
+                            key = baseKey + "#" + occurrence++
+                        }
+                        seenKeys.add(key)
+                        val old = existed.get(key)
+                        if (old != null && old.second == digest) {
+                            if (old.first != i) {
+                                sortStmt.setInt(1, i)
+                                val index = bindScope(sortStmt, table, userNameSpace, name, 2)
+                                sortStmt.setString(index, DigestUtil.sha256Hex(key))
+                                sortStmt.addBatch()
+                                movedCount++
+                            }
+                            continue
+                        }
+                        var index = bindScope(stmt, table, userNameSpace, name)
+                        stmt.setString(index++, DigestUtil.sha256Hex(key))
+                        stmt.setString(index++, key)
+                        for (column in indexColumns) {
+                            val field = table.indexColumns.getValue(column)
+                            stmt.setString(index++, (item as? JsonObject)?.getValue(field)?.toString())
+                        }
+                        stmt.setInt(index++, i)
+                        stmt.setString(index++, digest)
+                        stmt.setString(index, data)
+                        stmt.addBatch()
+                        changedCount++
+                    }
+                    if (changedCount > 0) {
+                        stmt.executeBatch()
+                    }
+                    if (movedCount > 0) {
+                        sortStmt.executeBatch()
+                    }
+                }
+            }
+
+            val removedKeys = existed.keys.filter { !seenKeys.contains(it) }
+            if (removedKeys.isNotEmpty()) {
+                conn.prepareStatement("DELETE FROM ${table.name} WHERE ${scopeCondition(table)} AND key_hash = ?").use { stmt ->
+                    for (key in removedKeys) {
+                        val index = bindScope(stmt, table, userNameSpace, name)
+                        stmt.setString(index, DigestUtil.sha256Hex(key))
+                        stmt.addBatch()
+                    }
+                    stmt.executeBatch()
+                }
+            }
+
+            conn.prepareStatement("MERGE INTO user_collection (user_ns, name, updated_at) KEY (user_ns, name) VALUES (?, ?, ?)").use { stmt ->
+                stmt.setString(1, userNameSpace)
+                stmt.setString(2, name)
+                stmt.setLong(3, System.currentTimeMillis())
+                stmt.executeUpdate()
+            }
+            conn.commit()
+            logger.debug("Save {} of {} to database, changed: {} moved: {} removed: {}", name, userNameSpace, changedCount, movedCount, removedKeys.size)
+        } catch (e: Exception) {
+            conn.rollback()
+            throw e
+        } finally {
+            conn.autoCommit = true
+        }
+    }
+
+    private fun deleteCollection(userNameSpace: String, name: String) {
+        val table = collections.getValue(name)
+        connection.prepareStatement("DELETE FROM ${table.name} WHERE ${scopeCondition(table)}").use { stmt ->
+            bindScope(stmt, table, userNameSpace, name)
+            stmt.executeUpdate()
+        }
+        connection.prepareStatement("DELETE FROM user_collection WHERE user_ns = ? AND name = ?").use { stmt ->
+            stmt.setString(1, userNameSpace)
+            stmt.setString(2, name)
+            stmt.executeUpdate()
+        }
+    }
+
+    /**
+     * 把 json 文件导入数据库，导入成功后重命名为 xxx.json.migrated
+     */
+    private fun migrateFile(file: File, userNameSpace: String, name: String): Boolean {
+        if (!file.exists()) {
+            return false
+        }
+        try {
+            val items = JsonArray(file.readText())
+            saveCollection(userNameSpace, name, items)
+            val backupFile = File(file.absolutePath + ".migrated")
+            backupFile.delete()
+            file.renameTo(backupFile)
+            logger.info("Migrate {} to database, items: {}", file, items.size())
+            return true
+        } catch (e: Exception) {
+            logger.error("Migrate {} to database error", file, e)
+        }
+        return false
+    }
+
+    /**
+     * 一次性导入所有用户的 json 文件
+     */
+    private fun migrateAll() {
+        val userDirs = dataDir.listFiles() ?: return
+        synchronized(lock) {
+            for (userDir in userDirs) {
+                if (!userDir.isDirectory()) {
+                    continue
+                }
+                collections.keys.forEach {
+                    migrateFile(File(userDir, it + ".json"), userDir.name, it)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.htmake.reader.storage
+
+import com.htmake.reader.utils.writeTextAtomic
+import mu.KotlinLogging
+import java.io.File
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 直接读写文件的存储后端，不做缓存
+ */
+class FileStorage : StorageBackend {
+
+    override fun read(file: File): String? {
+        logger.debug("Read file from storage path: {}", file.absoluteFile)
+        if (!file.exists()) {
+            return null
+        }
+        return file.readText()
+    }
+
+    override fun write(file: File, content: String) {
+        logger.debug("Save file to storage path: {}", file.absoluteFile)
+        file.writeTextAtomic(content)
+    }
+
+    override fun version(file: File): Long {
+        // 没有缓存，使用文件修改时间作为版本号
+        return file.lastModified() * 31 + file.length()
+    }
+
+    override fun invalidate(file: File) {
+    }
+
+    override fun invalidateDir(dir: File) {
+    }
+
+    override fun flush() {
+    }
+
+    override fun flush(file: File) {
+    }
+}
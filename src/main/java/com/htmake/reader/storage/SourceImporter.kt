@@ -0,0 +1,232 @@
+package com.htmake.reader.storage
+
+import com.google.gson.JsonParser
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import com.htmake.reader.utils.asJsonArray
+import com.htmake.reader.utils.getStorage
+import com.htmake.reader.utils.saveStorage
+import io.legado.app.data.entities.BookSource
+import io.legado.app.data.entities.RssSource
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import java.io.Closeable
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 书源/RSS源流式导入
+ *
+ * 逐个解析 json 数组中的源，不把整个文件读入内存，
+ * 每 batchSize 个源按链接去重后合并到内存中的源列表，合并后回调导入进度，
+ * 导入结束(或中途停止)后只保存一次。
+ * 文件内容也可以是单个源对象。
+ */
+class SourceImporter(input: InputStream, private val batchSize: Int = 500) : Closeable {
+
+    companion object {
+        private val rssLocks = ConcurrentHashMap<String, Any>()
+
+        /**
+         * 按 sourceUrl 新增或替换 RSS 源，与已有 RSS 源完全相同的会被跳过
+         *
+         * @return 实际新增或修改的数量
+         */
+        fun saveRssSources(userNameSpace: String, rssSources: List<RssSource>): Int {
+            if (rssSources.isEmpty()) {
+                return 0
+            }
+            synchronized(rssLockOf(userNameSpace)) {
+                val rssSourceList = RssSourceList(userNameSpace)
+                val changedCount = rssSourceList.merge(rssSources)
+                rssSourceList.save()
+                return changedCount
+            }
+        }
+
+        private fun rssLockOf(userNameSpace: String): Any {
+            return rssLocks.getOrPut(userNameSpace) { Any() }
+        }
+    }
+
+    /**
+     * 用户的 RSS 源列表，需在 synchronized(rssLockOf(userNameSpace)) 中使用
+     */
+    private class RssSourceList(userNameSpace: String) {
+        private val path = if (userNameSpace.isEmpty()) arrayOf("data", "rssSources") else arrayOf("data", userNameSpace, "rssSources")
+        private val rssSourceList = asJsonArray(getStorage(*path)) ?: JsonArray()
+        private val urlIndex = hashMapOf<String, Int>()
+        private var changed = false
+
+        init {
+            for (i in 0 until rssSourceList.size()) {
+                urlIndex.putIfAbsent(rssSourceList.getJsonObject(i).getString("sourceUrl", ""), i)
+            }
+        }
+
+        /**
+         * 按 sourceUrl 新增或替换，返回实际新增或修改的数量
+         */
+        fun merge(rssSources: List<RssSource>): Int {
+            val list = rssSourceList.getList()
+            var changedCount = 0
+            for (rssSource in rssSources) {
+                val sourceJson = JsonObject.mapFrom(rssSource)
+                val existIndex = urlIndex.get(rssSource.sourceUrl)
+                if (existIndex != null) {
+                    if (rssSourceList.getJsonObject(existIndex) == sourceJson) {
+                        continue
+                    }
+                    list.set(existIndex, sourceJson)
+                } else {
+                    urlIndex.put(rssSource.sourceUrl, list.size)
+                    list.add(sourceJson)
+                }
+                changedCount++
+            }
+            if (changedCount > 0) {
+                changed = true
+            }
+            return changedCount
+        }
+
+        fun save() {
+            if (changed) {
+                saveStorage(*path, value = rssSourceList)
+                changed = false
+            }
+        }
+    }
+
+    class Progress {
+        // 已读取的源数量
+        var total = 0
+        // 新增或修改的数量
+        var saved = 0
+        // 与已有源相同或在文件中重复的数量
+        var skipped = 0
+        // 格式错误的数量
+        var failed = 0
+
+        fun toMap(): Map<String, Int> {
+            return mapOf("total" to total, "saved" to saved, "skipped" to skipped, "failed" to failed)
+        }
+    }
+
+    val progress = Progress()
+
+    private val reader = JsonReader(InputStreamReader(input, Charsets.UTF_8))
+    private var started = false
+    private var finished = false
+
+    /**
+     * 读取下一批源的 json 字符串，读取完毕返回 null
+     */
+    private fun nextBatch(): List<String>? {
+        if (finished) {
+            return null
+        }
+        if (!started) {
+            started = true
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                // 单个源
+                finished = true
+                progress.total++
+                return listOf(JsonParser().parse(reader).toString())
+            }
+            reader.beginArray()
+        }
+        val batch = arrayListOf<String>()
+        while (batch.size < batchSize && reader.hasNext()) {
+            val item = JsonParser().parse(reader)
+            progress.total++
+            if (item.isJsonObject) {
+                batch.add(item.toString())
+            } else {
+                progress.failed++
+            }
+        }
+        if (!reader.hasNext()) {
+            reader.endArray()
+            finished = true
+        }
+        return batch
+    }
+
+    /**
+     * 导入书源，onProgress 返回 false 时停止导入
+     */
+    fun importBookSources(userNameSpace: String, onProgress: (Progress) -> Boolean = { true }): Progress {
+        try {
+            importBookSourceBatches(userNameSpace, onProgress)
+        } finally {
+            BookSourceRegistry.flush(userNameSpace)
+        }
+        return progress
+    }
+
+    private fun importBookSourceBatches(userNameSpace: String, onProgress: (Progress) -> Boolean) {
+        while (true) {
+            val batch = nextBatch() ?: break
+            // 同一批中链接相同的书源以最后一个为准
+            val bookSources = linkedMapOf<String, BookSource>()
+            for (json in batch) {
+                val bookSource = BookSource.fromJson(json).getOrNull()
+                if (bookSource == null || bookSource.bookSourceUrl.isEmpty()) {
+                    progress.failed++
+                    continue
+                }
+                bookSources.remove(bookSource.bookSourceUrl)?.let { progress.skipped++ }
+                bookSources.put(bookSource.bookSourceUrl, bookSource)
+            }
+            val savedCount = BookSourceRegistry.saveBookSources(userNameSpace, bookSources.values.toList(), false)
+            progress.saved += savedCount
+            progress.skipped += bookSources.size - savedCount
+            if (!onProgress(progress)) {
+                break
+            }
+        }
+    }
+
+    /**
+     * 导入RSS源，onProgress 返回 false 时停止导入
+     */
+    fun importRssSources(userNameSpace: String, onProgress: (Progress) -> Boolean = { true }): Progress {
+        synchronized(rssLockOf(userNameSpace)) {
+            val rssSourceList = RssSourceList(userNameSpace)
+            try {
+                importRssSourceBatches(rssSourceList, onProgress)
+            } finally {
+                rssSourceList.save()
+            }
+        }
+        return progress
+    }
+
+    private fun importRssSourceBatches(rssSourceList: RssSourceList, onProgress: (Progress) -> Boolean) {
+        while (true) {
+            val batch = nextBatch() ?: break
+            val rssSources = linkedMapOf<String, RssSource>()
+            for (json in batch) {
+                val rssSource = RssSource.fromJson(json).getOrNull()
+                if (rssSource == null || rssSource.sourceUrl.isEmpty() || rssSource.sourceName.isEmpty()) {
+                    progress.failed++
+                    continue
+                }
+                rssSources.remove(rssSource.sourceUrl)?.let { progress.skipped++ }
+                rssSources.put(rssSource.sourceUrl, rssSource)
+            }
+            val savedCount = rssSourceList.merge(rssSources.values.toList())
+            progress.saved += savedCount
+            progress.skipped += rssSources.size - savedCount
+            if (!onProgress(progress)) {
+                break
+            }
+        }
+    }
+
+    override fun close() {
+        reader.close()
+    }
+}
@@ -0,0 +1,47 @@
+package com.htmake.reader.storage
+
+import java.io.File
+
+/**
+ * 存储后端
+ *
+ * getStorage/saveStorage 通过该接口读写 storage 目录下的 json 文档，
+ * 文档以文件路径为 key，每次写入都会改变文档版本号，
+ * 上层索引可以根据版本号判断是否需要重建。
+ */
+interface StorageBackend {
+    /**
+     * 读取文档内容，文档不存在时返回 null
+     */
+    fun read(file: File): String?
+
+    /**
+     * 写入文档内容
+     */
+    fun write(file: File, content: String)
+
+    /**
+     * 文档当前版本号，内容发生变化(包括被外部修改)后版本号随之改变
+     */
+    fun version(file: File): Long
+
+    /**
+     * 丢弃文档缓存，下次读取时从磁盘加载
+     */
+    fun invalidate(file: File)
+
+    /**
+     * 丢弃目录下所有文档缓存
+     */
+    fun invalidateDir(dir: File)
+
+    /**
+     * 将所有未写入磁盘的文档写入磁盘
+     */
+    fun flush()
+
+    /**
+     * 将指定文档同步写入磁盘，写入失败时抛出异常
+     */
+    fun flush(file: File)
+}
@@ -13,6 +13,9 @@ import java.io.FileInputStream
 import java.util.zip.ZipFile
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.AtomicMoveNotSupportedException
 import org.w3c.dom.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -220,3 +223,29 @@ fun parseNode(list: NodeList): MutableMap<String, Any> {
 
 
 
+
+/**
+ * 原子写入文件：先写临时文件，再重命名覆盖目标文件
+ */
+fun File.writeTextAtomic(text: String) {
+    this.writeBytesAtomic(text.toByteArray())
+}
+
+fun File.writeBytesAtomic(bytes: ByteArray) {
+    val parent = this.absoluteFile.parentFile
+    if (parent != null && !parent.exists()) {
+        parent.mkdirs()
+    }
+    // 每次写入使用不同的临时文件，同时写入同一文件时不会互相覆盖
+    val tmpFile = File.createTempFile("." + this.name + ".", ".tmp", parent)
+    try {
+        tmpFile.writeBytes(bytes)
+        try {
+            Files.move(tmpFile.toPath(), this.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(tmpFile.toPath(), this.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+    } finally {
+        tmpFile.delete()
+    }
+}
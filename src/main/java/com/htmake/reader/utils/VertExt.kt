@@ -20,6 +20,10 @@ import kotlin.reflect.KMutableProperty
 import kotlin.reflect.full.memberProperties
 import io.legado.app.data.entities.Book
 import io.legado.app.utils.MD5Utils
+import com.htmake.reader.storage.StorageBackend
+import com.htmake.reader.storage.FileStorage
+import com.htmake.reader.storage.CachedFileStorage
+import com.htmake.reader.storage.DatabaseStorage
 
 /**
  * @Auther: zoharSoul
@@ -125,6 +129,47 @@ fun getStoragePath(): String {
     return storagePath;
 }
 
+@Volatile
+private var storageBackendInstance: StorageBackend? = null
+
+val storageBackend: StorageBackend
+    get() {
+        storageBackendInstance?.let {
+            return it
+        }
+        var appConfig = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+        if (appConfig == null) {
+            // spring 未启动时直接读写文件
+            return FileStorage()
+        }
+        synchronized(AppConfig::class.java) {
+            var backend = storageBackendInstance
+            if (backend == null) {
+                if (appConfig.storageCache) {
+                    logger.info("Use cached storage, flushDelay: {} ms cacheSize: {} MB", appConfig.storageFlushDelay, appConfig.storageCacheSize)
+                    backend = CachedFileStorage(appConfig.storageFlushDelay, appConfig.storageCacheSize * 1024L * 1024L)
+                } else {
+                    backend = FileStorage()
+                }
+                if (appConfig.storageEngine.equals("h2", true)) {
+                    // 用户数据存储到数据库，其它文档仍然使用文件存储
+                    val storagePath = getStoragePath()
+                    val dbPath = Paths.get(storagePath, "db", "reader").toString()
+                    logger.info("Use database storage: {}", dbPath)
+                    backend = DatabaseStorage(dbPath, File(storagePath, "data"), backend)
+                }
+                storageBackendInstance = backend
+            }
+            return backend
+        }
+    }
+
+fun getStorageFile(vararg name: String): File {
+    var storagePath = getStoragePath()
+    val filename = name.last()
+    return File(getRelativePath(storagePath, *name.copyOfRange(0, name.size - 1), "${filename}.json"))
+}
+
 fun saveStorage(vararg name: String, value: Any, pretty: Boolean = false) {
     val toJson: String = if (value is JsonObject || value is JsonArray) {
         value.toString()
@@ -134,41 +179,53 @@ fun saveStorage(vararg name: String, value: Any, pretty: Boolean = false) {
         gson.toJson(value)
     }
 
-    var storagePath = getStoragePath()
-    var storageDir = File(storagePath)
-    if (!storageDir.exists()) {
-        storageDir.mkdirs()
-    }
+    val file = getStorageFile(*name)
+    storageBackend.write(file, toJson)
+}
 
-    val filename = name.last()
-    val file = File(getRelativePath(storagePath, *name.copyOfRange(0, name.size - 1), "${filename}.json"))
-    // val file = File(storagePath + "/${name}.json")
-    logger.info("Save file to storage name: {} path: {}", name, file.absoluteFile)
+fun getStorage(vararg name: String): String?  {
+    val file = getStorageFile(*name)
+    return storageBackend.read(file)
+}
 
-    if (!file.parentFile.exists()) {
-        file.parentFile.mkdirs()
-    }
+/**
+ * 存储文档的版本号，文档内容变化后版本号随之改变
+ */
+fun getStorageVersion(vararg name: String): Long {
+    return storageBackend.version(getStorageFile(*name))
+}
 
-    if (!file.exists()) {
-        file.createNewFile()
-    }
-    file.writeText(toJson)
+/**
+ * 直接操作存储文件之前调用，保证磁盘上的文件是最新的
+ */
+fun flushStorage() {
+    storageBackend.flush()
 }
 
-fun getStorage(vararg name: String): String?  {
-    var storagePath = getStoragePath()
-    var storageDir = File(storagePath)
-    if (!storageDir.exists()) {
-        storageDir.mkdirs()
-    }
+/**
+ * 把指定文档同步写入磁盘，写入失败时抛出异常
+ */
+fun flushStorage(vararg name: String) {
+    storageBackend.flush(getStorageFile(*name))
+}
 
-    val filename = name.last()
-    val file = File(getRelativePath(storagePath, *name.copyOfRange(0, name.size - 1), "${filename}.json"))
-    logger.info("Read file from storage name: {} path: {}", name, file.absoluteFile)
-    if (!file.exists()) {
-        return null
+/**
+ * 直接修改或删除存储文件之后调用，丢弃对应的缓存
+ */
+fun invalidateStorage(file: File) {
+    storageBackend.invalidate(file)
+    storageBackend.invalidateDir(file)
+}
+
+/**
+ * 删除存储文档
+ */
+fun deleteStorage(vararg name: String) {
+    val file = getStorageFile(*name)
+    if (file.exists()) {
+        file.delete()
     }
-    return file.readText()
+    invalidateStorage(file)
 }
 
 fun asJsonArray(value: Any?): JsonArray? {
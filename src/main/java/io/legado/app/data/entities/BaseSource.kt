@@ -4,6 +4,7 @@ import com.script.SimpleBindings
 import io.legado.app.utils.Base64
 import io.legado.app.constant.AppConst
 import io.legado.app.help.CacheManager
+import io.legado.app.help.JsEngine
 import io.legado.app.help.JsExtensions
 import io.legado.app.help.http.CookieStore
 import io.legado.app.utils.*
@@ -156,8 +157,8 @@ interface BaseSource : JsExtensions {
         bindings["java"] = this
         bindings["source"] = this
         bindings["baseUrl"] = getKey()
-        bindings["cookie"] = CookieStore
+        bindings["cookie"] = CookieStore.forSource(getKey())
         bindings["cache"] = CacheManager
-        return AppConst.SCRIPT_ENGINE.eval(jsStr, bindings)
+        return JsEngine.eval(jsStr, bindings, getKey())
     }
 }
\ No newline at end of file
@@ -50,6 +50,8 @@ data class BookSource(
     var ruleContent: ContentRule? = null,            // 正文页规则
     var bookSourceComment: String? = null,           // 注释
     var respondTime: Long = 180000L,               // 响应时间，用于排序
+    var httpCacheTtl: Int? = null,                 // 网络请求缓存时间(秒)，0 不缓存，为空时使用默认缓存时间
+    var maxConcurrentRequests: Int? = null,        // 同时请求数上限，为空时不单独限制
 ) : BaseSource {
 //    @Ignore
 //    @IgnoredOnParcel
@@ -0,0 +1,6 @@
+package io.legado.app.exception
+
+/**
+ * 书源请求超过截止时间
+ */
+class RequestTimeoutException(msg: String) : NoStackTraceException(msg)
@@ -0,0 +1,6 @@
+package io.legado.app.exception
+
+/**
+ * 书源 js 超过执行时间、指令数或内存上限
+ */
+class ScriptBudgetException(msg: String) : NoStackTraceException(msg)
@@ -10,6 +10,7 @@ import io.legado.app.utils.MD5Utils
 import io.legado.app.utils.getFile
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.model.localBook.LocalBook
+import com.htmake.reader.storage.ChapterContentStore
 import java.io.File
 import java.util.concurrent.CopyOnWriteArraySet
 import kotlinx.coroutines.Deferred
@@ -71,11 +72,9 @@ object BookHelp {
      * 读取章节内容
      */
     fun getContent(book: Book, bookChapter: BookChapter): String? {
-        val file = getBookCacheDir(book).getFile(
-            String.format("%d.txt", bookChapter.index)
-        )
-        if (file.exists()) {
-            return file.readText()
+        val content = ChapterContentStore.get(getBookCacheDir(book)).read(bookChapter.index)
+        if (content != null) {
+            return content
         }
         if (book.isLocalBook()) {
             val content = LocalBook.getContent(book, bookChapter)
@@ -91,10 +90,7 @@ object BookHelp {
      * 删除章节内容
      */
     fun delContent(book: Book, bookChapter: BookChapter) {
-        FileUtils.createFileIfNotExist(
-            getBookCacheDir(book),
-            String.format("%d.txt", bookChapter.index)
-        ).delete()
+        ChapterContentStore.get(getBookCacheDir(book)).delete(bookChapter.index)
     }
 
     suspend fun saveContent(
@@ -115,10 +111,7 @@ object BookHelp {
     ) {
         // if (content.isEmpty()) return
         //保存文本
-        FileUtils.createFileIfNotExist(
-            getBookCacheDir(book),
-            String.format("%d.txt", bookChapter.index)
-        ).writeText(content)
+        ChapterContentStore.get(getBookCacheDir(book)).write(bookChapter.index, content)
     }
 
     suspend fun saveImages(
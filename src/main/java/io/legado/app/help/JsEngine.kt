@@ -0,0 +1,317 @@
+package io.legado.app.help
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import com.script.ScriptException
+import io.legado.app.constant.AppConst
+import io.legado.app.exception.RequestTimeoutException
+import io.legado.app.exception.ScriptBudgetException
+import io.legado.app.utils.MD5Utils
+import org.mozilla.javascript.Context
+import org.mozilla.javascript.ContextFactory
+import org.mozilla.javascript.ImporterTopLevel
+import org.mozilla.javascript.JavaScriptException
+import org.mozilla.javascript.RhinoException
+import org.mozilla.javascript.Script
+import org.mozilla.javascript.ScriptableObject
+import org.mozilla.javascript.Undefined
+import org.mozilla.javascript.WrapFactory
+import org.mozilla.javascript.WrappedException
+import org.mozilla.javascript.Wrapper
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 执行书源 js
+ *
+ * 编译后的脚本按书源和 js 的 md5 缓存，不再每次解析编译。
+ * 所有脚本共用一个已封闭(sealed)的顶层作用域，每次执行时新建一个以它为原型的作用域存放 bindings，
+ * 脚本中定义的变量和 importPackage/importClass 导入的类只在本次执行中有效，也不能修改 Object、Array 等内置对象。
+ * jsOptimizationLevel 为 -1 时解释执行，0-9 时编译为 java 字节码。
+ *
+ * 每次执行(包括 js 中通过 java.ajax 等再次执行的 js)有执行时间、指令数和内存分配的上限，
+ * 超出时中止执行并抛出 ScriptBudgetException，同时计入书源健康状态。
+ * 执行时间按书源统计。
+ */
+object JsEngine {
+
+    private const val MAX_CACHE_SIZE = 2000L
+    private const val UNKNOWN_SOURCE = "<Unknown Source>"
+    // 每执行这么多条指令检查一次是否超出限制
+    private const val INSTRUCTION_THRESHOLD = 10000
+
+    // 与 RhinoScriptEngine 相同，禁止 js 访问的类
+    private val protectedClasses = setOf("java.lang.Runtime", "java.io.File", "java.security.AccessController")
+
+    private val appConfig: AppConfig?
+        get() = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+
+    private val scriptCache: Cache<String, Script> = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build()
+
+    private val hitCount = AtomicLong()
+    private val compileCount = AtomicLong()
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    private class ScriptStats {
+        val count = AtomicLong()
+        val totalTime = AtomicLong()
+        val maxTime = AtomicLong()
+        val budgetExceededCount = AtomicLong()
+
+        fun toMap(): Map<String, Long> {
+            return mapOf(
+                "count" to count.get(),
+                "totalTime" to totalTime.get(),
+                "maxTime" to maxTime.get(),
+                "budgetExceededCount" to budgetExceededCount.get()
+            )
+        }
+    }
+
+    private val statsMap = ConcurrentHashMap<String, ScriptStats>()
+    private val totalStats = ScriptStats()
+
+    /**
+     * 超出限制时从 observeInstructionCount 抛出，Error 不会被 js 中的 try/catch 捕获
+     */
+    private class ScriptBudgetError(message: String) : Error(message)
+
+    /**
+     * 记录本线程正在执行的 js 的限制，嵌套执行时共用最外层的限制
+     */
+    private class SandboxContext(factory: ContextFactory) : Context(factory) {
+        var depth = 0
+        var deadline = Long.MAX_VALUE
+        var timeout = 0L
+        var instructionLimit = Long.MAX_VALUE
+        var instructionCount = 0L
+        var memoryLimit = Long.MAX_VALUE
+        var startAllocatedBytes = -1L
+    }
+
+    private val wrapFactory: WrapFactory by lazy {
+        // 使用 RhinoScriptEngine 设置的 WrapFactory
+        AppConst.SCRIPT_ENGINE
+        ContextFactory.getGlobal().call { it.wrapFactory }
+    }
+
+    private val contextFactory = object : ContextFactory() {
+        override fun makeContext(): Context {
+            val cx = SandboxContext(this)
+            cx.languageVersion = Context.VERSION_ES6
+            cx.optimizationLevel = -1
+            cx.setClassShutter { !protectedClasses.contains(it) }
+            cx.wrapFactory = wrapFactory
+            cx.instructionObserverThreshold = INSTRUCTION_THRESHOLD
+            return cx
+        }
+
+        override fun observeInstructionCount(cx: Context, instructionCount: Int) {
+            (cx as? SandboxContext)?.let { checkBudget(it, instructionCount) }
+        }
+    }
+
+    private val sharedScope: ScriptableObject by lazy {
+        val cx = contextFactory.enterContext()
+        try {
+            val scope = cx.initStandardObjects(null, true)
+            ImporterTopLevel.init(cx, scope, true)
+            cx.evaluateString(
+                scope,
+                """
+                function print(str, newline) {
+                    Packages.java.lang.System.out.print(String(str) + (newline ? '\n' : ''));
+                }
+                function println(str) {
+                    print(str, true);
+                }
+                """.trimIndent(),
+                "print",
+                1,
+                null
+            )
+            scope.sealObject()
+            scope
+        } finally {
+            Context.exit()
+        }
+    }
+
+    /**
+     * JavaImporter 的 importPackage/importClass，以调用时的顶层作用域为导入目标
+     */
+    private val importFunctions: Map<String, Any> by lazy {
+        val importer = ScriptableObject.getClassPrototype(sharedScope, "JavaImporter")
+        listOf("importPackage", "importClass").associateWith { ScriptableObject.getProperty(importer, it) }
+    }
+
+    /**
+     * 执行 js，sourceUrl 为书源链接，用于区分缓存和错误信息中的文件名
+     */
+    @Throws(ScriptException::class)
+    fun eval(jsStr: String, bindings: Map<String, Any?>, sourceUrl: String? = null): Any? {
+        val scope = sharedScope
+        val cx = contextFactory.enterContext()
+        val sandbox = cx as? SandboxContext
+        val isTopLevel = sandbox != null && sandbox.depth == 0
+        if (isTopLevel) {
+            startBudget(sandbox!!)
+        }
+        sandbox?.let { it.depth++ }
+        val start = System.currentTimeMillis()
+        var budgetExceeded = false
+        try {
+            val script = getScript(cx, jsStr, sourceUrl)
+            // 每次执行使用单独的 ImporterTopLevel，导入的包和类不会写入共用的作用域
+            val callScope = ImporterTopLevel()
+            callScope.prototype = scope
+            callScope.parentScope = null
+            importFunctions.forEach { (name, function) ->
+                callScope.put(name, callScope, function)
+            }
+            bindings.forEach { (key, value) ->
+                ScriptableObject.putProperty(callScope, key, Context.javaToJS(value, callScope))
+            }
+            return unwrapReturnValue(script.exec(cx, callScope))
+        } catch (e: RhinoException) {
+            val wrapped = (e as? WrappedException)?.wrappedException
+            if (wrapped is ScriptBudgetException) {
+                // 嵌套执行的 js 超出限制
+                budgetExceeded = true
+                throw wrapped
+            }
+            if (wrapped is RequestTimeoutException) {
+                // js 中的网络请求超过书源请求的截止时间，由调用方按超时记录
+                throw wrapped
+            }
+            val message = if (e is JavaScriptException) e.value.toString() else e.toString()
+            val error = ScriptException(message, e.sourceName() ?: UNKNOWN_SOURCE, e.lineNumber())
+            error.initCause(e)
+            throw error
+        } catch (e: ScriptBudgetError) {
+            budgetExceeded = true
+            throw ScriptBudgetException(e.message ?: "js 执行超出限制")
+        } finally {
+            sandbox?.let { it.depth-- }
+            Context.exit()
+            if (isTopLevel) {
+                val elapsed = System.currentTimeMillis() - start
+                recordStats(sourceUrl, elapsed, budgetExceeded)
+                if (budgetExceeded && sourceUrl != null) {
+                    SourceHealth.recordFailure(sourceUrl, elapsed, "js", "js 执行超出限制")
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前线程正在执行的 js 剩余的执行时间，不在 js 中或不限制时间时返回 null
+     */
+    fun getRemainingTime(): Long? {
+        val cx = Context.getCurrentContext() as? SandboxContext ?: return null
+        if (cx.depth == 0 || cx.deadline == Long.MAX_VALUE) {
+            return null
+        }
+        return Math.max(0L, cx.deadline - System.currentTimeMillis())
+    }
+
+    private fun startBudget(cx: SandboxContext) {
+        val config = appConfig
+        val timeout = config?.jsTimeout ?: 10000L
+        val maxInstructions = config?.jsMaxInstructions ?: 100000000L
+        val maxMemory = config?.jsMaxMemory ?: 256L
+        cx.timeout = timeout
+        cx.deadline = if (timeout > 0) System.currentTimeMillis() + timeout else Long.MAX_VALUE
+        cx.instructionLimit = if (maxInstructions > 0) maxInstructions else Long.MAX_VALUE
+        cx.instructionCount = 0L
+        cx.memoryLimit = if (maxMemory > 0) maxMemory * 1024L * 1024L else Long.MAX_VALUE
+        cx.startAllocatedBytes = if (maxMemory > 0) getAllocatedBytes() else -1L
+    }
+
+    private fun checkBudget(cx: SandboxContext, instructionCount: Int) {
+        if (cx.depth == 0) {
+            return
+        }
+        cx.instructionCount += instructionCount
+        if (cx.instructionCount > cx.instructionLimit) {
+            throw ScriptBudgetError("js 执行指令数超过${cx.instructionLimit}")
+        }
+        if (System.currentTimeMillis() > cx.deadline) {
+            throw ScriptBudgetError("js 执行时间超过${cx.timeout}ms")
+        }
+        // 以本线程分配的内存估算 js 使用的内存
+        if (cx.startAllocatedBytes >= 0) {
+            val allocatedBytes = getAllocatedBytes()
+            if (allocatedBytes >= 0 && allocatedBytes - cx.startAllocatedBytes > cx.memoryLimit) {
+                throw ScriptBudgetError("js 分配内存超过${cx.memoryLimit / 1024 / 1024}MB")
+            }
+        }
+    }
+
+    private fun getAllocatedBytes(): Long {
+        val bean = threadMXBean ?: return -1L
+        if (!bean.isThreadAllocatedMemorySupported || !bean.isThreadAllocatedMemoryEnabled) {
+            return -1L
+        }
+        return bean.getThreadAllocatedBytes(Thread.currentThread().id)
+    }
+
+    private fun recordStats(sourceUrl: String?, elapsed: Long, budgetExceeded: Boolean) {
+        val stats = sourceUrl?.let { statsMap.getOrPut(it) { ScriptStats() } }
+        for (s in listOfNotNull(totalStats, stats)) {
+            s.count.incrementAndGet()
+            s.totalTime.addAndGet(elapsed)
+            s.maxTime.accumulateAndGet(elapsed) { a, b -> Math.max(a, b) }
+            if (budgetExceeded) {
+                s.budgetExceededCount.incrementAndGet()
+            }
+        }
+    }
+
+    private fun getScript(cx: Context, jsStr: String, sourceUrl: String?): Script {
+        val key = (sourceUrl ?: "") + "\n" + MD5Utils.md5Encode(jsStr)
+        scriptCache.getIfPresent(key)?.let {
+            hitCount.incrementAndGet()
+            return it
+        }
+        compileCount.incrementAndGet()
+        val optimizationLevel = cx.optimizationLevel
+        cx.optimizationLevel = Math.max(-1, Math.min(9, appConfig?.jsOptimizationLevel ?: -1))
+        try {
+            val script = cx.compileString(jsStr, sourceUrl ?: UNKNOWN_SOURCE, 1, null)
+            scriptCache.put(key, script)
+            return script
+        } finally {
+            cx.optimizationLevel = optimizationLevel
+        }
+    }
+
+    private fun unwrapReturnValue(result: Any?): Any? {
+        var value = result
+        if (value is Wrapper) {
+            value = value.unwrap()
+        }
+        return if (value is Undefined) null else value
+    }
+
+    /**
+     * 脚本缓存和执行统计，只返回 js 执行时间最长的 limit 个书源
+     */
+    fun getStats(limit: Int = 20): Map<String, Any> {
+        val sources = statsMap.entries
+            .sortedByDescending { it.value.totalTime.get() }
+            .take(limit)
+            .associate { it.key to it.value.toMap() }
+        return mapOf(
+            "size" to scriptCache.size(),
+            "hitCount" to hitCount.get(),
+            "compileCount" to compileCount.get(),
+            "total" to totalStats.toMap(),
+            "sources" to sources
+        )
+    }
+}
@@ -5,6 +5,8 @@ import cn.hutool.crypto.symmetric.AES
 import cn.hutool.crypto.symmetric.DESede
 import io.legado.app.utils.Base64
 import io.legado.app.constant.AppConst.dateFormat
+import io.legado.app.help.coroutine.FanOut
+import io.legado.app.help.coroutine.JsBridge
 import io.legado.app.help.http.*
 import io.legado.app.model.Debug
 import io.legado.app.model.analyzeRule.AnalyzeUrl
@@ -12,9 +14,6 @@ import io.legado.app.model.analyzeRule.QueryTTF
 import io.legado.app.utils.*
 import io.legado.app.data.entities.BaseSource
 import io.legado.app.exception.NoStackTraceException
-import kotlinx.coroutines.Dispatchers.IO
-import kotlinx.coroutines.async
-import kotlinx.coroutines.runBlocking
 import org.jsoup.Connection
 import org.jsoup.Jsoup
 import com.htmake.reader.init.appCtx
@@ -42,10 +41,10 @@ interface JsExtensions {
      * 访问网络,返回String
      */
     fun ajax(urlStr: String): String? {
-        return runBlocking {
+        return JsBridge.await {
             kotlin.runCatching {
                 val analyzeUrl = AnalyzeUrl(urlStr, source = getSource())
-                analyzeUrl.getStrResponse(urlStr).body
+                analyzeUrl.getStrResponseAwait(urlStr).body
             }.onFailure {
                 it.printOnDebug()
             }.getOrElse {
@@ -55,19 +54,18 @@ interface JsExtensions {
     }
 
     /**
-     * 并发访问网络
+     * 并发访问网络，同时请求数不超过书源的同时请求数上限，请求失败的位置为 null
      */
     fun ajaxAll(urlList: Array<String>): Array<StrResponse?> {
-        return runBlocking {
-            val asyncArray = Array(urlList.size) {
-                async(IO) {
-                    val url = urlList[it]
-                    val analyzeUrl = AnalyzeUrl(url, source = getSource())
-                    analyzeUrl.getStrResponse(url)
-                }
-            }
-            val resArray = Array<StrResponse?>(urlList.size) {
-                asyncArray[it].await()
+        val source = getSource()
+        return JsBridge.await {
+            val resArray = arrayOfNulls<StrResponse>(urlList.size)
+            FanOut(JsBridge.getAjaxConcurrency(source, urlList.size)).run(0, urlList.size, { index ->
+                val url = urlList[index]
+                AnalyzeUrl(url, source = source).getStrResponseAwait(url)
+            }) { index, res ->
+                resArray[index] = res
+                true
             }
             resArray
         }
@@ -77,7 +75,7 @@ interface JsExtensions {
      * 访问网络,返回Response<String>
      */
     fun connect(urlStr: String): StrResponse {
-        return runBlocking {
+        return JsBridge.await {
             val analyzeUrl = AnalyzeUrl(urlStr, source = getSource())
             kotlin.runCatching {
                 analyzeUrl.getStrResponseAwait()
@@ -90,7 +88,7 @@ interface JsExtensions {
     }
 
     fun connect(urlStr: String, header: String?): StrResponse {
-        return runBlocking {
+        return JsBridge.await {
             val headerMap = GSON.fromJsonObject<Map<String, String>>(header).getOrNull()
             val analyzeUrl = AnalyzeUrl(urlStr, headerMapF = headerMap, source = getSource())
             kotlin.runCatching {
@@ -156,7 +154,7 @@ interface JsExtensions {
      *js实现读取cookie
      */
     fun getCookie(tag: String, key: String? = null): String {
-        val cookie = CookieStore.getCookie(tag)
+        val cookie = CookieStore.getCookie(getSource()?.getKey() ?: "", tag)
         val cookieMap = CookieStore.cookieToMap(cookie)
         return if (key != null) {
             cookieMap[key] ?: ""
@@ -417,8 +415,8 @@ interface JsExtensions {
      */
     fun getZipByteArrayContent(url: String, path: String): ByteArray? {
         val bytes = if (url.startsWith("http://") || url.startsWith("https://")) {
-            runBlocking {
-                return@runBlocking okHttpClient.newCall { url(url) }.bytes()
+            JsBridge.await {
+                okHttpClient.newCall { url(url) }.bytes()
             }
         } else {
             StringUtils.hexStringToByte(url)
@@ -460,15 +458,10 @@ interface JsExtensions {
         var qTTF = CacheManager.getQueryTTF(key)
         if (qTTF != null) return qTTF
         val font: ByteArray? = when {
-            str.isAbsUrl() -> runBlocking {
-                var x = CacheManager.getByteArray(key)
-                if (x == null) {
-                    x = okHttpClient.newCall { url(str) }.bytes()
-                    x.let {
-                        CacheManager.put(key, it)
-                    }
-                }
-                return@runBlocking x
+            str.isAbsUrl() -> CacheManager.getByteArray(key) ?: JsBridge.await {
+                okHttpClient.newCall { url(str) }.bytes()
+            }.also {
+                CacheManager.put(key, it)
             }
             str.indexOf("storage/") > 0 -> File(str).readBytes()
             else -> base64DecodeToByteArray(str)
@@ -0,0 +1,259 @@
+package io.legado.app.help
+
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import io.legado.app.exception.ConcurrentException
+import io.legado.app.exception.ContentEmptyException
+import io.legado.app.exception.RequestTimeoutException
+import io.legado.app.exception.ScriptBudgetException
+import io.legado.app.exception.TocEmptyException
+import kotlinx.coroutines.TimeoutCancellationException
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 书源健康状态(熔断)
+ *
+ * 所有用户共享，按书源记录最近的请求结果、延迟和错误类型。
+ * 连续失败达到 sourceHealthFailureThreshold 次，或最近的失败率过高时熔断(OPEN)，
+ * 熔断期间跳过该书源；到期后进入半开(HALF_OPEN)，只放行一个探测请求，
+ * 探测成功恢复(CLOSED)，失败则再次熔断并加倍熔断时间。
+ */
+object SourceHealth {
+
+    enum class State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // 每个书源保留的最近请求数
+    private const val WINDOW_SIZE = 50
+    // 超过该时间的请求结果不再参与统计
+    private const val WINDOW_MILLIS = 3600 * 1000L
+    // 最近请求中失败率达到该值时熔断
+    private const val MAX_ERROR_RATE = 0.8
+    private const val MIN_SAMPLES = 10
+    // 熔断时间上限
+    private const val MAX_OPEN_MILLIS = 6 * 3600 * 1000L
+    // 探测请求超过该时间没有结果时允许再次探测
+    private const val PROBE_TIMEOUT = 60 * 1000L
+
+    private val appConfig: AppConfig?
+        get() = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+
+    private class Health(val sourceUrl: String) {
+        val times = LongArray(WINDOW_SIZE)
+        val latencies = LongArray(WINDOW_SIZE)
+        val results = BooleanArray(WINDOW_SIZE)
+        var count = 0
+        var state = State.CLOSED
+        var consecutiveFailures = 0
+        var openCount = 0
+        var openUntil = 0L
+        var probeStartedAt = 0L
+        val errorCounts = hashMapOf<String, Int>()
+        var lastError = ""
+        var lastErrorTime = 0L
+    }
+
+    private val healthMap = ConcurrentHashMap<String, Health>()
+
+    private fun getHealth(sourceUrl: String): Health {
+        return healthMap.getOrPut(sourceUrl) { Health(sourceUrl) }
+    }
+
+    /**
+     * 是否可以请求该书源，半开状态时只放行一个探测请求
+     */
+    fun allowRequest(sourceUrl: String): Boolean {
+        val health = healthMap.get(sourceUrl) ?: return true
+        synchronized(health) {
+            val now = System.currentTimeMillis()
+            if (health.state == State.OPEN) {
+                if (now < health.openUntil) {
+                    return false
+                }
+                health.state = State.HALF_OPEN
+                health.probeStartedAt = 0L
+            }
+            if (health.state == State.HALF_OPEN) {
+                if (now - health.probeStartedAt < PROBE_TIMEOUT) {
+                    return false
+                }
+                health.probeStartedAt = now
+            }
+            return true
+        }
+    }
+
+    /**
+     * 当前是否处于熔断状态，不占用探测名额
+     */
+    fun isOpen(sourceUrl: String): Boolean {
+        val health = healthMap.get(sourceUrl) ?: return false
+        synchronized(health) {
+            return health.state == State.OPEN && System.currentTimeMillis() < health.openUntil
+        }
+    }
+
+    /**
+     * 执行书源请求并记录结果，与书源无关的错误(取消、并发限制)不计入
+     */
+    suspend fun <T> record(sourceUrl: String, block: suspend () -> T): T {
+        val start = System.currentTimeMillis()
+        try {
+            val result = block()
+            recordSuccess(sourceUrl, System.currentTimeMillis() - start)
+            return result
+        } catch (e: Throwable) {
+            getErrorType(e)?.let {
+                recordFailure(sourceUrl, System.currentTimeMillis() - start, it, e.toString())
+            }
+            throw e
+        }
+    }
+
+    fun getErrorType(e: Throwable): String? {
+        return when (e) {
+            is TimeoutCancellationException -> "timeout"
+            is CancellationException -> null
+            is ConcurrentException -> null
+            // 已在 JsEngine 中记录
+            is ScriptBudgetException -> null
+            is RequestTimeoutException -> "timeout"
+            is InterruptedIOException -> "timeout"
+            is IOException -> "network"
+            is ContentEmptyException, is TocEmptyException -> "empty"
+            else -> "rule"
+        }
+    }
+
+    fun recordSuccess(sourceUrl: String, latencyMillis: Long) {
+        val health = getHealth(sourceUrl)
+        synchronized(health) {
+            addSample(health, latencyMillis, true)
+            health.consecutiveFailures = 0
+            if (health.state != State.CLOSED) {
+                health.state = State.CLOSED
+                health.openCount = 0
+            }
+        }
+    }
+
+    fun recordFailure(sourceUrl: String, latencyMillis: Long, errorType: String, error: String) {
+        val health = getHealth(sourceUrl)
+        synchronized(health) {
+            val now = System.currentTimeMillis()
+            addSample(health, latencyMillis, false)
+            health.consecutiveFailures++
+            health.errorCounts.put(errorType, (health.errorCounts.get(errorType) ?: 0) + 1)
+            health.lastError = error
+            health.lastErrorTime = now
+            val threshold = Math.max(1, appConfig?.sourceHealthFailureThreshold ?: 5)
+            val shouldOpen = when (health.state) {
+                State.HALF_OPEN -> true
+                State.OPEN -> false
+                State.CLOSED -> health.consecutiveFailures >= threshold || isErrorRateHigh(health, now)
+            }
+            if (shouldOpen) {
+                val openMillis = Math.max(1L, appConfig?.sourceHealthOpenTime ?: 600L) * 1000L
+                health.state = State.OPEN
+                health.openUntil = now + Math.min(MAX_OPEN_MILLIS, openMillis shl Math.min(health.openCount, 10))
+                health.openCount++
+            }
+        }
+    }
+
+    private fun addSample(health: Health, latencyMillis: Long, success: Boolean) {
+        val index = health.count % WINDOW_SIZE
+        health.times[index] = System.currentTimeMillis()
+        health.latencies[index] = latencyMillis
+        health.results[index] = success
+        health.count++
+    }
+
+    /**
+     * 最近一段时间内的请求下标
+     */
+    private fun recentIndexes(health: Health, now: Long): List<Int> {
+        return (0 until Math.min(health.count, WINDOW_SIZE)).filter { now - health.times[it] <= WINDOW_MILLIS }
+    }
+
+    private fun isErrorRateHigh(health: Health, now: Long): Boolean {
+        val indexes = recentIndexes(health, now)
+        if (indexes.size < MIN_SAMPLES) {
+            return false
+        }
+        return indexes.count { !health.results[it] }.toDouble() / indexes.size >= MAX_ERROR_RATE
+    }
+
+    private fun toMap(health: Health): Map<String, Any> {
+        synchronized(health) {
+            val now = System.currentTimeMillis()
+            val indexes = recentIndexes(health, now)
+            val latencies = indexes.map { health.latencies[it] }.sorted()
+            val state = if (health.state == State.OPEN && now >= health.openUntil) State.HALF_OPEN else health.state
+            return mapOf(
+                "sourceUrl" to health.sourceUrl,
+                "state" to state.name,
+                "sampleCount" to indexes.size,
+                "successRate" to (if (indexes.isEmpty()) 1.0 else indexes.count { health.results[it] }.toDouble() / indexes.size),
+                "p50" to (if (latencies.isEmpty()) 0L else latencies[latencies.size / 2]),
+                "p99" to (if (latencies.isEmpty()) 0L else latencies[Math.min(latencies.size - 1, latencies.size * 99 / 100)]),
+                "consecutiveFailures" to health.consecutiveFailures,
+                "errors" to HashMap(health.errorCounts),
+                "error" to health.lastError,
+                "time" to health.lastErrorTime,
+                "openUntil" to health.openUntil
+            )
+        }
+    }
+
+    fun getHealthInfo(sourceUrl: String): Map<String, Any>? {
+        return healthMap.get(sourceUrl)?.let { toMap(it) }
+    }
+
+    /**
+     * 书源健康状态列表，sourceUrls 为空时返回所有书源
+     */
+    fun getHealthList(sourceUrls: Collection<String>? = null, onlyUnhealthy: Boolean = false): List<Map<String, Any>> {
+        val list = arrayListOf<Map<String, Any>>()
+        val healths = if (sourceUrls == null) healthMap.values else sourceUrls.mapNotNull { healthMap.get(it) }
+        for (health in healths) {
+            val info = toMap(health)
+            if (onlyUnhealthy && info.get("state") == State.CLOSED.name) {
+                continue
+            }
+            list.add(info)
+        }
+        return list
+    }
+
+    /**
+     * 手动恢复书源
+     */
+    fun reset(sourceUrl: String) {
+        healthMap.remove(sourceUrl)
+    }
+
+    fun getStats(): Map<String, Any> {
+        val now = System.currentTimeMillis()
+        var openCount = 0
+        var halfOpenCount = 0
+        healthMap.values.forEach { health ->
+            synchronized(health) {
+                if (health.state == State.OPEN && now < health.openUntil) {
+                    openCount++
+                } else if (health.state != State.CLOSED) {
+                    halfOpenCount++
+                }
+            }
+        }
+        return mapOf(
+            "sourceCount" to healthMap.size,
+            "openCount" to openCount,
+            "halfOpenCount" to halfOpenCount
+        )
+    }
+}
@@ -0,0 +1,201 @@
+package io.legado.app.help.coroutine
+
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeout
+import java.util.LinkedList
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.resume
+
+/**
+ * 自适应并发上限(AIMD)
+ *
+ * 每 windowSize 个请求统计一次 p50/p99 延迟和失败率，
+ * 失败率过高、p50 明显高于基准延迟或 isOverloaded 返回 true 时按比例降低上限，
+ * 否则在并发被充分使用时逐步提高上限。
+ * 等待名额的请求按先后顺序排队，名额释放时直接交给队首的请求。
+ */
+class AdaptiveLimit(
+    initialLimit: Int,
+    private val minLimit: Int,
+    private val maxLimit: () -> Int,
+    private val windowSize: Int = 50,
+    private val isOverloaded: () -> Boolean = { false }
+) {
+
+    companion object {
+        // 失败率超过该值时降低并发
+        private const val MAX_ERROR_RATE = 0.3
+        // p50 超过基准延迟的倍数时降低并发
+        private const val MAX_LATENCY_RATIO = 2.0
+        private const val DECREASE_FACTOR = 0.75
+    }
+
+    @Volatile
+    var limit: Int = Math.max(minLimit, initialLimit)
+        private set
+
+    private val inFlight = AtomicInteger()
+
+    private class Waiter {
+        var cont: CancellableContinuation<Unit>? = null
+        // 名额已交给该请求，由 waiters 的锁保护
+        var granted = false
+    }
+
+    private val waiters = LinkedList<Waiter>()
+
+    private val samples = LongArray(windowSize)
+    private var sampleCount = 0
+    private var errorCount = 0
+    private var peakInFlight = 0
+    // 无负载时的延迟，随时间缓慢上浮以适应网络变化
+    private var baseLatency = 0L
+
+    @Volatile
+    private var lastStats = mapOf<String, Any>()
+
+    fun getInFlight(): Int {
+        return inFlight.get()
+    }
+
+    fun tryAcquire(): Boolean {
+        synchronized(waiters) {
+            // 有请求在排队时不插队
+            if (waiters.isNotEmpty() || inFlight.get() >= limit) {
+                return false
+            }
+            inFlight.incrementAndGet()
+            return true
+        }
+    }
+
+    /**
+     * 等待获得并发名额，超时返回 false
+     */
+    suspend fun acquire(maxWaitMillis: Long): Boolean {
+        if (tryAcquire()) {
+            return true
+        }
+        val waiter = Waiter()
+        try {
+            withTimeout(maxWaitMillis) {
+                suspendCancellableCoroutine<Unit> { cont ->
+                    val granted = synchronized(waiters) {
+                        if (waiters.isEmpty() && inFlight.get() < limit) {
+                            inFlight.incrementAndGet()
+                            waiter.granted = true
+                            true
+                        } else {
+                            waiter.cont = cont
+                            waiters.add(waiter)
+                            false
+                        }
+                    }
+                    if (granted) {
+                        cont.resume(Unit)
+                    }
+                }
+            }
+            return true
+        } catch (e: CancellationException) {
+            val granted = synchronized(waiters) {
+                waiters.remove(waiter)
+                waiter.granted
+            }
+            // 取消时名额已经交给了本请求，归还名额
+            if (granted) {
+                releaseSlot()
+            }
+            if (e is TimeoutCancellationException) {
+                return false
+            }
+            throw e
+        }
+    }
+
+    /**
+     * 释放没有实际使用的名额，不记录样本
+     */
+    fun releaseUnused() {
+        releaseSlot()
+    }
+
+    /**
+     * 请求结束，记录延迟和结果
+     */
+    fun release(latencyMillis: Long, success: Boolean) {
+        val current = inFlight.get()
+        releaseSlot()
+        synchronized(samples) {
+            peakInFlight = Math.max(peakInFlight, current)
+            samples[sampleCount++] = latencyMillis
+            if (!success) {
+                errorCount++
+            }
+            if (sampleCount >= windowSize) {
+                adjust()
+            }
+        }
+        // 上限可能已提高
+        grantWaiters()
+    }
+
+    private fun releaseSlot() {
+        synchronized(waiters) {
+            inFlight.decrementAndGet()
+        }
+        grantWaiters()
+    }
+
+    /**
+     * 把空闲名额按顺序交给排队的请求
+     */
+    private fun grantWaiters() {
+        val granted = arrayListOf<Waiter>()
+        synchronized(waiters) {
+            while (waiters.isNotEmpty() && inFlight.get() < limit) {
+                val waiter = waiters.removeFirst()
+                inFlight.incrementAndGet()
+                waiter.granted = true
+                granted.add(waiter)
+            }
+        }
+        // 请求已取消时 resume 无效，由取消的请求归还名额
+        granted.forEach { it.cont?.resume(Unit) }
+    }
+
+    private fun adjust() {
+        val sorted = samples.copyOf(sampleCount)
+        sorted.sort()
+        val p50 = sorted[sorted.size / 2]
+        val p99 = sorted[Math.min(sorted.size - 1, sorted.size * 99 / 100)]
+        val errorRate = errorCount.toDouble() / sampleCount
+        baseLatency = if (baseLatency <= 0) p50 else Math.min(p50, baseLatency + baseLatency / 20 + 1)
+
+        val max = Math.max(minLimit, maxLimit())
+        val overloaded = errorRate > MAX_ERROR_RATE || p50 > baseLatency * MAX_LATENCY_RATIO || isOverloaded()
+        limit = if (overloaded) {
+            Math.max(minLimit, (limit * DECREASE_FACTOR).toInt())
+        } else if (peakInFlight >= limit / 2) {
+            Math.min(max, limit + Math.max(1, limit / 10))
+        } else {
+            Math.min(max, limit)
+        }
+        lastStats = mapOf(
+            "p50" to p50,
+            "p99" to p99,
+            "errorRate" to errorRate,
+            "baseLatency" to baseLatency
+        )
+        sampleCount = 0
+        errorCount = 0
+        peakInFlight = 0
+    }
+
+    fun getStats(): Map<String, Any> {
+        return mapOf("limit" to limit, "inFlight" to inFlight.get()) + lastStats
+    }
+}
@@ -0,0 +1,115 @@
+package io.legado.app.help.coroutine
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.util.TreeMap
+
+/**
+ * 并发执行一组任务
+ *
+ * 同时最多执行 concurrency() 个任务，每个任务完成后立即回调 onResult，
+ * ordered 为 true 时按下标顺序回调。onResult 返回 false 或调用 stop 后
+ * 取消所有未完成的任务(包括正在进行的网络请求)，run 正常返回。
+ */
+class FanOut(private val concurrency: () -> Int, private val ordered: Boolean = false) {
+
+    constructor(concurrency: Int, ordered: Boolean = false) : this({ concurrency }, ordered)
+
+    @Volatile
+    var isStopped = false
+        private set
+
+    @Volatile
+    private var job: Job? = null
+
+    /**
+     * 停止执行，可以在其它线程中调用，比如客户端断开连接时
+     */
+    fun stop() {
+        isStopped = true
+        job?.cancel()
+    }
+
+    /**
+     * 执行 [startIndex, endIndex) 的任务，任务失败时 onResult 收到 null
+     */
+    suspend fun <T> run(
+        startIndex: Int,
+        endIndex: Int,
+        task: suspend (Int) -> T,
+        onResult: suspend (Int, T?) -> Boolean
+    ) {
+        if (isStopped || startIndex >= endIndex) {
+            return
+        }
+        try {
+            coroutineScope {
+                job = coroutineContext[Job]
+                if (isStopped) {
+                    // stop 在 job 赋值前调用
+                    coroutineContext.cancelChildren()
+                    return@coroutineScope
+                }
+                val results = Channel<Pair<Int, T?>>(Channel.UNLIMITED)
+                // 按顺序回调时暂存先完成的结果
+                val pending = TreeMap<Int, T?>()
+                var nextIndex = startIndex
+                var nextResultIndex = startIndex
+                var running = 0
+
+                fun launchTasks() {
+                    val limit = Math.max(1, concurrency())
+                    while (nextIndex < endIndex && running < limit) {
+                        val index = nextIndex++
+                        running++
+                        launch {
+                            val result = try {
+                                task(index)
+                            } catch (e: CancellationException) {
+                                throw e
+                            } catch (e: Exception) {
+                                null
+                            }
+                            results.send(Pair(index, result))
+                        }
+                    }
+                }
+
+                launchTasks()
+                var stopped = false
+                while (running > 0 && !stopped) {
+                    val (index, result) = results.receive()
+                    running--
+                    if (ordered) {
+                        pending.put(index, result)
+                        while (!stopped && pending.isNotEmpty() && pending.firstKey() == nextResultIndex) {
+                            stopped = !onResult(nextResultIndex, pending.remove(nextResultIndex))
+                            nextResultIndex++
+                        }
+                    } else {
+                        stopped = !onResult(index, result)
+                    }
+                    if (!stopped && !isStopped) {
+                        launchTasks()
+                    }
+                    stopped = stopped || isStopped
+                }
+                if (stopped) {
+                    isStopped = true
+                    coroutineContext.cancelChildren()
+                }
+            }
+        } catch (e: CancellationException) {
+            // 被 stop 取消时正常返回
+            if (!isStopped) {
+                throw e
+            }
+        } finally {
+            job = null
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.legado.app.help.coroutine
+
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import io.legado.app.data.entities.BaseSource
+import io.legado.app.data.entities.BookSource
+import io.legado.app.exception.RequestTimeoutException
+import io.legado.app.exception.ScriptBudgetException
+import io.legado.app.help.JsEngine
+import io.legado.app.help.http.RequestDeadline
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 书源 js 与网络请求之间的桥接
+ *
+ * 书源请求(包括规则解析和 js)在单独的有界线程池 jsDispatcher 中执行，不占用 IO 线程。
+ * js 中的 ajax 等网络请求是同步调用，交给另一个有界线程池 networkDispatcher 中的协程执行，
+ * js 线程只等待结果，等待时间不超过 js 剩余的执行时间和书源请求的截止时间。
+ * 已在这两个线程池中时(js 请求的 url 中又有 js)直接在当前线程执行，避免线程池互相等待。
+ */
+object JsBridge {
+
+    // ajaxAll 默认的同时请求数
+    private const val AJAX_ALL_CONCURRENCY = 8
+
+    private val appConfig: AppConfig?
+        get() = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+
+    private val isJsThread = ThreadLocal<Boolean>()
+    private val isNetworkThread = ThreadLocal<Boolean>()
+
+    private val jsExecutor: ThreadPoolExecutor by lazy {
+        newExecutor("reader-js", Math.max(1, appConfig?.jsThreads ?: 32), false)
+    }
+
+    private val networkExecutor: ThreadPoolExecutor by lazy {
+        newExecutor("reader-js-network", Math.max(1, appConfig?.jsNetworkThreads ?: 16), true)
+    }
+
+    val jsDispatcher: CoroutineDispatcher by lazy {
+        jsExecutor.asCoroutineDispatcher()
+    }
+
+    private val networkDispatcher: CoroutineDispatcher by lazy {
+        networkExecutor.asCoroutineDispatcher()
+    }
+
+    private fun newExecutor(name: String, threads: Int, networkThread: Boolean): ThreadPoolExecutor {
+        val threadCount = AtomicInteger()
+        val threadFactory = ThreadFactory { runnable ->
+            val thread = Thread({
+                if (networkThread) {
+                    isNetworkThread.set(true)
+                } else {
+                    isJsThread.set(true)
+                }
+                runnable.run()
+            }, "$name-${threadCount.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+        val executor = ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, LinkedBlockingQueue(), threadFactory)
+        executor.allowCoreThreadTimeOut(true)
+        return executor
+    }
+
+    /**
+     * 在 jsDispatcher 中执行书源请求
+     */
+    suspend fun <T> runJs(block: suspend () -> T): T {
+        if (isJsThread.get() == true || isNetworkThread.get() == true) {
+            return block()
+        }
+        return withContext(jsDispatcher) {
+            block()
+        }
+    }
+
+    /**
+     * 在调用方所在的线程池中启动新协程使用的 dispatcher，
+     * 网络线程中启动的协程仍在网络线程池执行，避免与 js 线程池互相等待
+     */
+    fun callerDispatcher(): CoroutineDispatcher {
+        return if (isNetworkThread.get() == true) networkDispatcher else jsDispatcher
+    }
+
+    /**
+     * 供 js 同步调用的网络请求，在 networkDispatcher 中执行 block 并等待结果
+     */
+    fun <T> await(block: suspend CoroutineScope.() -> T): T {
+        val deadline = RequestDeadline.current()
+        val context = RequestDeadline.asContext(deadline)
+        if (isNetworkThread.get() == true) {
+            return runBlocking(context, block)
+        }
+        val jsRemaining = JsEngine.getRemainingTime()
+        val deadlineRemaining = deadline?.remainingMillis()
+        val timeout = listOfNotNull(jsRemaining, deadlineRemaining).minOrNull()
+        val result = AtomicReference<Result<T>>()
+        val latch = CountDownLatch(1)
+        val job = GlobalScope.launch(networkDispatcher + context) {
+            try {
+                result.set(runCatching { block() })
+            } finally {
+                latch.countDown()
+            }
+        }
+        if (timeout == null) {
+            latch.await()
+        } else if (!latch.await(Math.max(0L, timeout), TimeUnit.MILLISECONDS)) {
+            job.cancel()
+            if (deadlineRemaining != null && deadlineRemaining == timeout) {
+                // 书源请求的截止时间先到，按请求超时处理
+                throw RequestTimeoutException("请求超时(${timeout}ms)")
+            }
+            throw ScriptBudgetException("js 等待网络请求超时(${timeout}ms)")
+        }
+        return result.get().getOrThrow()
+    }
+
+    /**
+     * ajaxAll 的同时请求数，书源设置了同时请求数上限时不超过该上限
+     */
+    fun getAjaxConcurrency(source: BaseSource?, size: Int): Int {
+        val limit = (source as? BookSource)?.maxConcurrentRequests?.takeIf { it > 0 } ?: AJAX_ALL_CONCURRENCY
+        return Math.max(1, Math.min(size, limit))
+    }
+
+    fun getStats(): Map<String, Int> {
+        return mapOf(
+            "jsActiveThreads" to jsExecutor.activeCount,
+            "jsPoolSize" to jsExecutor.poolSize,
+            "jsQueued" to jsExecutor.queue.size,
+            "networkActiveThreads" to networkExecutor.activeCount,
+            "networkPoolSize" to networkExecutor.poolSize,
+            "networkQueued" to networkExecutor.queue.size
+        )
+    }
+}
@@ -0,0 +1,136 @@
+package io.legado.app.help.coroutine
+
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import kotlinx.coroutines.CancellationException
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 多书源搜索的并发控制
+ *
+ * 全局并发上限根据搜索延迟、失败率和系统负载自动调整，并由同时进行的搜索平分，
+ * 客户端传入的 concurrentCount 只作为单次搜索的上限。
+ * 每个书源另有各自的并发上限，慢源和失败多的源会被限制到更低的并发。
+ */
+object SearchConcurrency {
+
+    // 每次搜索至少保留的并发数
+    private const val MIN_SHARE = 4
+    // 等待书源并发名额的最长时间
+    private const val SOURCE_MAX_WAIT = 30000L
+
+    private val appConfig: AppConfig?
+        get() = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+
+    private val activeSearches = AtomicInteger()
+
+    @Volatile
+    private var loadCheckedAt = 0L
+    @Volatile
+    private var highLoad = false
+
+    private val globalLimit = AdaptiveLimit(
+        initialLimit = getGlobalMaxLimit() / 2,
+        minLimit = MIN_SHARE,
+        maxLimit = { getGlobalMaxLimit() },
+        isOverloaded = { isHighLoad() }
+    )
+
+    private val sourceLimits = ConcurrentHashMap<String, AdaptiveLimit>()
+
+    /**
+     * 全局搜索并发上限，给阅读等其它请求保留 1/4 的网络请求名额
+     */
+    private fun getGlobalMaxLimit(): Int {
+        val config = appConfig ?: return 64
+        return Math.max(MIN_SHARE, Math.min(config.searchMaxConcurrent, config.httpMaxRequests * 3 / 4))
+    }
+
+    private fun getSourceMaxLimit(): Int {
+        return Math.max(1, appConfig?.searchSourceMaxConcurrent ?: 4)
+    }
+
+    /**
+     * 系统负载是否超过 cpu 核数的 1.5 倍，每秒检查一次
+     */
+    private fun isHighLoad(): Boolean {
+        val now = System.currentTimeMillis()
+        if (now - loadCheckedAt > 1000) {
+            loadCheckedAt = now
+            val load = ManagementFactory.getOperatingSystemMXBean().systemLoadAverage
+            highLoad = load > Runtime.getRuntime().availableProcessors() * 1.5
+        }
+        return highLoad
+    }
+
+    /**
+     * 开始一次多书源搜索，block 的参数返回当前可以使用的并发数
+     */
+    suspend fun <T> session(maxConcurrent: Int, block: suspend (() -> Int) -> T): T {
+        activeSearches.incrementAndGet()
+        try {
+            return block { getConcurrentCount(maxConcurrent) }
+        } finally {
+            activeSearches.decrementAndGet()
+        }
+    }
+
+    private fun getConcurrentCount(maxConcurrent: Int): Int {
+        val share = globalLimit.limit / Math.max(1, activeSearches.get())
+        return Math.max(1, Math.min(maxConcurrent, Math.max(MIN_SHARE, share)))
+    }
+
+    /**
+     * 在书源和全局的并发限制内执行搜索，等待超时返回 null
+     */
+    suspend fun <T> withSource(sourceKey: String, block: suspend () -> T): T? {
+        val sourceLimit = sourceLimits.getOrPut(sourceKey) {
+            AdaptiveLimit(getSourceMaxLimit(), 1, { getSourceMaxLimit() }, windowSize = 10)
+        }
+        if (!sourceLimit.acquire(SOURCE_MAX_WAIT)) {
+            return null
+        }
+        // 全局名额按搜索平分，一般不需要等待
+        val globalAcquired = try {
+            globalLimit.acquire(SOURCE_MAX_WAIT)
+        } catch (e: CancellationException) {
+            sourceLimit.releaseUnused()
+            throw e
+        }
+        if (!globalAcquired) {
+            // 全局名额不足与书源无关，不计入书源的样本
+            sourceLimit.releaseUnused()
+            return null
+        }
+        val start = System.currentTimeMillis()
+        val result = try {
+            block()
+        } catch (e: CancellationException) {
+            // 搜索已结束或被取消，不是书源的问题，不计入样本
+            globalLimit.releaseUnused()
+            sourceLimit.releaseUnused()
+            throw e
+        } catch (e: Throwable) {
+            val latency = System.currentTimeMillis() - start
+            globalLimit.release(latency, false)
+            sourceLimit.release(latency, false)
+            throw e
+        }
+        val latency = System.currentTimeMillis() - start
+        globalLimit.release(latency, true)
+        sourceLimit.release(latency, true)
+        return result
+    }
+
+    fun getStats(): Map<String, Any> {
+        val limitedSources = sourceLimits.count { it.value.limit < getSourceMaxLimit() }
+        return mapOf(
+            "activeSearches" to activeSearches.get(),
+            "global" to globalLimit.getStats(),
+            "sourceCount" to sourceLimits.size,
+            "limitedSourceCount" to limitedSources
+        )
+    }
+}
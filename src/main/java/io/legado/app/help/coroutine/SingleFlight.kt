@@ -0,0 +1,74 @@
+package io.legado.app.help.coroutine
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 合并相同的并发请求
+ *
+ * 同一个 key 同时只执行一次 block，其它调用者等待并共享同一个结果，
+ * 成功的结果在 shareMillis 内继续共享，失败的结果不共享。
+ * block 不在调用者的协程中执行，某个调用者取消不会影响其它调用者。
+ */
+class SingleFlight<T>(private val shareMillis: Long = 0) {
+
+    companion object {
+        private const val SWEEP_SIZE = 256
+    }
+
+    private class Flight<T>(val deferred: Deferred<T>) {
+        @Volatile
+        var completedAt = 0L
+    }
+
+    private val flights = ConcurrentHashMap<String, Flight<T>>()
+
+    private fun isExpired(flight: Flight<T>, now: Long): Boolean {
+        return flight.completedAt > 0 && now - flight.completedAt > shareMillis
+    }
+
+    suspend fun execute(key: String, block: suspend () -> T): T {
+        while (true) {
+            val flight = flights.get(key)
+            if (flight != null && !isExpired(flight, System.currentTimeMillis())) {
+                return flight.deferred.await()
+            }
+            val newFlight = Flight(GlobalScope.async(Dispatchers.IO, start = CoroutineStart.LAZY) { block() })
+            val added = if (flight == null) {
+                flights.putIfAbsent(key, newFlight) == null
+            } else {
+                flights.replace(key, flight, newFlight)
+            }
+            if (!added) {
+                // 其它调用者已经发起了请求
+                newFlight.deferred.cancel()
+                continue
+            }
+            newFlight.deferred.invokeOnCompletion { error ->
+                if (error != null || shareMillis <= 0) {
+                    flights.remove(key, newFlight)
+                } else {
+                    newFlight.completedAt = System.currentTimeMillis()
+                }
+            }
+            sweep()
+            newFlight.deferred.start()
+            return newFlight.deferred.await()
+        }
+    }
+
+    /**
+     * 清理超过共享时间的结果
+     */
+    private fun sweep() {
+        if (flights.size < SWEEP_SIZE) {
+            return
+        }
+        val now = System.currentTimeMillis()
+        flights.entries.removeIf { isExpired(it.value, now) }
+    }
+}
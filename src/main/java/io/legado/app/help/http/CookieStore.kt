@@ -2,44 +2,231 @@
 
 package io.legado.app.help.http
 
-import io.legado.app.utils.TextUtils
-import io.legado.app.data.entities.Cookie
+import com.htmake.reader.utils.getStorage
+import com.htmake.reader.utils.saveStorage
 import io.legado.app.help.http.api.CookieManager
+import io.legado.app.utils.GSON
 import io.legado.app.utils.NetworkUtils
+import io.legado.app.utils.TextUtils
+import io.legado.app.utils.fromJsonObject
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import okhttp3.Cookie
+import okhttp3.Interceptor
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 
-// TODO 处理cookie
+/**
+ * cookie 存储
+ *
+ * 按书源(getKey)和域名(NetworkUtils.getSubDomain)保存，不属于书源的请求使用空字符串作为书源。
+ * 书源是所有用户共用的，同一书源的登录状态也由所有用户共用，不希望共用时关闭 httpSaveCookie，
+ * 此时不再自动保存响应中的 cookie，只保存书源 js 主动设置的 cookie。
+ * 内存中使用 ConcurrentHashMap，修改后延迟写入 storage/cache/cookies.json，
+ * 有过期时间的 cookie 到期后自动删除，没有过期时间的会话 cookie 一直保留到被替换或删除。
+ */
 object CookieStore : CookieManager {
 
-    override fun setCookie(url: String, cookie: String?) {
-        // val cookieBean = Cookie(NetworkUtils.getSubDomain(url), cookie ?: "")
-        // appDb.cookieDao.insert(cookieBean)
+    // 修改后延迟保存的时间
+    private const val SAVE_DELAY = 3000L
+
+    data class CookieValue(
+        var value: String = "",
+        // 过期时间，0 为不过期
+        var expiresAt: Long = 0L
+    )
+
+    /**
+     * 请求的 cookie 信息，作为 okHttp 请求的 tag
+     * @param scope 书源
+     * @param customCookie 书源 header 中设置的 cookie，优先级高于保存的 cookie
+     */
+    class RequestScope(val scope: String, val customCookie: String?) {
+        // 经过网络拦截器的次数，大于 0 时为重定向或重试
+        var hops = 0
     }
 
-    override fun replaceCookie(url: String, cookie: String) {
-        if (TextUtils.isEmpty(url) || TextUtils.isEmpty(cookie)) {
+    /**
+     * 某个书源的 cookie，供书源 js 中的 cookie 对象使用
+     */
+    private class SourceCookieManager(private val scope: String) : CookieManager {
+        override fun setCookie(url: String, cookie: String?) = CookieStore.setCookie(scope, url, cookie)
+
+        override fun replaceCookie(url: String, cookie: String) = CookieStore.replaceCookie(scope, url, cookie)
+
+        override fun getCookie(url: String): String = CookieStore.getCookie(scope, url)
+
+        override fun removeCookie(url: String) = CookieStore.removeCookie(scope, url)
+
+        override fun cookieToMap(cookie: String) = CookieStore.cookieToMap(cookie)
+
+        override fun mapToCookie(cookieMap: Map<String, String>?) = CookieStore.mapToCookie(cookieMap)
+    }
+
+    // 书源 -> 域名 -> cookie 名 -> cookie
+    private val cookieMap: ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CookieValue>>> by lazy {
+        load()
+    }
+
+    private val saveScheduled = AtomicBoolean(false)
+
+    /**
+     * 书源的 cookie 管理，scope 为空时使用不属于书源的 cookie
+     */
+    fun forSource(scope: String?): CookieManager {
+        return if (scope.isNullOrEmpty()) this else SourceCookieManager(scope)
+    }
+
+    /**
+     * okHttp 的网络拦截器，保存响应中的 Set-Cookie。
+     *
+     * 不使用 CookieJar：BridgeInterceptor 会用 CookieJar 的 cookie 替换请求中的 Cookie 头，
+     * 书源 header 中设置的 cookie 会丢失。第一次请求的 Cookie 头由 AnalyzeUrl.getRequestHeaders 设置，
+     * 重定向时在原 Cookie 头上合并保存的 cookie(包括 302 响应刚设置的)，书源设置的 cookie 仍然优先。
+     */
+    val interceptor = Interceptor { chain ->
+        var request = chain.request()
+        val requestScope = request.tag(RequestScope::class.java)
+        val scope = requestScope?.scope ?: ""
+        if (requestScope != null && requestScope.hops++ > 0) {
+            val cookies = cookieToMap(request.header("Cookie") ?: "")
+            cookies.putAll(cookieToMap(getCookie(scope, request.url.toString())))
+            cookies.putAll(cookieToMap(requestScope.customCookie ?: ""))
+            mapToCookie(cookies)?.let {
+                request = request.newBuilder().header("Cookie", it).build()
+            }
+        }
+        val response = chain.proceed(request)
+        if (httpConfig.httpSaveCookie) {
+            saveFromResponse(scope, request.url.toString(), Cookie.parseAll(request.url, response.headers))
+        }
+        response
+    }
+
+    private fun saveFromResponse(scope: String, url: String, cookies: List<Cookie>) {
+        if (cookies.isEmpty()) {
+            return
+        }
+        val domainCookies = getDomainCookies(scope, url, true) ?: return
+        val now = System.currentTimeMillis()
+        for (cookie in cookies) {
+            if (cookie.expiresAt <= now || cookie.value.isEmpty()) {
+                domainCookies.remove(cookie.name)
+            } else {
+                domainCookies.put(cookie.name, CookieValue(cookie.value, if (cookie.persistent) cookie.expiresAt else 0L))
+            }
+        }
+        scheduleSave()
+    }
+
+    private fun getDomainCookies(scope: String, url: String, create: Boolean): ConcurrentHashMap<String, CookieValue>? {
+        val domain = NetworkUtils.getSubDomain(url)
+        if (domain.isEmpty()) {
+            return null
+        }
+        if (!create) {
+            return cookieMap.get(scope)?.get(domain)
+        }
+        return cookieMap.getOrPut(scope) { ConcurrentHashMap() }.getOrPut(domain) { ConcurrentHashMap() }
+    }
+
+    private fun load(): ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CookieValue>>> {
+        val map = ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, CookieValue>>>()
+        val saved = GSON.fromJsonObject<Map<String, Map<String, Map<String, CookieValue>>>>(getStorage("cache", "cookies")).getOrNull()
+        val now = System.currentTimeMillis()
+        saved?.forEach { (scope, domains) ->
+            val scopeCookies = ConcurrentHashMap<String, ConcurrentHashMap<String, CookieValue>>()
+            domains.forEach { (domain, cookies) ->
+                val domainCookies = ConcurrentHashMap<String, CookieValue>()
+                cookies.forEach { (name, cookie) ->
+                    if (cookie.expiresAt == 0L || cookie.expiresAt > now) {
+                        domainCookies.put(name, cookie)
+                    }
+                }
+                if (domainCookies.isNotEmpty()) {
+                    scopeCookies.put(domain, domainCookies)
+                }
+            }
+            if (scopeCookies.isNotEmpty()) {
+                map.put(scope, scopeCookies)
+            }
+        }
+        return map
+    }
+
+    private fun scheduleSave() {
+        if (!saveScheduled.compareAndSet(false, true)) {
             return
         }
-        val oldCookie = getCookie(url)
-        if (TextUtils.isEmpty(oldCookie)) {
-            setCookie(url, cookie)
+        GlobalScope.launch(Dispatchers.IO) {
+            delay(SAVE_DELAY)
+            saveScheduled.set(false)
+            try {
+                saveStorage("cache", "cookies", value = cookieMap)
+            } catch (e: Exception) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    fun setCookie(scope: String, url: String, cookie: String?) {
+        val domain = NetworkUtils.getSubDomain(url)
+        if (domain.isEmpty()) {
+            return
+        }
+        val domainCookies = ConcurrentHashMap<String, CookieValue>()
+        cookieToMap(cookie ?: "").forEach { (name, value) ->
+            domainCookies.put(name, CookieValue(value))
+        }
+        if (domainCookies.isEmpty()) {
+            cookieMap.get(scope)?.remove(domain)
         } else {
-            val cookieMap = cookieToMap(oldCookie)
-            cookieMap.putAll(cookieToMap(cookie))
-            val newCookie = mapToCookie(cookieMap)
-            setCookie(url, newCookie)
+            cookieMap.getOrPut(scope) { ConcurrentHashMap() }.put(domain, domainCookies)
         }
+        scheduleSave()
     }
 
-    override fun getCookie(url: String): String {
-        // val cookieBean = appDb.cookieDao.get(NetworkUtils.getSubDomain(url))
-        // return cookieBean?.cookie ?: ""
-        return ""
+    fun replaceCookie(scope: String, url: String, cookie: String) {
+        if (TextUtils.isEmpty(url) || TextUtils.isEmpty(cookie)) {
+            return
+        }
+        val domainCookies = getDomainCookies(scope, url, true) ?: return
+        cookieToMap(cookie).forEach { (name, value) ->
+            domainCookies.put(name, CookieValue(value))
+        }
+        scheduleSave()
     }
 
-    override fun removeCookie(url: String) {
-        // appDb.cookieDao.delete(NetworkUtils.getSubDomain(url))
+    fun getCookie(scope: String, url: String): String {
+        val domainCookies = getDomainCookies(scope, url, false) ?: return ""
+        val now = System.currentTimeMillis()
+        val map = linkedMapOf<String, String>()
+        domainCookies.forEach { (name, cookie) ->
+            if (cookie.expiresAt != 0L && cookie.expiresAt <= now) {
+                domainCookies.remove(name, cookie)
+            } else {
+                map.put(name, cookie.value)
+            }
+        }
+        return mapToCookie(map) ?: ""
     }
 
+    fun removeCookie(scope: String, url: String) {
+        if (cookieMap.get(scope)?.remove(NetworkUtils.getSubDomain(url)) != null) {
+            scheduleSave()
+        }
+    }
+
+    override fun setCookie(url: String, cookie: String?) = setCookie("", url, cookie)
+
+    override fun replaceCookie(url: String, cookie: String) = replaceCookie("", url, cookie)
+
+    override fun getCookie(url: String): String = getCookie("", url)
+
+    override fun removeCookie(url: String) = removeCookie("", url)
+
     override fun cookieToMap(cookie: String): MutableMap<String, String> {
         val cookieMap = mutableMapOf<String, String>()
         if (cookie.isBlank()) {
@@ -47,14 +234,15 @@ object CookieStore : CookieManager {
         }
         val pairArray = cookie.split(";".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
         for (pair in pairArray) {
-            val pairs = pair.split("=".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
-            if (pairs.size == 1) {
+            // 只按第一个 = 拆分，base64 等值中可能含有 =
+            val index = pair.indexOf('=')
+            if (index < 0) {
                 continue
             }
-            val key = pairs[0].trim { it <= ' ' }
-            val value = pairs[1]
-            if (value.isNotBlank() || value.trim { it <= ' ' } == "null") {
-                cookieMap[key] = value.trim { it <= ' ' }
+            val key = pair.substring(0, index).trim { it <= ' ' }
+            val value = pair.substring(index + 1).trim { it <= ' ' }
+            if (key.isNotEmpty() && value.isNotEmpty()) {
+                cookieMap[key] = value
             }
         }
         return cookieMap
@@ -74,11 +262,15 @@ object CookieStore : CookieManager {
                     .append(";")
             }
         }
+        if (builder.isEmpty()) {
+            return null
+        }
         return builder.deleteCharAt(builder.lastIndexOf(";")).toString()
     }
 
     fun clear() {
-        // appDb.cookieDao.deleteOkHttp()
+        cookieMap.clear()
+        scheduleSave()
     }
 
-}
\ No newline at end of file
+}
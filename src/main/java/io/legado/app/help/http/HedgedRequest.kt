@@ -0,0 +1,116 @@
+package io.legado.app.help.http
+
+import io.legado.app.help.coroutine.JsBridge
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlinx.coroutines.CancellationException
+import kotlin.coroutines.coroutineContext
+
+/**
+ * 对冲请求
+ *
+ * 请求超过该书源最近 p95 延迟仍未返回时再发一个相同的请求，使用先返回的结果，另一个取消。
+ * 两个请求都失败时才失败，第一个请求在对冲前就失败时直接失败。
+ */
+object HedgedRequest {
+
+    private const val WINDOW_SIZE = 50
+    // 样本太少时不对冲
+    private const val MIN_SAMPLES = 10
+    private const val MIN_DELAY = 300L
+
+    private class Latency {
+        val samples = LongArray(WINDOW_SIZE)
+        var count = 0
+    }
+
+    private val latencyMap = ConcurrentHashMap<String, Latency>()
+
+    private val hedgeCount = AtomicLong()
+    private val hedgeWinCount = AtomicLong()
+
+    fun record(key: String, latencyMillis: Long) {
+        val latency = latencyMap.getOrPut(key) { Latency() }
+        synchronized(latency) {
+            latency.samples[latency.count % WINDOW_SIZE] = latencyMillis
+            latency.count++
+        }
+    }
+
+    /**
+     * 对冲等待时间，样本不足时返回 null
+     */
+    fun getHedgeDelay(key: String): Long? {
+        val latency = latencyMap.get(key) ?: return null
+        val sorted = synchronized(latency) {
+            if (latency.count < MIN_SAMPLES) {
+                return null
+            }
+            latency.samples.copyOf(Math.min(latency.count, WINDOW_SIZE))
+        }
+        sorted.sort()
+        return Math.max(MIN_DELAY, sorted[Math.min(sorted.size - 1, sorted.size * 95 / 100)])
+    }
+
+    suspend fun <T> execute(key: String, block: suspend () -> T): T {
+        val hedgeDelay = getHedgeDelay(key)
+        val start = System.currentTimeMillis()
+        if (hedgeDelay == null) {
+            val result = block()
+            record(key, System.currentTimeMillis() - start)
+            return result
+        }
+        // 请求不在调用者的协程中执行，输掉的请求取消后不用等待它结束
+        // 请求中可能执行 js，与书源请求一样在 js 线程池中执行
+        val context = JsBridge.callerDispatcher() + RequestDeadline.asContext(coroutineContext[RequestDeadline])
+        val result = CompletableDeferred<T>()
+        val pending = AtomicInteger(1)
+        val jobs = arrayListOf<Job>()
+        val run: (Boolean) -> Job = { hedged ->
+            GlobalScope.launch(context) {
+                try {
+                    val value = block()
+                    if (result.complete(value)) {
+                        record(key, System.currentTimeMillis() - start)
+                        if (hedged) {
+                            hedgeWinCount.incrementAndGet()
+                        }
+                    }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Throwable) {
+                    if (pending.decrementAndGet() == 0) {
+                        result.completeExceptionally(e)
+                    }
+                }
+            }
+        }
+        synchronized(jobs) { jobs.add(run(false)) }
+        val hedgeJob = GlobalScope.launch(context) {
+            delay(hedgeDelay)
+            if (!result.isCompleted && pending.incrementAndGet() > 1) {
+                hedgeCount.incrementAndGet()
+                synchronized(jobs) { jobs.add(run(true)) }
+            }
+        }
+        try {
+            return result.await()
+        } finally {
+            hedgeJob.cancel()
+            synchronized(jobs) { jobs.forEach { it.cancel() } }
+        }
+    }
+
+    fun getStats(): Map<String, Any> {
+        return mapOf(
+            "hedgeCount" to hedgeCount.get(),
+            "hedgeWinCount" to hedgeWinCount.get()
+        )
+    }
+}
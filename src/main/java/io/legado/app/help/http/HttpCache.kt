@@ -0,0 +1,237 @@
+package io.legado.app.help.http
+
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import com.htmake.reader.utils.getStoragePath
+import com.htmake.reader.utils.writeBytesAtomic
+import io.legado.app.help.coroutine.JsBridge
+import io.legado.app.utils.MD5Utils
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import mu.KotlinLogging
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+private val logger = KotlinLogging.logger {}
+
+/**
+ * 网络请求磁盘缓存
+ *
+ * 缓存 AnalyzeUrl 获取的搜索、发现、目录、正文页面，默认关闭(reader.app.httpCache)。
+ * 每种请求有各自的缓存时间，书源可以用 httpCacheTtl 覆盖(0 表示不缓存)。
+ * 过期后 staleTtl 时间内仍然返回旧的内容，同时在后台重新请求更新缓存。
+ * 缓存文件总大小超过 httpCacheSize 后按最近最少使用淘汰。
+ */
+object HttpCache {
+
+    enum class Type {
+        SEARCH, EXPLORE, TOC, CONTENT
+    }
+
+    private const val MAGIC = 0x52484331
+
+    private class Entry(val time: Long, val url: String, val body: String)
+
+    private val hitCount = AtomicLong()
+    private val staleHitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val evictionCount = AtomicLong()
+
+    // key -> 文件大小，按访问顺序排列
+    private val sizeMap = LinkedHashMap<String, Long>(16, 0.75f, true)
+    private var totalSize = 0L
+    private var loaded = false
+    private val revalidating = ConcurrentHashMap.newKeySet<String>()
+
+    private val appConfig: AppConfig?
+        get() = SpringContextUtils.getBean("appConfig", AppConfig::class.java)
+
+    private val cacheDir: File by lazy {
+        File(getStoragePath() + File.separator + "cache" + File.separator + "http")
+    }
+
+    /**
+     * 缓存时间(秒)，不缓存时返回 0
+     */
+    fun getTtl(type: Type, sourceTtl: Int?): Long {
+        val config = appConfig ?: return 0
+        if (!config.httpCache) {
+            return 0
+        }
+        if (sourceTtl != null) {
+            return Math.max(0, sourceTtl).toLong()
+        }
+        return when (type) {
+            Type.SEARCH -> config.httpCacheSearchTtl
+            Type.EXPLORE -> config.httpCacheExploreTtl
+            Type.TOC -> config.httpCacheTocTtl
+            Type.CONTENT -> config.httpCacheContentTtl
+        }
+    }
+
+    fun getKey(vararg parts: String?): String {
+        return MD5Utils.md5Encode(parts.joinToString("\n") { it ?: "" })
+    }
+
+    /**
+     * 从缓存获取响应，未命中或已过期时调用 fetch 请求并写入缓存
+     * @param timeout 后台更新缓存的截止时间(ms)，fetch 可能在后台再次调用，不能修改调用方的状态
+     */
+    suspend fun get(key: String, ttl: Long, timeout: Long, fetch: suspend () -> StrResponse): StrResponse {
+        if (ttl <= 0) {
+            return fetch()
+        }
+        val entry = read(key)
+        if (entry != null) {
+            val age = System.currentTimeMillis() - entry.time
+            if (age <= ttl * 1000) {
+                hitCount.incrementAndGet()
+                return StrResponse(entry.url, entry.body)
+            }
+            if (age <= (ttl + (appConfig?.httpCacheStaleTtl ?: 0)) * 1000) {
+                staleHitCount.incrementAndGet()
+                revalidate(key, timeout, fetch)
+                return StrResponse(entry.url, entry.body)
+            }
+        }
+        missCount.incrementAndGet()
+        val response = fetch()
+        write(key, response)
+        return response
+    }
+
+    private fun revalidate(key: String, timeout: Long, fetch: suspend () -> StrResponse) {
+        if (!revalidating.add(key)) {
+            return
+        }
+        // 与调用方使用同一个线程池，请求结束后调用方的截止时间已失效，使用单独的截止时间
+        GlobalScope.launch(JsBridge.callerDispatcher()) {
+            try {
+                write(key, withDeadline(timeout) { fetch() })
+            } catch (e: Exception) {
+                logger.debug("Revalidate http cache error: {}", e.toString())
+            } finally {
+                revalidating.remove(key)
+            }
+        }
+    }
+
+    private fun cacheFile(key: String): File {
+        return File(cacheDir, key + ".cache")
+    }
+
+    /**
+     * 需在 synchronized(sizeMap) 中调用
+     */
+    private fun ensureLoaded() {
+        if (loaded) {
+            return
+        }
+        loaded = true
+        val files = cacheDir.listFiles { file -> file.name.endsWith(".cache") } ?: return
+        files.sortBy { it.lastModified() }
+        for (file in files) {
+            val size = file.length()
+            sizeMap.put(file.name.removeSuffix(".cache"), size)
+            totalSize += size
+        }
+    }
+
+    private fun read(key: String): Entry? {
+        synchronized(sizeMap) {
+            ensureLoaded()
+            if (sizeMap.get(key) == null) {
+                return null
+            }
+        }
+        return try {
+            DataInputStream(cacheFile(key).inputStream().buffered()).use { input ->
+                if (input.readInt() != MAGIC) {
+                    return null
+                }
+                val time = input.readLong()
+                val url = ByteArray(input.readInt())
+                input.readFully(url)
+                val body = ByteArray(input.readInt())
+                input.readFully(body)
+                Entry(time, String(url), String(body))
+            }
+        } catch (e: Exception) {
+            remove(key)
+            null
+        }
+    }
+
+    private fun write(key: String, response: StrResponse) {
+        val body = response.body
+        if (!response.isSuccessful() || body == null) {
+            return
+        }
+        val urlBytes = response.url.toByteArray()
+        val bodyBytes = body.toByteArray()
+        val byteStream = ByteArrayOutputStream(urlBytes.size + bodyBytes.size + 20)
+        DataOutputStream(byteStream).use { output ->
+            output.writeInt(MAGIC)
+            output.writeLong(System.currentTimeMillis())
+            output.writeInt(urlBytes.size)
+            output.write(urlBytes)
+            output.writeInt(bodyBytes.size)
+            output.write(bodyBytes)
+        }
+        val bytes = byteStream.toByteArray()
+        val maxSize = (appConfig?.httpCacheSize ?: 0) * 1024L * 1024L
+        if (bytes.size > maxSize) {
+            return
+        }
+        synchronized(sizeMap) {
+            ensureLoaded()
+            if (!cacheDir.exists()) {
+                cacheDir.mkdirs()
+            }
+            cacheFile(key).writeBytesAtomic(bytes)
+            sizeMap.put(key, bytes.size.toLong())?.let { totalSize -= it }
+            totalSize += bytes.size
+            // 淘汰最近最少使用的缓存
+            val iterator = sizeMap.entries.iterator()
+            while (totalSize > maxSize && iterator.hasNext()) {
+                val eldest = iterator.next()
+                if (eldest.key == key) {
+                    continue
+                }
+                cacheFile(eldest.key).delete()
+                totalSize -= eldest.value
+                iterator.remove()
+                evictionCount.incrementAndGet()
+            }
+        }
+    }
+
+    private fun remove(key: String) {
+        synchronized(sizeMap) {
+            sizeMap.remove(key)?.let { totalSize -= it }
+            cacheFile(key).delete()
+        }
+    }
+
+    /**
+     * 缓存统计
+     */
+    fun getStats(): Map<String, Any> {
+        val size = synchronized(sizeMap) {
+            Pair(sizeMap.size, totalSize)
+        }
+        return mapOf(
+            "enabled" to (appConfig?.httpCache ?: false),
+            "hitCount" to hitCount.get(),
+            "staleHitCount" to staleHitCount.get(),
+            "missCount" to missCount.get(),
+            "evictionCount" to evictionCount.get(),
+            "entryCount" to size.first,
+            "totalSize" to size.second
+        )
+    }
+}
@@ -2,8 +2,14 @@ package io.legado.app.help.http
 
 // import io.legado.app.help.http.cronet.CronetInterceptor
 import kotlinx.coroutines.suspendCancellableCoroutine
+import com.htmake.reader.config.AppConfig
+import com.htmake.reader.utils.SpringContextUtils
+import io.legado.app.exception.RequestTimeoutException
+import io.legado.app.help.coroutine.AdaptiveLimit
+import okhttp3.ConnectionPool
 import okhttp3.ConnectionSpec
 import okhttp3.Credentials
+import okhttp3.Dispatcher
 import okhttp3.Interceptor
 import okhttp3.OkHttpClient
 import okhttp3.Route
@@ -23,7 +29,26 @@ private val proxyClientCache: ConcurrentHashMap<String, OkHttpClient> by lazy {
     ConcurrentHashMap()
 }
 
+/**
+ * 设置了同时请求数上限的书源的并发名额，key 为书源链接
+ */
+private val sourceLimitCache: ConcurrentHashMap<String, AdaptiveLimit> by lazy {
+    ConcurrentHashMap()
+}
+
+internal val httpConfig: AppConfig by lazy {
+    SpringContextUtils.getBean("appConfig", AppConfig::class.java) ?: AppConfig()
+}
+
 val okHttpClient: OkHttpClient by lazy {
+    val dispatcher = Dispatcher()
+    dispatcher.maxRequests = httpConfig.httpMaxRequests
+    dispatcher.maxRequestsPerHost = httpConfig.httpMaxRequestsPerHost
+    val connectionPool = ConnectionPool(
+        httpConfig.httpMaxIdleConnections,
+        httpConfig.httpKeepAliveDuration,
+        TimeUnit.SECONDS
+    )
     val specs = arrayListOf(
         ConnectionSpec.MODERN_TLS,
         ConnectionSpec.COMPATIBLE_TLS,
@@ -31,6 +56,8 @@ val okHttpClient: OkHttpClient by lazy {
     )
 
     val builder = OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectionPool(connectionPool)
         .connectTimeout(15, TimeUnit.SECONDS)
         .writeTimeout(15, TimeUnit.SECONDS)
         .readTimeout(15, TimeUnit.SECONDS)
@@ -49,6 +76,7 @@ val okHttpClient: OkHttpClient by lazy {
                 .build()
             chain.proceed(request)
         })
+        .addNetworkInterceptor(CookieStore.interceptor)
     // if (AppConfig.isCronet) {
     //     builder.addInterceptor(CronetInterceptor())
     // }
@@ -56,23 +84,81 @@ val okHttpClient: OkHttpClient by lazy {
     builder.build()
 }
 
+/**
+ * 在书源的同时请求数上限内执行 block
+ *
+ * 书源设置了 maxConcurrentRequests 时，超出的请求挂起排队，不占用线程。
+ * 请求仍使用全局 okHttp，同时计入全局的 httpMaxRequests。
+ * 上限固定，只调用 releaseUnused，不记录样本。
+ */
+suspend fun <T> withSourceRequestLimit(maxConcurrentRequests: Int?, sourceKey: String?, block: suspend () -> T): T {
+    if (maxConcurrentRequests == null || maxConcurrentRequests <= 0 || sourceKey.isNullOrEmpty()) {
+        return block()
+    }
+    var limit = sourceLimitCache.getOrPut(sourceKey) {
+        AdaptiveLimit(maxConcurrentRequests, maxConcurrentRequests, { maxConcurrentRequests })
+    }
+    if (limit.limit != maxConcurrentRequests) {
+        // 书源修改了上限，已在进行的请求在原来的名额中结束
+        limit = AdaptiveLimit(maxConcurrentRequests, maxConcurrentRequests, { maxConcurrentRequests })
+        sourceLimitCache.put(sourceKey, limit)
+    }
+    // 不单独设置等待时间，由请求的截止时间限制
+    if (!limit.acquire(Long.MAX_VALUE)) {
+        throw RequestTimeoutException("请求超时")
+    }
+    try {
+        return block()
+    } finally {
+        limit.releaseUnused()
+    }
+}
+
+/**
+ * 请求队列和连接池统计
+ */
+fun getHttpStats(): Map<String, Any> {
+    val sourceStats = hashMapOf<String, Map<String, Int>>()
+    sourceLimitCache.forEach { (key, limit) ->
+        val inFlight = limit.getInFlight()
+        if (inFlight > 0) {
+            sourceStats.put(key, mapOf(
+                "runningCalls" to inFlight,
+                "maxRequests" to limit.limit
+            ))
+        }
+    }
+    val dispatcher = okHttpClient.dispatcher
+    val connectionPool = okHttpClient.connectionPool
+    return mapOf(
+        "runningCalls" to dispatcher.runningCallsCount(),
+        "queuedCalls" to dispatcher.queuedCallsCount(),
+        "maxRequests" to dispatcher.maxRequests,
+        "maxRequestsPerHost" to dispatcher.maxRequestsPerHost,
+        "connectionCount" to connectionPool.connectionCount(),
+        "idleConnectionCount" to connectionPool.idleConnectionCount(),
+        "sources" to sourceStats
+    )
+}
+
 /**
  * 缓存代理okHttp
  */
-fun getProxyClient(proxy: String? = null, debugLog: DebugLog? = null): OkHttpClient {
+fun getProxyClient(proxy: String? = null, debugLog: DebugLog? = null, baseClient: OkHttpClient = okHttpClient): OkHttpClient {
     if (proxy.isNullOrBlank()) {
         if (debugLog == null) {
-            return okHttpClient
+            return baseClient
         }
-        val builder = okHttpClient.newBuilder()
+        val builder = baseClient.newBuilder()
         val logInterceptor = HttpLoggingInterceptor(debugLog);//创建拦截对象
         logInterceptor.setLevel(HttpLoggingInterceptor.Level.BODY);//这一句一定要记得写，否则没有数据输出
 
         builder.addNetworkInterceptor(logInterceptor)  //设置打印拦截日志
         return builder.build()
     }
+    val proxyCacheKey = if (baseClient === okHttpClient) proxy else proxy + "@" + System.identityHashCode(baseClient)
     if (debugLog == null) {
-        proxyClientCache[proxy]?.let {
+        proxyClientCache[proxyCacheKey]?.let {
             return it
         }
     }
@@ -89,7 +175,7 @@ fun getProxyClient(proxy: String? = null, debugLog: DebugLog? = null): OkHttpCli
         password = group.groupValues[4].split("@")[2]
     }
     if (type != "direct" && host != "") {
-        val builder = okHttpClient.newBuilder()
+        val builder = baseClient.newBuilder()
         if (type == "http") {
             builder.proxy(Proxy(Proxy.Type.HTTP, InetSocketAddress(host, port)))
         } else {
@@ -122,10 +208,10 @@ fun getProxyClient(proxy: String? = null, debugLog: DebugLog? = null): OkHttpCli
             return builder.build()
         }
         val proxyClient = builder.build()
-        proxyClientCache[proxy] = proxyClient
+        proxyClientCache[proxyCacheKey] = proxyClient
         return proxyClient
     }
-    return okHttpClient
+    return baseClient
 }
 
 // suspend fun getWebViewSrc(params: AjaxWebView.AjaxParams): StrResponse =
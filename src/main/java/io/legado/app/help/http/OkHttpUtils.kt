@@ -5,6 +5,7 @@ import io.legado.app.utils.EncodingDetect
 import io.legado.app.utils.GSON
 import io.legado.app.utils.UTF8BOMFighter
 import io.legado.app.utils.Utf8BomUtils
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.withContext
 import kotlinx.coroutines.Dispatchers
@@ -13,9 +14,15 @@ import okhttp3.HttpUrl.Companion.toHttpUrl
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.RequestBody.Companion.asRequestBody
 import okhttp3.RequestBody.Companion.toRequestBody
+import okio.Buffer
+import okio.ForwardingSource
+import okio.buffer
 import java.io.File
 import java.io.IOException
+import java.io.InputStreamReader
 import java.nio.charset.Charset
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.coroutineContext
 import kotlin.coroutines.resume
 import kotlin.coroutines.resumeWithException
 
@@ -23,25 +30,80 @@ suspend fun OkHttpClient.newCallResponse(
     retry: Int = 0,
     builder: Request.Builder.() -> Unit
 ): Response {
+    return newCallResponse(RetryPolicy.of(retry), builder)
+}
+
+/**
+ * 按重试策略请求，返回最后一次的响应，被丢弃的响应会关闭以释放连接
+ */
+suspend fun OkHttpClient.newCallResponse(
+    retryPolicy: RetryPolicy,
+    builder: Request.Builder.() -> Unit
+): Response {
+    val requestBuilder = Request.Builder()
+    requestBuilder.apply(builder)
+    val request = requestBuilder.build()
     return withContext(Dispatchers.IO) {
-        val requestBuilder = Request.Builder()
-        requestBuilder.apply(builder)
-        var response: Response? = null
-        for (i in 0..retry) {
-            response = newCall(requestBuilder.build()).await()
-            if (response.isSuccessful) {
-                return@withContext response
+        executeWithRetry(request, retryPolicy)
+    }
+}
+
+private suspend fun OkHttpClient.executeWithRetry(request: Request, retryPolicy: RetryPolicy): Response {
+    val retryable = retryPolicy.isRetryable(request)
+    var attempt = 0
+    while (true) {
+        val response = try {
+            newCall(request).await()
+        } catch (e: IOException) {
+            val retryDelay = if (retryable && attempt < retryPolicy.maxRetries && retryPolicy.isRetryable(e)) {
+                retryPolicy.getDelay(attempt, null)
+            } else null
+            if (retryDelay == null || !canRetryWithin(retryDelay)) {
+                retryPolicy.record(attempt, false)
+                throw e
             }
+            delay(retryDelay)
+            attempt++
+            continue
         }
-        return@withContext response!!
+        if (response.isSuccessful) {
+            retryPolicy.record(attempt, true)
+            return response
+        }
+        val retryDelay = if (retryable && attempt < retryPolicy.maxRetries && retryPolicy.isRetryable(response)) {
+            retryPolicy.getDelay(attempt, response)
+        } else null
+        if (retryDelay == null || !canRetryWithin(retryDelay)) {
+            retryPolicy.record(attempt, false)
+            return response
+        }
+        // 关闭不再使用的响应，否则连接不会放回连接池
+        response.close()
+        delay(retryDelay)
+        attempt++
     }
 }
 
+/**
+ * 等待 delayMillis 后是否还在请求截止时间内
+ */
+private suspend fun canRetryWithin(delayMillis: Long): Boolean {
+    val deadline = coroutineContext[RequestDeadline] ?: return true
+    return deadline.remainingMillis() > delayMillis
+}
+
 suspend fun OkHttpClient.newCallResponseBody(
     retry: Int = 0,
     builder: Request.Builder.() -> Unit
 ): ResponseBody {
-    return newCallResponse(retry, builder).let {
+    return newCallResponseBody(RetryPolicy.of(retry), builder)
+}
+
+suspend fun OkHttpClient.newCallResponseBody(
+    retryPolicy: RetryPolicy,
+    builder: Request.Builder.() -> Unit
+): ResponseBody {
+    return newCallResponse(retryPolicy, builder).let {
         it.body ?: throw IOException(it.message)
     }
 }
@@ -50,68 +112,118 @@ suspend fun OkHttpClient.newCall(
     retry: Int = 0,
     builder: Request.Builder.() -> Unit
 ): ResponseBody {
-    val requestBuilder = Request.Builder()
-    requestBuilder.apply(builder)
-    var response: Response? = null
-    for (i in 0..retry) {
-        response = this.newCall(requestBuilder.build()).await()
-        if (response.isSuccessful) {
-            return response.body!!
-        }
-    }
-    return response!!.body ?: throw IOException(response.message)
+    return newCallResponseBody(RetryPolicy.of(retry), builder)
 }
 
 suspend fun OkHttpClient.newCallStrResponse(
     retry: Int = 0,
     builder: Request.Builder.() -> Unit
 ): StrResponse {
-    val requestBuilder = Request.Builder()
-    requestBuilder.apply(builder)
-    var response: Response? = null
-    for (i in 0..retry) {
-        response = this.newCall(requestBuilder.build()).await()
-        if (response.isSuccessful) {
-            return StrResponse(response, response.body!!.text())
-        }
-    }
-    return StrResponse(response!!, response.body?.text() ?: response.message)
+    return newCallStrResponse(RetryPolicy.of(retry), builder)
 }
 
-suspend fun Call.await(): Response = suspendCancellableCoroutine { block ->
+suspend fun OkHttpClient.newCallStrResponse(
+    retryPolicy: RetryPolicy,
+    maxBytes: Long = Long.MAX_VALUE,
+    builder: Request.Builder.() -> Unit
+): StrResponse {
+    val response = newCallResponse(retryPolicy, builder)
+    if (response.isSuccessful) {
+        return StrResponse(response, response.body!!.text(maxBytes = maxBytes))
+    }
+    return StrResponse(response, response.body?.text(maxBytes = maxBytes) ?: response.message)
+}
 
-    block.invokeOnCancellation {
-        cancel()
+suspend fun Call.await(): Response {
+    // 按截止时间限制整个请求，包括之后读取响应体
+    coroutineContext[RequestDeadline]?.let {
+        timeout().timeout(Math.max(1L, it.remainingMillis()), TimeUnit.MILLISECONDS)
     }
+    return suspendCancellableCoroutine { block ->
 
-    enqueue(object : Callback {
-        override fun onFailure(call: Call, e: IOException) {
-            block.resumeWithException(e)
+        block.invokeOnCancellation {
+            cancel()
         }
 
-        override fun onResponse(call: Call, response: Response) {
-            block.resume(response)
-        }
-    })
+        enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                block.resumeWithException(e)
+            }
 
+            override fun onResponse(call: Call, response: Response) {
+                block.resume(response)
+            }
+        })
+
+    }
 }
 
-fun ResponseBody.text(encode: String? = null): String {
-    val responseBytes = Utf8BomUtils.removeUTF8BOM(bytes())
-    var charsetName: String? = encode
+// 判断编码时读取的网页开头长度
+private const val SNIFF_SIZE = 16 * 1024L
+// 按 Content-Length 预分配的字符数上限，超出后由 StringBuilder 自行扩容
+private const val MAX_INITIAL_CAPACITY = 1024 * 1024L
 
-    charsetName?.let {
-        return String(responseBytes, Charset.forName(charsetName))
-    }
+private val charBuffer = ThreadLocal.withInitial { CharArray(8192) }
 
-    //根据http头判断
-    contentType()?.charset()?.let {
-        return String(responseBytes, it)
+/**
+ * 读取响应内容
+ *
+ * 编码依次按 encode、http 头、BOM、网页开头的 meta、网页开头的内容判断，
+ * 然后边读取边解码，不把整个响应读入字节数组。超过 maxBytes 时抛出 IOException。
+ */
+fun ResponseBody.text(encode: String? = null, maxBytes: Long = Long.MAX_VALUE): String {
+    val contentLength = contentLength()
+    if (contentLength > maxBytes) {
+        close()
+        throw IOException("响应内容超过${maxBytes}字节")
     }
+    source().use { source ->
+        source.request(SNIFF_SIZE)
+        val prefix = ByteArray(Math.min(source.buffer.size, SNIFF_SIZE).toInt())
+        source.peek().readFully(prefix)
+        val hasBom = Utf8BomUtils.hasBom(prefix)
+        if (hasBom) {
+            source.skip(3)
+        }
+        val charset = encode?.let { Charset.forName(it) }
+            ?: contentType()?.charset()
+            ?: (if (hasBom) Charsets.UTF_8 else null)
+            ?: EncodingDetect.getMetaCharset(prefix)?.let { runCatching { Charset.forName(it) }.getOrNull() }
+            ?: Charset.forName(EncodingDetect.getEncode(prefix, prefix.size))
 
-    //根据内容判断
-    charsetName = EncodingDetect.getHtmlEncode(responseBytes)
-    return String(responseBytes, Charset.forName(charsetName))
+        val limitedSource = object : ForwardingSource(source) {
+            var totalBytes = 0L
+
+            override fun read(sink: Buffer, byteCount: Long): Long {
+                val count = super.read(sink, byteCount)
+                if (count > 0) {
+                    totalBytes += count
+                    if (totalBytes > maxBytes) {
+                        throw IOException("响应内容超过${maxBytes}字节")
+                    }
+                }
+                return count
+            }
+        }
+        // Content-Length 由服务器提供，不能直接用于分配内存
+        val capacity = if (contentLength >= 0) {
+            minOf(contentLength, maxBytes, MAX_INITIAL_CAPACITY).toInt()
+        } else {
+            prefix.size
+        }
+        val builder = StringBuilder(capacity)
+        val buffer = charBuffer.get()
+        InputStreamReader(limitedSource.buffer().inputStream(), charset).use { reader ->
+            while (true) {
+                val count = reader.read(buffer)
+                if (count < 0) {
+                    break
+                }
+                builder.append(buffer, 0, count)
+            }
+        }
+        return builder.toString()
+    }
 }
 
 fun Request.Builder.addHeaders(headers: Map<String, String>) {
@@ -0,0 +1,73 @@
+package io.legado.app.help.http
+
+import io.legado.app.exception.RequestTimeoutException
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.asContextElement
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.coroutineContext
+
+/**
+ * 请求截止时间
+ *
+ * 放在协程上下文中，同一次搜索、目录或正文解析中的所有网络请求(包括 js 中的 ajax)共享，
+ * Call.await 会把剩余时间设置为整个请求(含读取响应体)的超时时间。
+ */
+class RequestDeadline(val deadline: Long) : AbstractCoroutineContextElement(Key) {
+
+    companion object Key : CoroutineContext.Key<RequestDeadline> {
+        // 协程切换线程时随之设置，供 js 等非挂起代码读取
+        private val threadDeadline = ThreadLocal<RequestDeadline?>()
+
+        fun asThreadContextElement(deadline: RequestDeadline) = threadDeadline.asContextElement(deadline)
+
+        /**
+         * 截止时间及其线程局部变量，用于在新启动的协程中延续截止时间
+         */
+        fun asContext(deadline: RequestDeadline?): CoroutineContext {
+            return deadline?.let { it + asThreadContextElement(it) } ?: EmptyCoroutineContext
+        }
+
+        /**
+         * 当前线程上正在执行的协程的截止时间
+         */
+        fun current(): RequestDeadline? = threadDeadline.get()
+    }
+
+    fun remainingMillis(): Long {
+        return deadline - System.currentTimeMillis()
+    }
+}
+
+/**
+ * 在 timeoutMillis 内执行 block，超时取消并抛出 RequestTimeoutException
+ * 外层已有更早的截止时间时以外层为准，timeoutMillis <= 0 时不限制
+ */
+suspend fun <T> withDeadline(timeoutMillis: Long, block: suspend () -> T): T {
+    val current = coroutineContext[RequestDeadline]
+    if (timeoutMillis <= 0 && current == null) {
+        return block()
+    }
+    val deadline = if (timeoutMillis <= 0) {
+        current!!
+    } else {
+        val newDeadline = System.currentTimeMillis() + timeoutMillis
+        if (current != null && current.deadline <= newDeadline) current else RequestDeadline(newDeadline)
+    }
+    val remaining = deadline.remainingMillis()
+    if (remaining <= 0) {
+        throw RequestTimeoutException("请求超时")
+    }
+    try {
+        return withContext(RequestDeadline.asContext(deadline)) {
+            withTimeout(remaining) {
+                block()
+            }
+        }
+    } catch (e: TimeoutCancellationException) {
+        throw RequestTimeoutException("请求超时(${remaining}ms)")
+    }
+}
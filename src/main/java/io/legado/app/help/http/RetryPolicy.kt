@@ -0,0 +1,121 @@
+package io.legado.app.help.http
+
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 网络请求重试策略
+ *
+ * 只重试幂等请求的连接错误和临时性状态码(408/425/429/5xx 网关错误)，
+ * 重试间隔为指数退避加随机抖动，响应中有 Retry-After 时按其等待，
+ * Retry-After 超过 maxDelayMillis 时不再重试。
+ * key 不为空时按 key(一般是书源)统计重试次数和结果。
+ */
+open class RetryPolicy(
+    val maxRetries: Int,
+    val key: String? = null,
+    val baseDelayMillis: Long = 200L,
+    val maxDelayMillis: Long = 5000L
+) {
+
+    companion object {
+        val NONE = RetryPolicy(0)
+
+        private val idempotentMethods = setOf("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE")
+        private val transientStatusCodes = setOf(408, 425, 429, 500, 502, 503, 504)
+
+        private val statsMap = ConcurrentHashMap<String, Stats>()
+        private val total = Stats()
+
+        fun of(maxRetries: Int, key: String? = null): RetryPolicy {
+            if (maxRetries <= 0) {
+                return NONE
+            }
+            return RetryPolicy(maxRetries, key)
+        }
+
+        /**
+         * 重试统计，只返回重试次数最多的 limit 个 key
+         */
+        fun getStats(limit: Int = 20): Map<String, Any> {
+            val sources = statsMap.entries
+                .sortedByDescending { it.value.retryCount.get() }
+                .take(limit)
+                .associate { it.key to it.value.toMap() }
+            return mapOf("total" to total.toMap(), "sources" to sources)
+        }
+    }
+
+    class Stats {
+        // 重试次数
+        val retryCount = AtomicLong()
+        // 重试后成功的请求数
+        val recoveredCount = AtomicLong()
+        // 重试后仍然失败的请求数
+        val exhaustedCount = AtomicLong()
+
+        fun toMap(): Map<String, Long> {
+            return mapOf(
+                "retryCount" to retryCount.get(),
+                "recoveredCount" to recoveredCount.get(),
+                "exhaustedCount" to exhaustedCount.get()
+            )
+        }
+    }
+
+    open fun isRetryable(request: Request): Boolean {
+        return maxRetries > 0 && idempotentMethods.contains(request.method)
+    }
+
+    open fun isRetryable(response: Response): Boolean {
+        return transientStatusCodes.contains(response.code)
+    }
+
+    open fun isRetryable(error: IOException): Boolean {
+        return true
+    }
+
+    /**
+     * 第 attempt 次重试前的等待时间，返回 null 表示不重试
+     */
+    open fun getDelay(attempt: Int, response: Response?): Long? {
+        response?.let { getRetryAfter(it) }?.let { retryAfter ->
+            return if (retryAfter > maxDelayMillis) null else retryAfter
+        }
+        // 指数退避，在 [0, delay] 之间随机
+        val delay = Math.min(maxDelayMillis, baseDelayMillis shl Math.min(attempt, 16))
+        return ThreadLocalRandom.current().nextLong(delay + 1)
+    }
+
+    private fun getRetryAfter(response: Response): Long? {
+        val value = response.header("Retry-After") ?: return null
+        value.trim().toLongOrNull()?.let {
+            return Math.max(0L, it * 1000L)
+        }
+        return response.headers.getDate("Retry-After")?.let {
+            Math.max(0L, it.time - System.currentTimeMillis())
+        }
+    }
+
+    /**
+     * 记录一次请求的结果，retries 为重试次数
+     */
+    fun record(retries: Int, success: Boolean) {
+        if (retries <= 0) {
+            return
+        }
+        val stats = key?.let { statsMap.getOrPut(it) { Stats() } }
+        for (s in listOfNotNull(total, stats)) {
+            s.retryCount.addAndGet(retries.toLong())
+            if (success) {
+                s.recoveredCount.incrementAndGet()
+            } else {
+                s.exhaustedCount.incrementAndGet()
+            }
+        }
+    }
+}
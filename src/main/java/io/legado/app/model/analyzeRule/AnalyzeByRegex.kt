@@ -1,13 +1,13 @@
 package io.legado.app.model.analyzeRule
 
+import io.legado.app.utils.RegexPool
 import java.util.*
-import java.util.regex.Pattern
 
 object AnalyzeByRegex {
 
     fun getElement(res: String, regs: Array<String>, index: Int = 0): List<String>? {
         var vIndex = index
-        val resM = Pattern.compile(regs[vIndex]).matcher(res)
+        val resM = RegexPool.matcher(regs[vIndex], res)
         if (!resM.find()) {
             return null
         }
@@ -30,7 +30,7 @@ object AnalyzeByRegex {
 
     fun getElements(res: String, regs: Array<String>, index: Int = 0): List<List<String>> {
         var vIndex = index
-        val resM = Pattern.compile(regs[vIndex]).matcher(res)
+        val resM = RegexPool.matcher(regs[vIndex], res)
         if (!resM.find()) {
             return arrayListOf()
         }
@@ -1,21 +1,21 @@
 package io.legado.app.model.analyzeRule
 
 import com.script.SimpleBindings
-import io.legado.app.constant.AppConst.SCRIPT_ENGINE
-import io.legado.app.constant.AppPattern.JS_PATTERN
 import io.legado.app.data.entities.BaseBook
 import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookSource
 import io.legado.app.data.entities.BaseSource
 import io.legado.app.help.CacheManager
+import io.legado.app.help.JsEngine
 import io.legado.app.help.JsExtensions
+import io.legado.app.help.coroutine.JsBridge
 import io.legado.app.help.http.CookieStore
 import io.legado.app.utils.*
-import kotlinx.coroutines.runBlocking
 import org.jsoup.nodes.Entities
 import org.mozilla.javascript.NativeObject
 import java.net.URL
+import java.util.regex.PatternSyntaxException
 import java.util.*
 import java.util.regex.Pattern
 import kotlin.collections.HashMap
@@ -339,45 +339,28 @@ class AnalyzeRule(
         }
     }
 
-    /**
-     * 分离put规则
-     */
-    private fun splitPutRule(ruleStr: String, putMap: HashMap<String, String>): String {
-        var vRuleStr = ruleStr
-        val putMatcher = putPattern.matcher(vRuleStr)
-        while (putMatcher.find()) {
-            vRuleStr = vRuleStr.replace(putMatcher.group(), "")
-            GSON.fromJsonObject<Map<String, String>>(putMatcher.group(1))
-                .getOrNull()
-                ?.let {
-                    putMap.putAll(it)
-                }
-        }
-        return vRuleStr
-    }
-
     /**
      * 正则替换
      */
     private fun replaceRegex(result: String, rule: SourceRule): String {
         if (rule.replaceRegex.isEmpty()) return result
         var vResult = result
+        // 匹配超时(RegexTimeoutException)直接抛出，只有正则语法错误时按普通字符串替换
         vResult = if (rule.replaceFirst) {
-            kotlin.runCatching {
-                val pattern = Pattern.compile(rule.replaceRegex)
-                val matcher = pattern.matcher(vResult)
+            try {
+                val matcher = RegexPool.matcher(rule.replaceRegex, vResult)
                 if (matcher.find()) {
-                    matcher.group(0)!!.replaceFirst(rule.replaceRegex.toRegex(), rule.replacement)
+                    RegexPool.replaceFirst(matcher.group(0)!!, rule.replaceRegex, rule.replacement)
                 } else {
                     ""
                 }
-            }.getOrElse {
+            } catch (e: PatternSyntaxException) {
                 vResult.replaceFirst(rule.replaceRegex, rule.replacement)
             }
         } else {
-            kotlin.runCatching {
-                vResult.replace(rule.replaceRegex.toRegex(), rule.replacement)
-            }.getOrElse {
+            try {
+                RegexPool.replace(vResult, rule.replaceRegex, rule.replacement)
+            } catch (e: PatternSyntaxException) {
                 vResult.replace(rule.replaceRegex, rule.replacement)
             }
         }
@@ -389,172 +372,49 @@ class AnalyzeRule(
      */
     fun splitSourceRule(ruleStr: String?, allInOne: Boolean = false): List<SourceRule> {
         if (ruleStr.isNullOrEmpty()) return emptyList()
-        val ruleList = ArrayList<SourceRule>()
-        var mMode: Mode = Mode.Default
-        var start = 0
         //仅首字符为:时为AllInOne，其实:与伪类选择器冲突，建议改成?更合理
+        val compiledRules = CompiledRule.split(ruleStr, allInOne, isRegex, isJSON)
         if (allInOne && ruleStr.startsWith(":")) {
-            mMode = Mode.Regex
             isRegex = true
-            start = 1
-        } else if (isRegex) {
-            mMode = Mode.Regex
         }
-        var tmp: String
-        val jsMatcher = JS_PATTERN.matcher(ruleStr)
-        while (jsMatcher.find()) {
-            if (jsMatcher.start() > start) {
-                tmp = ruleStr.substring(start, jsMatcher.start()).trim { it <= ' ' }
-                if (tmp.isNotEmpty()) {
-                    ruleList.add(SourceRule(tmp, mMode))
-                }
-            }
-            ruleList.add(SourceRule(jsMatcher.group(2) ?: jsMatcher.group(1), Mode.Js))
-            start = jsMatcher.end()
-        }
-
-        if (ruleStr.length > start) {
-            tmp = ruleStr.substring(start).trim { it <= ' ' }
-            if (tmp.isNotEmpty()) {
-                ruleList.add(SourceRule(tmp, mMode))
-            }
-        }
-
-        return ruleList
+        return compiledRules.map { SourceRule(it) }
     }
 
     /**
-     * 规则类
+     * 规则类，解析结果由 CompiledRule 缓存，这里只保存代入变量后的规则
      */
     inner class SourceRule internal constructor(
-        ruleStr: String,
-        internal var mode: Mode = Mode.Default
+        private val compiledRule: CompiledRule
     ) {
-        internal var rule: String
+        internal val mode: Mode = compiledRule.mode
+        internal var rule: String = compiledRule.rule
         internal var replaceRegex = ""
         internal var replacement = ""
         internal var replaceFirst = false
-        internal val putMap = HashMap<String, String>()
-        private val ruleParam = ArrayList<String>()
-        private val ruleType = ArrayList<Int>()
-        private val getRuleType = -2
-        private val jsRuleType = -1
-        private val defaultRuleType = 0
-
-        init {
-            rule = when {
-                mode == Mode.Js || mode == Mode.Regex -> ruleStr
-                ruleStr.startsWith("@CSS:", true) -> {
-                    mode = Mode.Default
-                    ruleStr
-                }
-                ruleStr.startsWith("@@") -> {
-                    mode = Mode.Default
-                    ruleStr.substring(2)
-                }
-                ruleStr.startsWith("@XPath:", true) -> {
-                    mode = Mode.XPath
-                    ruleStr.substring(7)
-                }
-                ruleStr.startsWith("@Json:", true) -> {
-                    mode = Mode.Json
-                    ruleStr.substring(6)
-                }
-                isJSON || ruleStr.startsWith("$.") || ruleStr.startsWith("$[") -> {
-                    mode = Mode.Json
-                    ruleStr
-                }
-                ruleStr.startsWith("/") -> {//XPath特征很明显,无需配置单独的识别标头
-                    mode = Mode.XPath
-                    ruleStr
-                }
-                else -> ruleStr
-            }
-            //分离put
-            rule = splitPutRule(rule, putMap)
-            //@get,{{ }}, 拆分
-            var start = 0
-            var tmp: String
-            val evalMatcher = evalPattern.matcher(rule)
-
-            if (evalMatcher.find()) {
-                tmp = rule.substring(start, evalMatcher.start())
-                if (mode != Mode.Js && mode != Mode.Regex &&
-                    (evalMatcher.start() == 0 || !tmp.contains("##"))
-                ) {
-                    mode = Mode.Regex
-                }
-                do {
-                    if (evalMatcher.start() > start) {
-                        tmp = rule.substring(start, evalMatcher.start())
-                        splitRegex(tmp)
-                    }
-                    tmp = evalMatcher.group()
-                    when {
-                        tmp.startsWith("@get:", true) -> {
-                            ruleType.add(getRuleType)
-                            ruleParam.add(tmp.substring(6, tmp.lastIndex))
-                        }
-                        tmp.startsWith("{{") -> {
-                            ruleType.add(jsRuleType)
-                            ruleParam.add(tmp.substring(2, tmp.length - 2))
-                        }
-                        else -> {
-                            splitRegex(tmp)
-                        }
-                    }
-                    start = evalMatcher.end()
-                } while (evalMatcher.find())
-            }
-            if (rule.length > start) {
-                tmp = rule.substring(start)
-                splitRegex(tmp)
-            }
-        }
+        internal val putMap: Map<String, String> = compiledRule.putMap
+        private val ruleParam = compiledRule.ruleParam
+        private val ruleType = compiledRule.ruleType
 
-        /**
-         * 拆分\$\d{1,2}
-         */
-        private fun splitRegex(ruleStr: String) {
-            var start = 0
-            var tmp: String
-            val ruleStrArray = ruleStr.split("##")
-            val regexMatcher = regexPattern.matcher(ruleStrArray[0])
-
-            if (regexMatcher.find()) {
-                if (mode != Mode.Js && mode != Mode.Regex) {
-                    mode = Mode.Regex
-                }
-                do {
-                    if (regexMatcher.start() > start) {
-                        tmp = ruleStr.substring(start, regexMatcher.start())
-                        ruleType.add(defaultRuleType)
-                        ruleParam.add(tmp)
-                    }
-                    tmp = regexMatcher.group()
-                    ruleType.add(tmp.substring(1).toInt())
-                    ruleParam.add(tmp)
-                    start = regexMatcher.end()
-                } while (regexMatcher.find())
-            }
-            if (ruleStr.length > start) {
-                tmp = ruleStr.substring(start)
-                ruleType.add(defaultRuleType)
-                ruleParam.add(tmp)
-            }
-        }
+        internal constructor(ruleStr: String) : this(CompiledRule.get(ruleStr, Mode.Default, isJSON))
 
         /**
          * 替换@get,{{ }}
          */
         fun makeUpRule(result: Any?) {
+            if (compiledRule.isStatic) {
+                rule = compiledRule.staticRule
+                replaceRegex = compiledRule.staticReplaceRegex
+                replacement = compiledRule.staticReplacement
+                replaceFirst = compiledRule.staticReplaceFirst
+                return
+            }
             val infoVal = StringBuilder()
             if (ruleParam.isNotEmpty()) {
                 var index = ruleParam.size
                 while (index-- > 0) {
                     val regType = ruleType[index]
                     when {
-                        regType > defaultRuleType -> {
+                        regType > CompiledRule.DEFAULT_RULE_TYPE -> {
                             @Suppress("UNCHECKED_CAST")
                             (result as? List<String?>)?.run {
                                 if (this.size > regType) {
@@ -564,7 +424,7 @@ class AnalyzeRule(
                                 }
                             } ?: infoVal.insert(0, ruleParam[index])
                         }
-                        regType == jsRuleType -> {
+                        regType == CompiledRule.JS_RULE_TYPE -> {
                             if (isRule(ruleParam[index])) {
                                 getString(arrayListOf(SourceRule(ruleParam[index]))).let {
                                     infoVal.insert(0, it)
@@ -582,7 +442,7 @@ class AnalyzeRule(
                                 }
                             }
                         }
-                        regType == getRuleType -> {
+                        regType == CompiledRule.GET_RULE_TYPE -> {
                             infoVal.insert(0, get(ruleParam[index]))
                         }
                         else -> infoVal.insert(0, ruleParam[index])
@@ -644,7 +504,7 @@ class AnalyzeRule(
     fun evalJS(jsStr: String, result: Any?): Any? {
         val bindings = SimpleBindings()
         bindings["java"] = this
-        bindings["cookie"] = CookieStore
+        bindings["cookie"] = CookieStore.forSource(source?.getKey())
         bindings["cache"] = CacheManager
         bindings["source"] = source
         bindings["book"] = book
@@ -654,7 +514,7 @@ class AnalyzeRule(
         bindings["title"] = chapter?.title
         bindings["src"] = content
         bindings["nextChapterUrl"] = nextChapterUrl
-        return SCRIPT_ENGINE.eval(jsStr, bindings)
+        return JsEngine.eval(jsStr, bindings, source?.getKey())
     }
 
     override fun getSource(): BaseSource? {
@@ -665,7 +525,7 @@ class AnalyzeRule(
      * js实现跨域访问,不能删
      */
     override fun ajax(urlStr: String): String? {
-        return runBlocking {
+        return JsBridge.await {
             kotlin.runCatching {
                 val analyzeUrl = AnalyzeUrl(urlStr, source = source, ruleData = book)
                 analyzeUrl.getStrResponseAwait().body
@@ -694,19 +554,16 @@ class AnalyzeRule(
      * 更新BookUrl,如果搜索结果有tocUrl也会更新,有些书源bookUrl定期更新,可以在js内调用更新
      */
     fun refreshBookUrl() {
-        runBlocking {
-            val bookSource = source as? BookSource
-            val book = book as? Book
-            if (bookSource == null || book == null) return@runBlocking
-            val books = WebBook(bookSource).searchBook(book.name)
-            books.forEach {
-                if (it.name == book.name && it.author == book.author) {
-                    book.bookUrl = it.bookUrl
-                    if (it.tocUrl.isNotBlank()) {
-                        book.tocUrl = it.tocUrl
-                    }
-                    return@runBlocking
-                }
+        val bookSource = source as? BookSource
+        val book = book as? Book
+        if (bookSource == null || book == null) return
+        val books = JsBridge.await {
+            WebBook(bookSource).searchBook(book.name)
+        }
+        books.firstOrNull { it.name == book.name && it.author == book.author }?.let {
+            book.bookUrl = it.bookUrl
+            if (it.tocUrl.isNotBlank()) {
+                book.tocUrl = it.tocUrl
             }
         }
     }
@@ -715,19 +572,15 @@ class AnalyzeRule(
      * 更新tocUrl,有些书源目录url定期更新,可以在js调用更新
      */
     fun refreshTocUrl() {
-        runBlocking {
-            val bookSource = source as? BookSource
-            val book = book as? Book
-            if (bookSource == null || book == null) return@runBlocking
+        val bookSource = source as? BookSource
+        val book = book as? Book
+        if (bookSource == null || book == null) return
+        JsBridge.await {
             WebBook(bookSource).getBookInfo(book)
         }
     }
 
     companion object {
-        private val putPattern = Pattern.compile("@put:(\\{[^}]+?\\})", Pattern.CASE_INSENSITIVE)
-        private val evalPattern =
-            Pattern.compile("@get:\\{[^}]+?\\}|\\{\\{[\\w\\W]*?\\}\\}", Pattern.CASE_INSENSITIVE)
-        private val regexPattern = Pattern.compile("\\$\\d{1,2}")
         private val titleNumPattern = Pattern.compile("(第)(.+?)(章)")
     }
 
@@ -2,20 +2,21 @@ package io.legado.app.model.analyzeRule
 
 import com.script.SimpleBindings
 import io.legado.app.constant.AppConst
-import io.legado.app.constant.AppConst.SCRIPT_ENGINE
 import io.legado.app.constant.AppConst.UA_NAME
 import io.legado.app.constant.AppPattern.JS_PATTERN
 import io.legado.app.constant.AppPattern.dataUriRegex
 import io.legado.app.data.entities.BaseSource
 import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookChapter
-import io.legado.app.exception.ConcurrentException
+import io.legado.app.data.entities.BookSource
 import io.legado.app.help.CacheManager
+import io.legado.app.help.JsEngine
 import io.legado.app.help.JsExtensions
 import io.legado.app.help.http.*
 import io.legado.app.utils.*
 import kotlinx.coroutines.runBlocking
 import okhttp3.MediaType.Companion.toMediaType
+import okhttp3.OkHttpClient
 import okhttp3.RequestBody.Companion.toRequestBody
 import okhttp3.Response
 import java.net.URLEncoder
@@ -41,7 +42,6 @@ class AnalyzeUrl(
     companion object {
         val paramPattern: Pattern = Pattern.compile("\\s*,\\s*(?=\\{)")
         private val pagePattern = Pattern.compile("<(.*?)>")
-        private val concurrentRecordMap = hashMapOf<String, ConcurrentRecord>()
     }
 
     var ruleUrl = ""
@@ -62,6 +62,8 @@ class AnalyzeUrl(
     private var retry: Int = 0
     private var useWebView: Boolean = false
     private var webJs: String? = null
+    // 请求类型，设置后按类型缓存响应
+    var cacheType: HttpCache.Type? = null
 
     init {
         if (!mUrl.isDataUrl()) {
@@ -235,7 +237,7 @@ class AnalyzeUrl(
         val bindings = SimpleBindings()
         bindings["java"] = this
         bindings["baseUrl"] = baseUrl
-        bindings["cookie"] = CookieStore
+        bindings["cookie"] = CookieStore.forSource(source?.getKey())
         bindings["cache"] = CacheManager
         bindings["page"] = page
         bindings["key"] = key
@@ -244,7 +246,7 @@ class AnalyzeUrl(
         bindings["book"] = ruleData as? Book
         bindings["source"] = source
         bindings["result"] = result
-        return SCRIPT_ENGINE.eval(jsStr, bindings)
+        return JsEngine.eval(jsStr, bindings, source?.getKey())
     }
 
     fun put(key: String, value: String): String {
@@ -268,69 +270,22 @@ class AnalyzeUrl(
     }
 
     /**
-     * 开始访问,并发判断
+     * 开始访问,按书源并发率等待
      */
-    private fun fetchStart(): ConcurrentRecord? {
-        source ?: return null
-        val concurrentRate = source.concurrentRate
-        if (concurrentRate.isNullOrEmpty()) {
-            return null
-        }
-        val rateIndex = concurrentRate.indexOf("/")
-        var fetchRecord = concurrentRecordMap[source.getKey()]
-        if (fetchRecord == null) {
-            fetchRecord = ConcurrentRecord(rateIndex > 0, System.currentTimeMillis(), 1)
-            concurrentRecordMap[source.getKey()] = fetchRecord
-            return fetchRecord
-        }
-        val waitTime: Int = synchronized(fetchRecord) {
-            try {
-                if (rateIndex == -1) {
-                    if (fetchRecord.frequency > 0) {
-                        return@synchronized concurrentRate.toInt()
-                    }
-                    val nextTime = fetchRecord.time + concurrentRate.toInt()
-                    if (System.currentTimeMillis() >= nextTime) {
-                        fetchRecord.time = System.currentTimeMillis()
-                        fetchRecord.frequency = 1
-                        return@synchronized 0
-                    }
-                    return@synchronized (nextTime - System.currentTimeMillis()).toInt()
-                } else {
-                    val sj = concurrentRate.substring(rateIndex + 1)
-                    val nextTime = fetchRecord.time + sj.toInt()
-                    if (System.currentTimeMillis() >= nextTime) {
-                        fetchRecord.time = System.currentTimeMillis()
-                        fetchRecord.frequency = 1
-                        return@synchronized 0
-                    }
-                    val cs = concurrentRate.substring(0, rateIndex)
-                    if (fetchRecord.frequency > cs.toInt()) {
-                        return@synchronized (nextTime - System.currentTimeMillis()).toInt()
-                    } else {
-                        fetchRecord.frequency = fetchRecord.frequency + 1
-                        return@synchronized 0
-                    }
-                }
-            } catch (e: Exception) {
-                return@synchronized 0
-            }
-        }
+    private suspend fun fetchStart(debugLog: DebugLog? = null): ConcurrentRateLimiter? {
+        val limiter = ConcurrentRateLimiter.get(source) ?: return null
+        val waitTime = limiter.acquire(httpConfig.concurrentRateMaxWait)
         if (waitTime > 0) {
-            throw ConcurrentException("根据并发率还需等待${waitTime}毫秒才可以访问", waitTime = waitTime)
+            debugLog?.log(source?.getKey(), "≡根据并发率等待${waitTime}毫秒")
         }
-        return fetchRecord
+        return limiter
     }
 
     /**
      * 访问结束
      */
-    private fun fetchEnd(concurrentRecord: ConcurrentRecord?) {
-        if (concurrentRecord != null && !concurrentRecord.concurrent) {
-            synchronized(concurrentRecord) {
-                concurrentRecord.frequency = concurrentRecord.frequency - 1
-            }
-        }
+    private fun fetchEnd(limiter: ConcurrentRateLimiter?) {
+        limiter?.release()
     }
 
     /**
@@ -345,34 +300,116 @@ class AnalyzeUrl(
         if (type != null) {
             return StrResponse(url, StringUtils.byteToHexString(getByteArrayAwait()))
         }
-        val concurrentRecord = fetchStart()
-        setCookie(source?.getKey())
-        val strResponse: StrResponse
+        // 请求头(包括合并后的 cookie)只生成一次，对冲请求和后台更新缓存使用同一份
+        val headers = getRequestHeaders()
+        val cacheTtl = getCacheTtl()
+        if (cacheTtl > 0 && !(this.useWebView && useWebView)) {
+            // 不同书源、不同登录状态的响应不能共用，书源和合并后的 cookie 都计入 key
+            val cacheKey = HttpCache.getKey(
+                source?.getKey(), method.name, urlNoQuery, fieldMap.toString(), body, headers.toSortedMap().toString()
+            )
+            return HttpCache.get(cacheKey, cacheTtl, getCacheTimeout()) {
+                fetchStrResponseHedged(headers, useWebView, debugLog)
+            }
+        }
+        return fetchStrResponseHedged(headers, useWebView, debugLog)
+    }
+
+    /**
+     * 开启 httpHedgeContent 时，正文请求超过书源 p95 延迟后再发一个相同的请求
+     * 设置了并发率的书源和 POST 请求不对冲
+     */
+    private suspend fun fetchStrResponseHedged(
+        headers: Map<String, String>,
+        useWebView: Boolean,
+        debugLog: DebugLog?
+    ): StrResponse {
+        if (source == null || cacheType != HttpCache.Type.CONTENT || !httpConfig.httpHedgeContent
+            || method != RequestMethod.GET || !source.concurrentRate.isNullOrBlank()
+            || (this.useWebView && useWebView)
+        ) {
+            return fetchStrResponse(headers, useWebView, debugLog)
+        }
+        // 两个请求同时执行，共用同一份请求头，不修改 AnalyzeUrl 的状态
+        return HedgedRequest.execute(source.getKey()) {
+            fetchStrResponse(headers, useWebView, debugLog)
+        }
+    }
+
+    private fun getClient(debugLog: DebugLog? = null): OkHttpClient {
+        return getProxyClient(proxy, debugLog)
+    }
+
+    /**
+     * 按书源统计重试次数
+     */
+    private fun getRetryPolicy(): RetryPolicy {
+        return RetryPolicy.of(retry, source?.getKey())
+    }
+
+    /**
+     * 响应内容大小上限(字节)，目录页一般比其它页面大
+     */
+    private fun getMaxBodySize(): Long {
+        val size = if (cacheType == HttpCache.Type.TOC) httpConfig.httpMaxTocBodySize else httpConfig.httpMaxBodySize
+        return if (size > 0) size * 1024L * 1024L else Long.MAX_VALUE
+    }
+
+    /**
+     * 后台更新缓存的截止时间(ms)，与同类请求相同
+     */
+    private fun getCacheTimeout(): Long {
+        return when (cacheType) {
+            HttpCache.Type.SEARCH, HttpCache.Type.EXPLORE -> httpConfig.searchTimeout
+            HttpCache.Type.TOC -> httpConfig.tocTimeout
+            else -> httpConfig.contentTimeout
+        }
+    }
+
+    /**
+     * 网络请求缓存时间(秒)，没有设置请求类型时不缓存
+     */
+    private fun getCacheTtl(): Long {
+        val cacheType = cacheType ?: return 0
+        return HttpCache.getTtl(cacheType, (source as? BookSource)?.httpCacheTtl)
+    }
+
+    private suspend fun fetchStrResponse(
+        headers: Map<String, String>,
+        useWebView: Boolean,
+        debugLog: DebugLog?
+    ): StrResponse {
         if (this.useWebView && useWebView) {
             throw Exception("不支持webview")
-        } else {
-            strResponse = getProxyClient(proxy, debugLog).newCallStrResponse(retry) {
-                addHeaders(headerMap)
-                when (method) {
-                    RequestMethod.POST -> {
-                        url(urlNoQuery)
-                        val contentType = headerMap["Content-Type"]
-                        val body = body
-                        if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
-                            postForm(fieldMap, true)
-                        } else if (!contentType.isNullOrBlank()) {
-                            val requestBody = body.toRequestBody(contentType.toMediaType())
-                            post(requestBody)
-                        } else {
-                            postJson(body)
+        }
+        val concurrentRecord = fetchStart(debugLog)
+        try {
+            return withSourceRequestLimit((source as? BookSource)?.maxConcurrentRequests, source?.getKey()) {
+                getClient(debugLog).newCallStrResponse(getRetryPolicy(), getMaxBodySize()) {
+                    addHeaders(headers)
+                    tag(CookieStore.RequestScope::class.java, CookieStore.RequestScope(source?.getKey() ?: "", headerMap["Cookie"]))
+                    when (method) {
+                        RequestMethod.POST -> {
+                            url(urlNoQuery)
+                            val contentType = headers["Content-Type"]
+                            val body = body
+                            if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
+                                postForm(fieldMap, true)
+                            } else if (!contentType.isNullOrBlank()) {
+                                val requestBody = body.toRequestBody(contentType.toMediaType())
+                                post(requestBody)
+                            } else {
+                                postJson(body)
+                            }
                         }
+                        else -> get(urlNoQuery, fieldMap, true)
                     }
-                    else -> get(urlNoQuery, fieldMap, true)
                 }
             }
+        } finally {
+            // 请求失败时也要释放，否则会一直占用并发名额
+            fetchEnd(concurrentRecord)
         }
-        fetchEnd(concurrentRecord)
-        return strResponse
     }
 
     @JvmOverloads
@@ -392,29 +429,34 @@ class AnalyzeUrl(
      */
     suspend fun getResponseAwait(): Response {
         val concurrentRecord = fetchStart()
-        setCookie(source?.getKey())
-        @Suppress("BlockingMethodInNonBlockingContext")
-        val response = getProxyClient(proxy).newCallResponse(retry) {
-            addHeaders(headerMap)
-            when (method) {
-                RequestMethod.POST -> {
-                    url(urlNoQuery)
-                    val contentType = headerMap["Content-Type"]
-                    val body = body
-                    if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
-                        postForm(fieldMap, true)
-                    } else if (!contentType.isNullOrBlank()) {
-                        val requestBody = body.toRequestBody(contentType.toMediaType())
-                        post(requestBody)
-                    } else {
-                        postJson(body)
+        try {
+            val headers = getRequestHeaders()
+            @Suppress("BlockingMethodInNonBlockingContext")
+            return withSourceRequestLimit((source as? BookSource)?.maxConcurrentRequests, source?.getKey()) {
+                getClient().newCallResponse(getRetryPolicy()) {
+                    addHeaders(headers)
+                    tag(CookieStore.RequestScope::class.java, CookieStore.RequestScope(source?.getKey() ?: "", headerMap["Cookie"]))
+                    when (method) {
+                        RequestMethod.POST -> {
+                            url(urlNoQuery)
+                            val contentType = headers["Content-Type"]
+                            val body = body
+                            if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
+                                postForm(fieldMap, true)
+                            } else if (!contentType.isNullOrBlank()) {
+                                val requestBody = body.toRequestBody(contentType.toMediaType())
+                                post(requestBody)
+                            } else {
+                                postJson(body)
+                            }
+                        }
+                        else -> get(urlNoQuery, fieldMap, true)
                     }
                 }
-                else -> get(urlNoQuery, fieldMap, true)
             }
+        } finally {
+            fetchEnd(concurrentRecord)
         }
-        fetchEnd(concurrentRecord)
-        return response
     }
 
     fun getResponse(): Response {
@@ -427,39 +469,40 @@ class AnalyzeUrl(
      * 访问网站,返回ByteArray
      */
     suspend fun getByteArrayAwait(): ByteArray {
-        val concurrentRecord = fetchStart()
-
         @Suppress("RegExpRedundantEscape")
         val dataUriFindResult = dataUriRegex.find(urlNoQuery)
         @Suppress("BlockingMethodInNonBlockingContext")
         if (dataUriFindResult != null) {
             val dataUriBase64 = dataUriFindResult.groupValues[1]
-            val byteArray = Base64.decode(dataUriBase64, Base64.DEFAULT)
-            fetchEnd(concurrentRecord)
-            return byteArray
-        } else {
-            setCookie(source?.getKey())
-            val byteArray = getProxyClient(proxy).newCallResponseBody(retry) {
-                addHeaders(headerMap)
-                when (method) {
-                    RequestMethod.POST -> {
-                        url(urlNoQuery)
-                        val contentType = headerMap["Content-Type"]
-                        val body = body
-                        if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
-                            postForm(fieldMap, true)
-                        } else if (!contentType.isNullOrBlank()) {
-                            val requestBody = body.toRequestBody(contentType.toMediaType())
-                            post(requestBody)
-                        } else {
-                            postJson(body)
+            return Base64.decode(dataUriBase64, Base64.DEFAULT)
+        }
+        val concurrentRecord = fetchStart()
+        try {
+            val headers = getRequestHeaders()
+            return withSourceRequestLimit((source as? BookSource)?.maxConcurrentRequests, source?.getKey()) {
+                getClient().newCallResponseBody(getRetryPolicy()) {
+                    addHeaders(headers)
+                    tag(CookieStore.RequestScope::class.java, CookieStore.RequestScope(source?.getKey() ?: "", headerMap["Cookie"]))
+                    when (method) {
+                        RequestMethod.POST -> {
+                            url(urlNoQuery)
+                            val contentType = headers["Content-Type"]
+                            val body = body
+                            if (fieldMap.isNotEmpty() || body.isNullOrBlank()) {
+                                postForm(fieldMap, true)
+                            } else if (!contentType.isNullOrBlank()) {
+                                val requestBody = body.toRequestBody(contentType.toMediaType())
+                                post(requestBody)
+                            } else {
+                                postJson(body)
+                            }
                         }
+                        else -> get(urlNoQuery, fieldMap, true)
                     }
-                    else -> get(urlNoQuery, fieldMap, true)
-                }
-            }.bytes()
+                }.bytes()
+            }
+        } finally {
             fetchEnd(concurrentRecord)
-            return byteArray
         }
     }
 
@@ -473,7 +516,7 @@ class AnalyzeUrl(
      * 上传文件
      */
     suspend fun upload(fileName: String, file: Any, contentType: String): StrResponse {
-        return getProxyClient(proxy).newCallStrResponse(retry) {
+        return getClient().newCallStrResponse(getRetryPolicy()) {
             url(urlNoQuery)
             val bodyMap = GSON.fromJsonObject<HashMap<String, Any>>(body).getOrNull()!!
             bodyMap.forEach { entry ->
@@ -490,20 +533,32 @@ class AnalyzeUrl(
     }
 
     /**
-     *设置cookie urlOption的优先级大于书源保存的cookie
-     *@param tag 书源url 缺省为传入的url
+     * 本次请求使用的请求头，合并书源保存的 cookie，urlOption 中的 cookie 优先
+     * 返回副本，不修改 headerMap，同一个 AnalyzeUrl 可以同时发出多个请求
      */
-    private fun setCookie(tag: String?) {
-        val cookie = CookieStore.getCookie(tag ?: url)
-        if (cookie.isNotEmpty()) {
-            val cookieMap = CookieStore.cookieToMap(cookie)
-            val customCookieMap = CookieStore.cookieToMap(headerMap["Cookie"] ?: "")
-            cookieMap.putAll(customCookieMap)
-            val newCookie = CookieStore.mapToCookie(cookieMap)
-            newCookie?.let {
-                headerMap.put("Cookie", it)
+    private fun getRequestHeaders(): Map<String, String> {
+        val headers = HashMap(headerMap)
+        val tag = source?.getKey()
+        val scope = tag ?: ""
+        var cookie = CookieStore.getCookie(scope, tag ?: url)
+        if (tag != null && NetworkUtils.getSubDomain(tag) != NetworkUtils.getSubDomain(url)) {
+            // 请求链接与书源不同域名时合并请求域名下保存的 cookie
+            val urlCookie = CookieStore.getCookie(scope, url)
+            if (urlCookie.isNotEmpty()) {
+                val cookieMap = CookieStore.cookieToMap(urlCookie)
+                cookieMap.putAll(CookieStore.cookieToMap(cookie))
+                cookie = CookieStore.mapToCookie(cookieMap) ?: ""
             }
         }
+        val cookieMap = CookieStore.cookieToMap(cookie)
+        cookieMap.putAll(CookieStore.cookieToMap(headerMap["Cookie"] ?: ""))
+        val newCookie = CookieStore.mapToCookie(cookieMap)
+        if (newCookie != null) {
+            headers.put("Cookie", newCookie)
+        } else {
+            headers.remove("Cookie")
+        }
+        return headers
     }
 
     fun getUserAgent(): String {
@@ -620,10 +675,4 @@ class AnalyzeUrl(
         }
     }
 
-    data class ConcurrentRecord(
-        val concurrent: Boolean,
-        var time: Long,
-        var frequency: Int
-    )
-
 }
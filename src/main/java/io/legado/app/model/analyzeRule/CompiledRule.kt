@@ -0,0 +1,253 @@
+package io.legado.app.model.analyzeRule
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import io.legado.app.constant.AppPattern.JS_PATTERN
+import io.legado.app.model.analyzeRule.AnalyzeRule.Mode
+import io.legado.app.utils.GSON
+import io.legado.app.utils.fromJsonObject
+import java.util.regex.Pattern
+
+/**
+ * 解析后的规则，创建后不再修改，可以在多个 AnalyzeRule 之间共用
+ *
+ * 规则的模式判断、@put 分离、@get/{{}}/$1 拆分只在解析时做一次，
+ * 按规则字符串和解析模式缓存，取值时只需要代入变量。
+ */
+class CompiledRule private constructor(
+    ruleStr: String,
+    initMode: Mode,
+    isJSON: Boolean
+) {
+    val mode: Mode
+    val rule: String
+    val putMap: Map<String, String>
+    val ruleParam: List<String>
+    val ruleType: List<Int>
+
+    /**
+     * 不含 @get、{{}}、$1 时，代入变量后的规则是固定的，预先拆分好替换正则
+     */
+    val isStatic: Boolean
+    val staticRule: String
+    val staticReplaceRegex: String
+    val staticReplacement: String
+    val staticReplaceFirst: Boolean
+
+    init {
+        var mode = initMode
+        var rule = when {
+            mode == Mode.Js || mode == Mode.Regex -> ruleStr
+            ruleStr.startsWith("@CSS:", true) -> {
+                mode = Mode.Default
+                ruleStr
+            }
+            ruleStr.startsWith("@@") -> {
+                mode = Mode.Default
+                ruleStr.substring(2)
+            }
+            ruleStr.startsWith("@XPath:", true) -> {
+                mode = Mode.XPath
+                ruleStr.substring(7)
+            }
+            ruleStr.startsWith("@Json:", true) -> {
+                mode = Mode.Json
+                ruleStr.substring(6)
+            }
+            isJSON || ruleStr.startsWith("$.") || ruleStr.startsWith("$[") -> {
+                mode = Mode.Json
+                ruleStr
+            }
+            ruleStr.startsWith("/") -> {//XPath特征很明显,无需配置单独的识别标头
+                mode = Mode.XPath
+                ruleStr
+            }
+            else -> ruleStr
+        }
+        //分离put
+        val putMap = HashMap<String, String>()
+        rule = splitPutRule(rule, putMap)
+        //@get,{{ }}, 拆分
+        val ruleParam = ArrayList<String>()
+        val ruleType = ArrayList<Int>()
+
+        /**
+         * 拆分\$\d{1,2}
+         */
+        fun splitRegex(ruleStr: String) {
+            var start = 0
+            var tmp: String
+            val ruleStrArray = ruleStr.split("##")
+            val regexMatcher = regexPattern.matcher(ruleStrArray[0])
+
+            if (regexMatcher.find()) {
+                if (mode != Mode.Js && mode != Mode.Regex) {
+                    mode = Mode.Regex
+                }
+                do {
+                    if (regexMatcher.start() > start) {
+                        tmp = ruleStr.substring(start, regexMatcher.start())
+                        ruleType.add(DEFAULT_RULE_TYPE)
+                        ruleParam.add(tmp)
+                    }
+                    tmp = regexMatcher.group()
+                    ruleType.add(tmp.substring(1).toInt())
+                    ruleParam.add(tmp)
+                    start = regexMatcher.end()
+                } while (regexMatcher.find())
+            }
+            if (ruleStr.length > start) {
+                tmp = ruleStr.substring(start)
+                ruleType.add(DEFAULT_RULE_TYPE)
+                ruleParam.add(tmp)
+            }
+        }
+
+        var start = 0
+        var tmp: String
+        val evalMatcher = evalPattern.matcher(rule)
+
+        if (evalMatcher.find()) {
+            tmp = rule.substring(start, evalMatcher.start())
+            if (mode != Mode.Js && mode != Mode.Regex &&
+                (evalMatcher.start() == 0 || !tmp.contains("##"))
+            ) {
+                mode = Mode.Regex
+            }
+            do {
+                if (evalMatcher.start() > start) {
+                    tmp = rule.substring(start, evalMatcher.start())
+                    splitRegex(tmp)
+                }
+                tmp = evalMatcher.group()
+                when {
+                    tmp.startsWith("@get:", true) -> {
+                        ruleType.add(GET_RULE_TYPE)
+                        ruleParam.add(tmp.substring(6, tmp.lastIndex))
+                    }
+                    tmp.startsWith("{{") -> {
+                        ruleType.add(JS_RULE_TYPE)
+                        ruleParam.add(tmp.substring(2, tmp.length - 2))
+                    }
+                    else -> {
+                        splitRegex(tmp)
+                    }
+                }
+                start = evalMatcher.end()
+            } while (evalMatcher.find())
+        }
+        if (rule.length > start) {
+            tmp = rule.substring(start)
+            splitRegex(tmp)
+        }
+
+        this.mode = mode
+        this.rule = rule
+        this.putMap = putMap
+        this.ruleParam = ruleParam
+        this.ruleType = ruleType
+        isStatic = ruleType.all { it == DEFAULT_RULE_TYPE }
+        //分离正则表达式
+        val ruleStrS = (if (ruleParam.isEmpty()) rule else ruleParam.joinToString("")).split("##")
+        staticRule = ruleStrS[0].trim()
+        staticReplaceRegex = if (ruleStrS.size > 1) ruleStrS[1] else ""
+        staticReplacement = if (ruleStrS.size > 2) ruleStrS[2] else ""
+        staticReplaceFirst = ruleStrS.size > 3
+    }
+
+    companion object {
+        const val GET_RULE_TYPE = -2
+        const val JS_RULE_TYPE = -1
+        const val DEFAULT_RULE_TYPE = 0
+
+        private const val MAX_CACHE_SIZE = 5000L
+
+        private val putPattern = Pattern.compile("@put:(\\{[^}]+?\\})", Pattern.CASE_INSENSITIVE)
+        private val evalPattern =
+            Pattern.compile("@get:\\{[^}]+?\\}|\\{\\{[\\w\\W]*?\\}\\}", Pattern.CASE_INSENSITIVE)
+        private val regexPattern = Pattern.compile("\\$\\d{1,2}")
+
+        private val ruleCache: Cache<String, CompiledRule> =
+            CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build()
+        private val splitCache: Cache<String, List<CompiledRule>> =
+            CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build()
+
+        /**
+         * 解析单段规则
+         */
+        fun get(ruleStr: String, mode: Mode = Mode.Default, isJSON: Boolean = false): CompiledRule {
+            val key = "${mode.ordinal}${if (isJSON) 1 else 0}$ruleStr"
+            ruleCache.getIfPresent(key)?.let {
+                return it
+            }
+            val compiledRule = CompiledRule(ruleStr, mode, isJSON)
+            ruleCache.put(key, compiledRule)
+            return compiledRule
+        }
+
+        /**
+         * 按 js 拆分规则，allInOne 时以:开头的规则为正则(AllInOne)
+         */
+        fun split(ruleStr: String, allInOne: Boolean, isRegex: Boolean, isJSON: Boolean): List<CompiledRule> {
+            val allInOneRegex = allInOne && ruleStr.startsWith(":")
+            val key = "${if (allInOneRegex) 1 else 0}${if (isRegex) 1 else 0}${if (isJSON) 1 else 0}$ruleStr"
+            splitCache.getIfPresent(key)?.let {
+                return it
+            }
+            val ruleList = ArrayList<CompiledRule>()
+            var mMode: Mode = Mode.Default
+            var start = 0
+            if (allInOneRegex) {
+                mMode = Mode.Regex
+                start = 1
+            } else if (isRegex) {
+                mMode = Mode.Regex
+            }
+            var tmp: String
+            val jsMatcher = JS_PATTERN.matcher(ruleStr)
+            while (jsMatcher.find()) {
+                if (jsMatcher.start() > start) {
+                    tmp = ruleStr.substring(start, jsMatcher.start()).trim { it <= ' ' }
+                    if (tmp.isNotEmpty()) {
+                        ruleList.add(get(tmp, mMode, isJSON))
+                    }
+                }
+                ruleList.add(get(jsMatcher.group(2) ?: jsMatcher.group(1), Mode.Js, isJSON))
+                start = jsMatcher.end()
+            }
+
+            if (ruleStr.length > start) {
+                tmp = ruleStr.substring(start).trim { it <= ' ' }
+                if (tmp.isNotEmpty()) {
+                    ruleList.add(get(tmp, mMode, isJSON))
+                }
+            }
+            splitCache.put(key, ruleList)
+            return ruleList
+        }
+
+        fun getStats(): Map<String, Long> {
+            return mapOf(
+                "ruleCount" to ruleCache.size(),
+                "splitCount" to splitCache.size()
+            )
+        }
+
+        /**
+         * 分离put规则
+         */
+        private fun splitPutRule(ruleStr: String, putMap: HashMap<String, String>): String {
+            var vRuleStr = ruleStr
+            val putMatcher = putPattern.matcher(vRuleStr)
+            while (putMatcher.find()) {
+                vRuleStr = vRuleStr.replace(putMatcher.group(), "")
+                GSON.fromJsonObject<Map<String, String>>(putMatcher.group(1))
+                    .getOrNull()
+                    ?.let {
+                        putMap.putAll(it)
+                    }
+            }
+            return vRuleStr
+        }
+    }
+}
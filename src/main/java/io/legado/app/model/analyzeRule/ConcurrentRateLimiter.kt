@@ -0,0 +1,176 @@
+package io.legado.app.model.analyzeRule
+
+import io.legado.app.data.entities.BaseSource
+import io.legado.app.exception.ConcurrentException
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeout
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 书源并发率限制
+ *
+ * concurrentRate 支持两种写法：
+ *   "ms"    同时只有一个请求，且两次请求开始间隔不小于 ms 毫秒
+ *   "N/ms"  任意 ms 毫秒内最多开始 N 个请求(滑动窗口)
+ * 超过限制时挂起等待，按到达顺序依次获得访问机会，
+ * 等待时间超过 maxWaitMillis 时抛出 ConcurrentException。
+ */
+class ConcurrentRateLimiter private constructor(val concurrentRate: String) {
+
+    companion object {
+        private val limiters = ConcurrentHashMap<String, ConcurrentRateLimiter>()
+
+        /**
+         * 获取书源的并发率限制，没有设置或格式错误时返回 null
+         */
+        fun get(source: BaseSource?): ConcurrentRateLimiter? {
+            source ?: return null
+            val concurrentRate = source.concurrentRate
+            if (concurrentRate.isNullOrBlank()) {
+                return null
+            }
+            val key = source.getKey()
+            val limiter = limiters.get(key)
+            if (limiter != null && limiter.concurrentRate == concurrentRate) {
+                return limiter.takeIf { it.valid }
+            }
+            // 并发率被修改后重新创建
+            val newLimiter = ConcurrentRateLimiter(concurrentRate)
+            limiters.put(key, newLimiter)
+            return newLimiter.takeIf { it.valid }
+        }
+
+        /**
+         * 各书源的等待统计，只返回发生过等待的书源
+         */
+        fun getStats(): Map<String, Map<String, Any>> {
+            val stats = hashMapOf<String, Map<String, Any>>()
+            limiters.forEach { (key, limiter) ->
+                if (limiter.waitCount.get() > 0) {
+                    stats.put(key, limiter.getStats())
+                }
+            }
+            return stats
+        }
+    }
+
+    // "ms" 写法，同时只有一个请求
+    private val exclusive: Boolean
+    private val permits: Int
+    private val windowMillis: Long
+    private val valid: Boolean
+
+    init {
+        val rateIndex = concurrentRate.indexOf("/")
+        var exclusive = true
+        var permits = 1
+        var windowMillis = 0L
+        try {
+            if (rateIndex > 0) {
+                exclusive = false
+                permits = concurrentRate.substring(0, rateIndex).trim().toInt()
+                windowMillis = concurrentRate.substring(rateIndex + 1).trim().toLong()
+            } else {
+                windowMillis = concurrentRate.trim().toLong()
+            }
+        } catch (e: Exception) {
+            permits = 0
+        }
+        this.exclusive = exclusive
+        this.permits = permits
+        this.windowMillis = windowMillis
+        this.valid = permits > 0 && windowMillis >= 0
+    }
+
+    // 保证按到达顺序获得访问机会
+    private val queue = Mutex()
+    // "ms" 写法中正在进行的请求，在访问结束时由 release 解锁
+    private val running = Mutex()
+    // 最近 permits 个请求的开始时间
+    private val startTimes = ArrayDeque<Long>()
+
+    private val waitCount = AtomicLong()
+    private val totalWaitTime = AtomicLong()
+    private val maxWaitTime = AtomicLong()
+    private val timeoutCount = AtomicLong()
+
+    private fun nextStartTime(): Long {
+        if (startTimes.size < permits) {
+            return 0L
+        }
+        return startTimes.first() + windowMillis
+    }
+
+    /**
+     * 等待获得访问机会，访问结束后需调用 release
+     *
+     * @return 等待时间(ms)
+     */
+    suspend fun acquire(maxWaitMillis: Long): Long {
+        val begin = System.currentTimeMillis()
+        var acquired = false
+        try {
+            withTimeout(maxWaitMillis) {
+                queue.withLock {
+                    if (exclusive) {
+                        running.lock()
+                    }
+                    try {
+                        val waitTime = nextStartTime() - System.currentTimeMillis()
+                        if (waitTime > 0) {
+                            delay(waitTime)
+                        }
+                    } catch (e: Throwable) {
+                        if (exclusive) {
+                            running.unlock()
+                        }
+                        throw e
+                    }
+                    startTimes.addLast(System.currentTimeMillis())
+                    while (startTimes.size > permits) {
+                        startTimes.removeFirst()
+                    }
+                    acquired = true
+                }
+            }
+        } catch (e: TimeoutCancellationException) {
+            if (!acquired) {
+                timeoutCount.incrementAndGet()
+                val waitTime = (System.currentTimeMillis() - begin).toInt()
+                throw ConcurrentException("根据并发率等待${waitTime}毫秒后仍无法访问", waitTime = waitTime)
+            }
+        }
+        val waitTime = System.currentTimeMillis() - begin
+        if (waitTime > 0) {
+            waitCount.incrementAndGet()
+            totalWaitTime.addAndGet(waitTime)
+            maxWaitTime.accumulateAndGet(waitTime) { a, b -> Math.max(a, b) }
+        }
+        return waitTime
+    }
+
+    /**
+     * 访问结束，无论成功或失败都需要调用
+     */
+    fun release() {
+        if (exclusive) {
+            running.unlock()
+        }
+    }
+
+    fun getStats(): Map<String, Any> {
+        val count = waitCount.get()
+        return mapOf(
+            "concurrentRate" to concurrentRate,
+            "waitCount" to count,
+            "avgWaitMillis" to (if (count > 0) totalWaitTime.get() / count else 0L),
+            "maxWaitMillis" to maxWaitTime.get(),
+            "timeoutCount" to timeoutCount.get()
+        )
+    }
+}
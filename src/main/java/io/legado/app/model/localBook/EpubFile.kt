@@ -24,6 +24,7 @@ private val logger = KotlinLogging.logger {}
 class EpubFile(var book: Book) {
 
     companion object {
+        private val rubyRegex = "<ruby>\\s?([\\u4e00-\\u9fa5])\\s?.*?</ruby>".toRegex()
         private var eFile: EpubFile? = null
 
         @Synchronized
@@ -184,7 +185,7 @@ class EpubFile(var book: Book) {
            var html = elements.outerHtml()
            val tag = Book.rubyTag
            if (book.getDelTag(tag)) {
-               html = html.replace("<ruby>\\s?([\\u4e00-\\u9fa5])\\s?.*?</ruby>".toRegex(), "$1")
+               html = html.replace(rubyRegex, "$1")
            }
            return HtmlFormatter.formatKeepImg(html)
        }
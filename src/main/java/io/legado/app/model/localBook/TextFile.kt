@@ -21,6 +21,8 @@ class TextFile(private val book: Book) {
 
     companion object {
 
+        private val leadingBlankRegex = "^[\\n\\s]+".toRegex()
+
         @Throws(FileNotFoundException::class)
         fun getChapterList(book: Book): ArrayList<BookChapter> {
             return TextFile(book).getChapterList()
@@ -39,7 +41,7 @@ class TextFile(private val book: Book) {
             }
             return String(buffer, book.fileCharset())
                 .substringAfter(bookChapter.title)
-                .replace("^[\\n\\s]+".toRegex(), "　　")
+                .replace(leadingBlankRegex, "　　")
         }
 
     }
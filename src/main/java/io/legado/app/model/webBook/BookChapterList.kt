@@ -7,6 +7,7 @@ import io.legado.app.data.entities.rule.TocRule
 import io.legado.app.exception.TocEmptyException
 import io.legado.app.model.DebugLog
 import io.legado.app.model.analyzeRule.AnalyzeRule
+import io.legado.app.help.http.HttpCache
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.utils.isTrue
 import io.legado.app.utils.TextUtils
@@ -62,7 +63,9 @@ object BookChapterList {
                         source = bookSource,
                         ruleData = book,
                         headerMapF = bookSource.getHeaderMap()
-                    ).getStrResponseAwait(debugLog = debugLog).body?.let { nextBody ->
+                    ).apply {
+                        cacheType = HttpCache.Type.TOC
+                    }.getStrResponseAwait(debugLog = debugLog).body?.let { nextBody ->
                         chapterData = analyzeChapterList(
                             book, nextUrl, nextUrl,
                             nextBody, tocRule, listRule, bookSource, true, false, debugLog
@@ -85,6 +88,7 @@ object BookChapterList {
                                 ruleData = book,
                                 headerMapF = bookSource.getHeaderMap()
                             )
+                            analyzeUrl.cacheType = HttpCache.Type.TOC
                             val res = analyzeUrl.getStrResponseAwait(debugLog = debugLog)
                             analyzeChapterList(
                                 book, urlStr, res.url,
@@ -114,6 +118,14 @@ object BookChapterList {
         list.forEachIndexed { index, bookChapter ->
             bookChapter.index = index
         }
+        updateBookInfo(book, list)
+        return list
+    }
+
+    /**
+     * 根据目录更新书籍的最新章节和章节数
+     */
+    fun updateBookInfo(book: Book, list: List<BookChapter>) {
         if (list.size > 0) {
             book.latestChapterTitle = list.last().title
         }
@@ -125,7 +137,6 @@ object BookChapterList {
             // book.lastCheckTime = System.currentTimeMillis()
         }
         book.totalChapterNum = list.size
-        return list
     }
 
     private fun analyzeChapterList(
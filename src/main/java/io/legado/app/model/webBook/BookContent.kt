@@ -7,6 +7,7 @@ import io.legado.app.data.entities.BookSource
 import io.legado.app.data.entities.rule.ContentRule
 import io.legado.app.model.DebugLog
 import io.legado.app.model.analyzeRule.AnalyzeRule
+import io.legado.app.help.http.HttpCache
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.utils.NetworkUtils
 import io.legado.app.utils.HtmlFormatter
@@ -61,7 +62,9 @@ object BookContent {
                     source = bookSource,
                     ruleData = book,
                     headerMapF = bookSource.getHeaderMap()
-                ).getStrResponseAwait(debugLog = debugLog)
+                ).apply {
+                    cacheType = HttpCache.Type.CONTENT
+                }.getStrResponseAwait(debugLog = debugLog)
                 res.body?.let { nextBody ->
                     contentData = analyzeContent(
                         book, nextUrl, res.url, nextBody, contentRule,
@@ -85,6 +88,7 @@ object BookContent {
                             ruleData = book,
                             headerMapF = bookSource.getHeaderMap()
                         )
+                        analyzeUrl.cacheType = HttpCache.Type.CONTENT
                         val res = analyzeUrl.getStrResponseAwait(debugLog = debugLog)
                         analyzeContent(
                             book, urlStr, res.url, res.body!!, contentRule,
@@ -9,6 +9,7 @@ import io.legado.app.model.DebugLog
 import io.legado.app.model.analyzeRule.AnalyzeRule
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.utils.NetworkUtils
+import io.legado.app.utils.RegexPool
 import io.legado.app.utils.StringUtils.wordCountFormat
 import io.legado.app.utils.htmlFormat
 
@@ -38,7 +39,7 @@ object BookList {
         analyzeRule.setContent(body).setBaseUrl(baseUrl)
         analyzeRule.setRedirectUrl(baseUrl)
         bookSource.bookUrlPattern?.let {
-            if (baseUrl.matches(it.toRegex())) {
+            if (RegexPool.matches(baseUrl, it)) {
                 debugLog?.log(bookSource.bookSourceUrl, "≡链接为详情页")
                 getInfoItem(body, analyzeRule, bookSource, analyzeUrl, baseUrl,  variableBook.variable, debugLog = debugLog)?.let { searchBook ->
                     searchBook.infoHtml = body
@@ -4,6 +4,12 @@ import io.legado.app.data.entities.Book
 import io.legado.app.data.entities.BookChapter
 import io.legado.app.data.entities.BookSource
 import io.legado.app.data.entities.SearchBook
+import io.legado.app.help.SourceHealth
+import io.legado.app.help.coroutine.JsBridge
+import io.legado.app.help.coroutine.SingleFlight
+import io.legado.app.help.http.HttpCache
+import io.legado.app.help.http.httpConfig
+import io.legado.app.help.http.withDeadline
 import io.legado.app.help.http.StrResponse
 import io.legado.app.model.analyzeRule.AnalyzeUrl
 import io.legado.app.model.webBook.BookChapterList
@@ -12,6 +18,8 @@ import io.legado.app.model.webBook.BookInfo
 import io.legado.app.model.webBook.BookList
 import io.legado.app.model.Debug
 import io.legado.app.model.DebugLog
+import io.legado.app.utils.GSON
+import io.legado.app.utils.MD5Utils
 import mu.KotlinLogging
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.coroutineScope
@@ -22,11 +30,22 @@ private val logger = KotlinLogging.logger {}
 
 class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debugLogger: DebugLog? = null) {
 
+    companion object {
+        // 多个用户同时阅读同一本书时合并相同的目录和正文请求
+        private val chapterListFlight = SingleFlight<List<BookChapter>>(3000L)
+        private val contentFlight = SingleFlight<String>(3000L)
+    }
+
     constructor(bookSourceString: String, debugLog: Boolean = true) : this(BookSource.fromJson(bookSourceString).getOrNull() ?: BookSource(), debugLog)
 
     val sourceUrl: String
         get() = bookSource.bookSourceUrl
 
+    // 书源内容的摘要，用户可以修改同一链接的书源，规则不同的书源不能合并请求
+    private val sourceDigest: String by lazy {
+        MD5Utils.md5Encode(GSON.toJson(bookSource))
+    }
+
     val debugger: DebugLog?
         get() {
             if (debugLogger != null) {
@@ -38,6 +57,22 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
             return null
         }
 
+    /**
+     * 在截止时间内请求书源并记录结果，调试书源时不限制时间也不记录
+     */
+    private suspend fun <T> sourceRequest(timeoutMillis: Long, block: suspend () -> T): T {
+        // 先进入 js 线程池，排队等待线程的时间不计入书源的请求时间
+        return JsBridge.runJs {
+            if (debugLogger != null) {
+                block()
+            } else {
+                SourceHealth.record(bookSource.bookSourceUrl) {
+                    withDeadline(timeoutMillis, block)
+                }
+            }
+        }
+    }
+
     /**
      * 搜索
      */
@@ -45,22 +80,66 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
         key: String,
         page: Int? = 1
     ): List<SearchBook> {
-        val variableBook = SearchBook()
-        return bookSource.searchUrl?.let { searchUrl ->
+        return sourceRequest(httpConfig.searchTimeout) {
+            val variableBook = SearchBook()
+            bookSource.searchUrl?.let { searchUrl ->
+                val analyzeUrl = AnalyzeUrl(
+                    mUrl = searchUrl,
+                    key = key,
+                    page = page,
+                    baseUrl = bookSource.bookSourceUrl,
+                    source = bookSource,
+                    ruleData = variableBook,
+                    headerMapF = bookSource.getHeaderMap(true),
+                )
+                analyzeUrl.cacheType = HttpCache.Type.SEARCH
+                var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
+                //检测书源是否已登录
+                bookSource.loginCheckJs?.let { checkJs ->
+                    if (checkJs.isNotBlank()) {
+                        res = analyzeUrl.evalJS(checkJs, res) as StrResponse
+                    }
+                }
+                BookList.analyzeBookList(
+                    res.body,
+                    bookSource,
+                    analyzeUrl,
+                    res.url,
+                    variableBook,
+                    true,
+                    debugLog = debugger
+                ).map {
+                    it.tocHtml = ""
+                    it.infoHtml = ""
+                    it
+                }
+            } ?: arrayListOf()
+        }
+    }
+
+    /**
+     * 发现
+     */
+    suspend fun exploreBook(
+        url: String,
+        page: Int? = 1
+    ): List<SearchBook> {
+        return sourceRequest(httpConfig.searchTimeout) {
+            val variableBook = SearchBook()
             val analyzeUrl = AnalyzeUrl(
-                mUrl = searchUrl,
-                key = key,
+                mUrl = url,
                 page = page,
                 baseUrl = bookSource.bookSourceUrl,
                 source = bookSource,
                 ruleData = variableBook,
-                headerMapF = bookSource.getHeaderMap(true),
+                headerMapF = bookSource.getHeaderMap(true)
             )
+            analyzeUrl.cacheType = HttpCache.Type.EXPLORE
             var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
             //检测书源是否已登录
             bookSource.loginCheckJs?.let { checkJs ->
                 if (checkJs.isNotBlank()) {
-                    res = analyzeUrl.evalJS(checkJs, res) as StrResponse
+                    res = analyzeUrl.evalJS(checkJs, result = res) as StrResponse
                 }
             }
             BookList.analyzeBookList(
@@ -69,49 +148,10 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
                 analyzeUrl,
                 res.url,
                 variableBook,
-                true,
+                false,
                 debugLog = debugger
-            ).map {
-                it.tocHtml = ""
-                it.infoHtml = ""
-                it
-            }
-        } ?: arrayListOf()
-
-    }
-
-    /**
-     * 发现
-     */
-    suspend fun exploreBook(
-        url: String,
-        page: Int? = 1
-    ): List<SearchBook> {
-        val variableBook = SearchBook()
-        val analyzeUrl = AnalyzeUrl(
-            mUrl = url,
-            page = page,
-            baseUrl = bookSource.bookSourceUrl,
-            source = bookSource,
-            ruleData = variableBook,
-            headerMapF = bookSource.getHeaderMap(true)
-        )
-        var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
-        //检测书源是否已登录
-        bookSource.loginCheckJs?.let { checkJs ->
-            if (checkJs.isNotBlank()) {
-                res = analyzeUrl.evalJS(checkJs, result = res) as StrResponse
-            }
+            )
         }
-        return BookList.analyzeBookList(
-            res.body,
-            bookSource,
-            analyzeUrl,
-            res.url,
-            variableBook,
-            false,
-            debugLog = debugger
-        )
     }
 
     /**
@@ -138,30 +178,33 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
      * 书籍信息
      */
     suspend fun getBookInfo(bookUrl: String, canReName: Boolean = true): Book {
-        val book = Book()
-        book.bookUrl = bookUrl
-        book.origin = bookSource.bookSourceUrl
-        book.originName = bookSource.bookSourceName
-        book.originOrder = bookSource.customOrder
-        book.type = bookSource.bookSourceType
-        val analyzeUrl = AnalyzeUrl(
-            mUrl = book.bookUrl,
-            baseUrl = bookSource.bookSourceUrl,
-            source = bookSource,
-            ruleData = book,
-            headerMapF = bookSource.getHeaderMap(true)
-        )
-        var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
-        //检测书源是否已登录
-        bookSource.loginCheckJs?.let { checkJs ->
-            if (checkJs.isNotBlank()) {
-                res = analyzeUrl.evalJS(checkJs, result = res) as StrResponse
+        return sourceRequest(httpConfig.bookInfoTimeout) {
+            val book = Book()
+            book.bookUrl = bookUrl
+            book.origin = bookSource.bookSourceUrl
+            book.originName = bookSource.bookSourceName
+            book.originOrder = bookSource.customOrder
+            book.type = bookSource.bookSourceType
+            val analyzeUrl = AnalyzeUrl(
+                mUrl = book.bookUrl,
+                baseUrl = bookSource.bookSourceUrl,
+                source = bookSource,
+                ruleData = book,
+                headerMapF = bookSource.getHeaderMap(true)
+            )
+            analyzeUrl.cacheType = HttpCache.Type.TOC
+            var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
+            //检测书源是否已登录
+            bookSource.loginCheckJs?.let { checkJs ->
+                if (checkJs.isNotBlank()) {
+                    res = analyzeUrl.evalJS(checkJs, result = res) as StrResponse
+                }
             }
-        }
 
-        BookInfo.analyzeBookInfo(book, res.body, bookSource, book.bookUrl, res.url, canReName, debugLog = debugger)
-        book.tocHtml = null
-        return book
+            BookInfo.analyzeBookInfo(book, res.body, bookSource, book.bookUrl, res.url, canReName, debugLog = debugger)
+            book.tocHtml = null
+            book
+        }
     }
 
     /**
@@ -179,7 +222,23 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
                 book.tocUrl,
                 book.tocUrl
             )
+        } else if (debugLogger != null) {
+            // 调试书源时不合并请求，保证每次都输出完整日志
+            fetchChapterList(book)
         } else {
+            val key = listOf(bookSource.bookSourceUrl, sourceDigest, book.bookUrl, book.tocUrl).joinToString("\n")
+            val chapterList = chapterListFlight.execute(key) {
+                fetchChapterList(book)
+            }
+            // 合并的请求只在发起者的书籍上更新了目录信息
+            BookChapterList.updateBookInfo(book, chapterList)
+            // 章节对象可能被调用方修改，每个调用方使用各自的副本
+            chapterList.map { it.copy() }
+        }
+    }
+
+    private suspend fun fetchChapterList(book: Book): List<BookChapter> {
+        return sourceRequest(httpConfig.tocTimeout) {
             val analyzeUrl = AnalyzeUrl(
                 mUrl = book.tocUrl,
                 baseUrl = book.bookUrl,
@@ -187,6 +246,7 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
                 ruleData = book,
                 headerMapF = bookSource.getHeaderMap(true)
             )
+            analyzeUrl.cacheType = HttpCache.Type.TOC
             var res = analyzeUrl.getStrResponseAwait(debugLog = debugger)
             //检测书源是否已登录
             bookSource.loginCheckJs?.let { checkJs ->
@@ -194,7 +254,7 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
                     res = analyzeUrl.evalJS(checkJs, result = res) as StrResponse
                 }
             }
-            return BookChapterList.analyzeChapterList(book, res.body, bookSource, book.tocUrl, res.url, debugLog = debugger)
+            BookChapterList.analyzeChapterList(book, res.body, bookSource, book.tocUrl, res.url, debugLog = debugger)
         }
     }
 
@@ -218,29 +278,46 @@ class WebBook(val bookSource: BookSource, val debugLog: Boolean = true, var debu
 //        val body = if (book != null && bookChapter.url == book.bookUrl && !book.tocHtml.isNullOrEmpty()) {
 //            book.tocHtml
 //        } else {
-        logger.info("bookChapterUrl: {}", bookChapter.url, bookChapter.getAbsoluteURL())
-        val analyzeUrl = AnalyzeUrl(
-            mUrl = bookChapter.getAbsoluteURL(),
-            baseUrl = book.tocUrl,
-            source = bookSource,
-            ruleData = book,
-            chapter = bookChapter,
-            headerMapF = bookSource.getHeaderMap(true)
-        )
-        var res = analyzeUrl.getStrResponseAwait(
-            jsStr = bookSource.getContentRule().webJs,
-            sourceRegex = bookSource.getContentRule().sourceRegex,
-            debugLog = debugger
-        )
-        return BookContent.analyzeContent(
-            res.body,
-            book,
-            bookChapter,
-            bookSource,
-            bookChapter.url,
-            res.url,
-            nextChapterUrl,
-            debugLog = debugger
-        )
+        if (debugLogger != null) {
+            return fetchBookContent(book, bookChapter, nextChapterUrl)
+        }
+        val key = listOf(bookSource.bookSourceUrl, sourceDigest, book.bookUrl, bookChapter.getAbsoluteURL(), nextChapterUrl ?: "").joinToString("\n")
+        return contentFlight.execute(key) {
+            fetchBookContent(book, bookChapter, nextChapterUrl)
+        }
+    }
+
+    private suspend fun fetchBookContent(
+        book: Book,
+        bookChapter: BookChapter,
+        nextChapterUrl: String?
+    ): String {
+        return sourceRequest(httpConfig.contentTimeout) {
+            logger.info("bookChapterUrl: {}", bookChapter.url, bookChapter.getAbsoluteURL())
+            val analyzeUrl = AnalyzeUrl(
+                mUrl = bookChapter.getAbsoluteURL(),
+                baseUrl = book.tocUrl,
+                source = bookSource,
+                ruleData = book,
+                chapter = bookChapter,
+                headerMapF = bookSource.getHeaderMap(true)
+            )
+            analyzeUrl.cacheType = HttpCache.Type.CONTENT
+            var res = analyzeUrl.getStrResponseAwait(
+                jsStr = bookSource.getContentRule().webJs,
+                sourceRegex = bookSource.getContentRule().sourceRegex,
+                debugLog = debugger
+            )
+            BookContent.analyzeContent(
+                res.body,
+                book,
+                bookChapter,
+                bookSource,
+                bookChapter.url,
+                res.url,
+                nextChapterUrl,
+                debugLog = debugger
+            )
+        }
     }
 }
\ No newline at end of file
@@ -44,6 +44,25 @@ object EncodingDetect {
         return getEncode(bytes)
     }
 
+    private val metaCharsetPattern = Regex(
+        "<meta[^>]+charset\\s*=\\s*[\"']?([\\w\\-:.]+)",
+        RegexOption.IGNORE_CASE
+    )
+
+    /**
+     * 只在网页开头查找 meta 中的编码，不解析整个网页
+     */
+    fun getMetaCharset(bytes: ByteArray, length: Int = bytes.size): String? {
+        // ISO_8859_1 逐字节转换，不会因为编码错误丢失内容
+        val head = String(bytes, 0, length, StandardCharsets.ISO_8859_1)
+        return metaCharsetPattern.find(head)?.groupValues?.get(1)
+    }
+
+    fun getEncode(bytes: ByteArray, length: Int): String {
+        val match = CharsetDetector().setText(if (length == bytes.size) bytes else bytes.copyOf(length)).detect()
+        return match?.name ?: "UTF-8"
+    }
+
     fun getEncode(bytes: ByteArray): String {
         val match = CharsetDetector().setText(bytes).detect()
         return match?.name ?: "UTF-8"
@@ -9,6 +9,9 @@ object HtmlFormatter {
     private val commentRegex = "<!--[^>]*-->".toRegex() //注释
     private val notImgHtmlRegex = "</?(?!img)[a-zA-Z]+(?=[ >])[^<>]*>".toRegex()
     private val otherHtmlRegex = "</?[a-zA-Z]+(?=[ >])[^<>]*>".toRegex()
+    private val blankLineRegex = "\\s*\\n+\\s*".toRegex()
+    private val leadingBlankRegex = "^[\\n\\s]+".toRegex()
+    private val trailingBlankRegex = "[\\n\\s]+$".toRegex()
     private val formatImagePattern = Pattern.compile(
         "<img[^>]*src *= *\"([^\"{]*\\{(?:[^{}]|\\{[^}]+\\})+\\})\"[^>]*>|<img[^>]*data-[^=]*= *\"([^\"]*)\"[^>]*>|<img[^>]*src *= *\"([^\"]*)\"[^>]*>",
         Pattern.CASE_INSENSITIVE
@@ -19,9 +22,9 @@ object HtmlFormatter {
         return html.replace(wrapHtmlRegex, "\n")
             .replace(commentRegex, "")
             .replace(otherRegex, "")
-            .replace("\\s*\\n+\\s*".toRegex(), "\n　　")
-            .replace("^[\\n\\s]+".toRegex(), "　　")
-            .replace("[\\n\\s]+$".toRegex(), "")
+            .replace(blankLineRegex, "\n　　")
+            .replace(leadingBlankRegex, "　　")
+            .replace(trailingBlankRegex, "")
     }
 
     fun formatKeepImg(html: String?, redirectUrl: URL? = null): String {
@@ -0,0 +1,105 @@
+package io.legado.app.utils
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import io.legado.app.exception.RegexTimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import java.util.regex.Matcher
+
+/**
+ * 书源规则等动态正则的编译缓存
+ *
+ * 同一个正则只编译一次，缓存数量有上限。书源中的正则可能存在灾难性回溯，
+ * 通过 matcher 创建的 Matcher 有时间上限，超时抛出 RegexTimeoutException。
+ */
+object RegexPool {
+
+    private const val MAX_CACHE_SIZE = 2000L
+    // 每个 Matcher 的匹配时间上限
+    private const val MATCH_TIMEOUT = 3000L
+    // 每访问这么多次字符检查一次时间
+    private const val CHECK_INTERVAL = 1024
+
+    private val cache: Cache<String, Regex> = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build()
+
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val timeoutCount = AtomicLong()
+
+    /**
+     * 匹配超时后 charAt 抛出异常，以此中断 java.util.regex 的匹配
+     */
+    private class TimeLimitedCharSequence(
+        private val inner: CharSequence,
+        private val regex: String,
+        private val deadline: Long
+    ) : CharSequence {
+
+        // 一个 Matcher 只在一个线程中使用，不需要同步
+        private var accessCount = 0
+
+        override val length: Int
+            get() = inner.length
+
+        override fun get(index: Int): Char {
+            if (++accessCount >= CHECK_INTERVAL) {
+                accessCount = 0
+                if (System.currentTimeMillis() > deadline) {
+                    timeoutCount.incrementAndGet()
+                    throw RegexTimeoutException("正则匹配超时: $regex")
+                }
+            }
+            return inner[index]
+        }
+
+        override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+            return inner.subSequence(startIndex, endIndex)
+        }
+
+        override fun toString(): String {
+            return inner.toString()
+        }
+    }
+
+    /**
+     * 获取编译后的正则，正则语法错误时抛出 PatternSyntaxException
+     */
+    fun get(regex: String): Regex {
+        cache.getIfPresent(regex)?.let {
+            hitCount.incrementAndGet()
+            return it
+        }
+        missCount.incrementAndGet()
+        val compiled = regex.toRegex()
+        cache.put(regex, compiled)
+        return compiled
+    }
+
+    /**
+     * 有时间上限的 Matcher
+     */
+    fun matcher(regex: String, input: CharSequence, timeoutMillis: Long = MATCH_TIMEOUT): Matcher {
+        return get(regex).toPattern().matcher(TimeLimitedCharSequence(input, regex, System.currentTimeMillis() + timeoutMillis))
+    }
+
+    fun matches(input: CharSequence, regex: String): Boolean {
+        return matcher(regex, input).matches()
+    }
+
+    fun replace(input: CharSequence, regex: String, replacement: String): String {
+        return matcher(regex, input).replaceAll(replacement)
+    }
+
+    fun replaceFirst(input: CharSequence, regex: String, replacement: String): String {
+        return matcher(regex, input).replaceFirst(replacement)
+    }
+
+    fun getStats(): Map<String, Long> {
+        return mapOf(
+            "size" to cache.size(),
+            "hitCount" to hitCount.get(),
+            "missCount" to missCount.get(),
+            "timeoutCount" to timeoutCount.get()
+        )
+    }
+}
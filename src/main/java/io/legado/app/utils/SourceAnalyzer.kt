@@ -176,6 +176,8 @@ object SourceAnalyzer {
                 source.bookSourceComment = sourceAny.bookSourceComment
                 source.lastUpdateTime = sourceAny.lastUpdateTime
                 source.respondTime = sourceAny.respondTime
+                source.httpCacheTtl = sourceAny.httpCacheTtl
+                source.maxConcurrentRequests = sourceAny.maxConcurrentRequests
                 source.weight = sourceAny.weight
                 source.exploreUrl = sourceAny.exploreUrl
                 source.ruleExplore = if (sourceAny.ruleExplore is String) {
@@ -236,6 +238,8 @@ object SourceAnalyzer {
         var bookSourceComment: String? = "",            //书源注释
         var lastUpdateTime: Long = 0,                   // 最后更新时间，用于排序
         var respondTime: Long = 180000L,                // 响应时间，用于排序
+        var httpCacheTtl: Int? = null,                  // 网络请求缓存时间(秒)
+        var maxConcurrentRequests: Int? = null,         // 同时请求数上限
         var weight: Int = 0,                            // 智能排序的权重
         var exploreUrl: String? = null,                 // 发现url
         var ruleExplore: Any? = null,                   // 发现规则
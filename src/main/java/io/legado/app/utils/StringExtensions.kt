@@ -38,19 +38,26 @@ fun String?.isXml(): Boolean =
         str.startsWith("<") && str.endsWith(">")
     } ?: false
 
+private val falseRegex = "\\s*(?i)(false|no|not|0)\\s*".toRegex()
+private val wrapTagRegex = "(?i)<(br[\\s/]*|/*p\\b.*?|/*div\\b.*?)>".toRegex()
+private val scriptTagRegex = "<[script>]*.*?>|&nbsp;".toRegex()
+private val blankLineRegex = "\\s*\\n+\\s*".toRegex()
+private val leadingBlankRegex = "^[\\n\\s]+".toRegex()
+private val trailingBlankRegex = "[\\n\\s]+$".toRegex()
+
 fun String?.isTrue(nullIsTrue: Boolean = false): Boolean {
     if (this.isNullOrBlank() || this == "null") {
         return nullIsTrue
     }
-    return !this.matches("\\s*(?i)(false|no|not|0)\\s*".toRegex())
+    return !this.matches(falseRegex)
 }
 
 fun String?.htmlFormat(): String = if (this.isNullOrBlank()) "" else
-    this.replace("(?i)<(br[\\s/]*|/*p\\b.*?|/*div\\b.*?)>".toRegex(), "\n")// 替换特定标签为换行符
-        .replace("<[script>]*.*?>|&nbsp;".toRegex(), "")// 删除script标签对和空格转义符
-        .replace("\\s*\\n+\\s*".toRegex(), "\n　　")// 移除空行,并增加段前缩进2个汉字
-        .replace("^[\\n\\s]+".toRegex(), "　　")//移除开头空行,并增加段前缩进2个汉字
-        .replace("[\\n\\s]+$".toRegex(), "") //移除尾部空行
+    this.replace(wrapTagRegex, "\n")// 替换特定标签为换行符
+        .replace(scriptTagRegex, "")// 删除script标签对和空格转义符
+        .replace(blankLineRegex, "\n　　")// 移除空行,并增加段前缩进2个汉字
+        .replace(leadingBlankRegex, "　　")//移除开头空行,并增加段前缩进2个汉字
+        .replace(trailingBlankRegex, "") //移除尾部空行
 
 fun String.splitNotBlank(vararg delimiter: String): Array<String> = run {
     this.split(*delimiter).map { it.trim() }.filterNot { it.isBlank() }.toTypedArray()